@@ -0,0 +1,4 @@
+#!/bin/sh
+# Headless lip sync, see LipSyncCli for the options
+DIR="$(cd "$(dirname "$0")" && pwd)"
+exec java -Xmx8000m -Djava.awt.headless=true -cp "$DIR/lipsync.jar" fr.brochu.puppet.lipsync.LipSyncCli "$@"
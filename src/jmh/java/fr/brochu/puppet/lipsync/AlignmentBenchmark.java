@@ -0,0 +1,67 @@
+package fr.brochu.puppet.lipsync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Front end, speech detection and word pass, on warm aligners. The word pass runs
+ * with and without its first pass limited to speech regions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class AlignmentBenchmark {
+    @Param({"5", "30", "120"})
+    public String clip;
+
+    @Param({"true", "false"})
+    public boolean speechDetection;
+
+    @Param({"false", "true"})
+    public boolean adaptiveBeam;
+
+    private LipSync lipSync;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkClips.silenceLogs();
+        BatchLipSync.Clip benchmarkClip = BenchmarkClips.get(clip);
+        lipSync = new LipSync(benchmarkClip.getWavPath(), benchmarkClip.getTranscriptPath(), BenchmarkClips.SILENT_PROGRESS);
+        lipSync.setSpeechDetection(speechDetection);
+        lipSync.setAdaptiveBeam(adaptiveBeam);
+        lipSync.openAudio();
+        lipSync.extractFeatures();
+        lipSync.detectSpeech();
+    }
+
+    @Benchmark
+    public void featureExtraction() throws IOException {
+        lipSync.extractFeatures();
+    }
+
+    @Benchmark
+    public void speechDetection() {
+        lipSync.detectSpeech();
+    }
+
+    @Benchmark
+    public void wordPass() throws IOException {
+        lipSync.alignWords();
+    }
+}
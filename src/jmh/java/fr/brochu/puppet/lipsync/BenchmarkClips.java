@@ -0,0 +1,174 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Clips the benchmarks run on.
+ *
+ * A clip name is either a duration in seconds, for a synthetic clip generated once in
+ * the temporary folder, or the path of a fixture wav file with its transcript next to
+ * it (foo.wav, foo.txt), e.g. -p clip=/data/fixtures/scene1.wav.
+ */
+class BenchmarkClips {
+    private static final String[] SENTENCES = {
+            "Le petit chat dort sur le canapé du salon.",
+            "Nous partirons demain matin avant le lever du soleil.",
+            "Il faut que tu ranges ta chambre avant ce soir.",
+            "La marionnette ouvre grand la bouche et se met à chanter.",
+            "Je ne sais pas encore ce que nous allons manger.",
+    };
+    private static final double WORDS_PER_SECOND = 2.5;
+
+    static final ProgressListener SILENT_PROGRESS = new ProgressListener() {
+        @Override
+        public void onStart() {
+
+        }
+
+        @Override
+        public void onProgress(double progress) {
+
+        }
+
+        @Override
+        public void onStop() {
+
+        }
+    };
+
+    static BatchLipSync.Clip get(String clip) throws IOException {
+        if (clip.matches("\\d+")) {
+            return synthetic(Integer.parseInt(clip));
+        }
+
+        File wavFile = new File(clip);
+        File transcriptFile = new File(clip.replaceFirst("\\.wav$", ".txt"));
+        if (!wavFile.isFile() || !transcriptFile.isFile()) {
+            throw new IOException("Fixture " + clip + " needs a wav file and a .txt transcript next to it");
+        }
+        return new BatchLipSync.Clip(wavFile.getAbsolutePath(), transcriptFile.getAbsolutePath());
+    }
+
+    /**
+     * Voiced syllables with pauses between sentences, and a transcript of matching length.
+     * The aligner finds no real words in it, so it mostly measures the search with failed
+     * ranges, which is its slowest path.
+     */
+    private static synchronized BatchLipSync.Clip synthetic(int seconds) throws IOException {
+        File folder = new File(System.getProperty("java.io.tmpdir"), "lipsync-bench");
+        folder.mkdirs();
+        File wavFile = new File(folder, "synthetic-" + seconds + "s.wav");
+        File transcriptFile = new File(folder, "synthetic-" + seconds + "s.txt");
+
+        if (!wavFile.isFile() || !transcriptFile.isFile()) {
+            writeSyntheticWav(wavFile, seconds);
+
+            StringBuilder transcript = new StringBuilder();
+            int wordCount = 0;
+            for (int i = 0; wordCount < seconds * WORDS_PER_SECOND; i++) {
+                String sentence = SENTENCES[i % SENTENCES.length];
+                transcript.append(sentence).append('\n');
+                wordCount += sentence.split(" ").length;
+            }
+            Files.write(transcriptFile.toPath(), transcript.toString().getBytes(Charset.forName("UTF-8")));
+        }
+        return new BatchLipSync.Clip(wavFile.getAbsolutePath(), transcriptFile.getAbsolutePath());
+    }
+
+    private static void writeSyntheticWav(File file, int seconds) throws IOException {
+        int sampleRate = WavFile.SAMPLE_RATE;
+        int sampleCount = seconds * sampleRate;
+        Random random = new Random(42);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeBytes("RIFF");
+            out.writeInt(Integer.reverseBytes(36 + 2 * sampleCount));
+            out.writeBytes("WAVEfmt ");
+            out.writeInt(Integer.reverseBytes(16));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeInt(Integer.reverseBytes(sampleRate));
+            out.writeInt(Integer.reverseBytes(2 * sampleRate));
+            out.writeShort(Short.reverseBytes((short) 2));
+            out.writeShort(Short.reverseBytes((short) 16));
+            out.writeBytes("data");
+            out.writeInt(Integer.reverseBytes(2 * sampleCount));
+
+            int syllableLength = sampleRate / 5;
+            double pitch = 120;
+            for (int i = 0; i < sampleCount; i++) {
+                int syllable = i / syllableLength;
+                int position = i % syllableLength;
+                if (position == 0) {
+                    pitch = 100 + 60 * random.nextDouble();
+                }
+
+                double value = random.nextGaussian() * 30;
+                // 3 voiced syllables out of 4, a pause every 12 syllables
+                if (syllable % 4 != 3 && syllable % 12 != 11) {
+                    double envelope = Math.sin(Math.PI * position / syllableLength);
+                    double t = (double) i / sampleRate;
+                    double voice = 0;
+                    for (int harmonic = 1; harmonic <= 8; harmonic++) {
+                        voice += Math.sin(2 * Math.PI * pitch * harmonic * t) / harmonic;
+                    }
+                    value += 6000 * envelope * voice;
+                }
+                out.writeShort(Short.reverseBytes((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value))));
+            }
+        }
+    }
+
+    static String readTranscript(BatchLipSync.Clip clip) throws IOException {
+        return new String(Files.readAllBytes(new File(clip.getTranscriptPath()).toPath()), Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Fresh copies of pass results, as they are before the fixes modify them.
+     */
+    static AlignmentTable copy(AlignmentTable alignedWords) {
+        AlignmentTable copies = new AlignmentTable(alignedWords.size());
+        for (int i = 0; i < alignedWords.size(); i++) {
+            copies.add(alignedWords.getSpelling(i), alignedWords.getWordResult(i), alignedWords.isDeleted(i), alignedWords.isInserted(i));
+        }
+        return copies;
+    }
+
+    /**
+     * The pipeline logs a lot on System.err, which would end up in the measurements.
+     */
+    static void silenceLogs() {
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        Logger.getLogger("").setLevel(Level.WARNING);
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,74 @@
+package fr.brochu.puppet.lipsync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading an aligner: Sphinx context and acoustic model, dictionary compilation
+ * (cold cache) or mapping (warm cache). Each measurement uses a new registry.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ModelLoadBenchmark {
+    private File warmCacheFolder;
+    private File coldCacheFolder;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        BenchmarkClips.silenceLogs();
+        warmCacheFolder = Files.createTempDirectory("lipsync-bench-cache").toFile();
+        loadAligner(warmCacheFolder);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        coldCacheFolder = Files.createTempDirectory("lipsync-bench-cache").toFile();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        BenchmarkClips.delete(coldCacheFolder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        BenchmarkClips.delete(warmCacheFolder);
+    }
+
+    @Benchmark
+    public PhoneticSpeechAligner coldCache() throws IOException {
+        return loadAligner(coldCacheFolder);
+    }
+
+    @Benchmark
+    public PhoneticSpeechAligner warmCache() throws IOException {
+        return loadAligner(warmCacheFolder);
+    }
+
+    private static PhoneticSpeechAligner loadAligner(File cacheFolder) throws IOException {
+        ModelRegistry modelRegistry = new ModelRegistry(ModelRegistry.SPHINX_CONFIG_PATH, ModelRegistry.ACOUSTIC_MODEL_PATH, ModelRegistry.G2P_MODEL_PATH);
+        modelRegistry.setCacheFolder(cacheFolder);
+        PhoneticSpeechAligner aligner = modelRegistry.acquireAligner(LipSync.WORD_DICTIONARY_PATH, BenchmarkClips.SILENT_PROGRESS);
+        aligner.getDictionary().allocate();
+        return aligner;
+    }
+}
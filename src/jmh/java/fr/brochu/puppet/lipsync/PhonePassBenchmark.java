@@ -0,0 +1,54 @@
+package fr.brochu.puppet.lipsync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phone pass after a word pass, for each way of aligning phones: global search,
+ * windows around the aligned words, or segments of the word pass path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class PhonePassBenchmark {
+    @Param({"5", "30", "120"})
+    public String clip;
+
+    @Param({"global", "windowed", "joint"})
+    public String phoneAlignment;
+
+    private LipSync lipSync;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkClips.silenceLogs();
+        BatchLipSync.Clip benchmarkClip = BenchmarkClips.get(clip);
+        lipSync = new LipSync(benchmarkClip.getWavPath(), benchmarkClip.getTranscriptPath(), BenchmarkClips.SILENT_PROGRESS);
+        lipSync.setWindowedPhoneAlignment("windowed".equals(phoneAlignment));
+        lipSync.setJointAlignment("joint".equals(phoneAlignment));
+        lipSync.openAudio();
+        lipSync.extractFeatures();
+        lipSync.alignWords();
+    }
+
+    @Benchmark
+    public void phonePass() throws IOException {
+        lipSync.alignPhones();
+    }
+}
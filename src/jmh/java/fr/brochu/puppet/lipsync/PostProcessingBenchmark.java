@@ -0,0 +1,91 @@
+package fr.brochu.puppet.lipsync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Alignment fixes (statistics, incomplete words, word boundaries, missing words) and
+ * exports, on the pass results of a clip computed once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PostProcessingBenchmark {
+    @Param({"5", "30", "120"})
+    public String clip;
+
+    private String wavPath;
+    private LipSync lipSync;
+    private AlignmentTable passWords;
+    private AlignmentTable passPhones;
+    private AlignmentTable fixedWords;
+    private AlignmentTable fixedPhones;
+    private PapagayoExporter papagayoExporter;
+    private List<AbstractTimelineExporter> exporters;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkClips.silenceLogs();
+        BatchLipSync.Clip benchmarkClip = BenchmarkClips.get(clip);
+        wavPath = benchmarkClip.getWavPath();
+        lipSync = new LipSync(wavPath, benchmarkClip.getTranscriptPath(), BenchmarkClips.SILENT_PROGRESS);
+        lipSync.openAudio();
+        lipSync.extractFeatures();
+        lipSync.alignWords();
+        lipSync.alignPhones();
+        passWords = lipSync.getAlignedWords();
+        passPhones = lipSync.getAlignedPhoneList();
+
+        lipSync.setAlignment(BenchmarkClips.copy(passWords), BenchmarkClips.copy(passPhones));
+        lipSync.fixAlignment();
+        fixedWords = lipSync.getAlignedWords();
+        fixedPhones = lipSync.getAlignedPhoneList();
+
+        papagayoExporter = new PapagayoExporter();
+        exporters = Arrays.asList(papagayoExporter, new JsonTimelineExporter(), new MohoExporter(), new RhubarbExporter());
+    }
+
+    // The fixes modify the alignment, each call starts over from the pass results
+    @Setup(Level.Invocation)
+    public void resetAlignment() {
+        lipSync.setAlignment(BenchmarkClips.copy(passWords), BenchmarkClips.copy(passPhones));
+    }
+
+    @Benchmark
+    public void fixes() {
+        lipSync.fixAlignment();
+    }
+
+    @Benchmark
+    public String export() {
+        return papagayoExporter.toString(new Timeline(fixedWords, fixedPhones, lipSync.getTranscript().getPhoneIndex(), wavPath));
+    }
+
+    // Every format from one timeline, on the benchmark thread
+    @Benchmark
+    public void exportAll(Blackhole blackhole) {
+        Timeline timeline = new Timeline(fixedWords, fixedPhones, lipSync.getTranscript().getPhoneIndex(), wavPath);
+        for (AbstractTimelineExporter exporter : exporters) {
+            blackhole.consume(exporter.toString(timeline));
+        }
+    }
+}
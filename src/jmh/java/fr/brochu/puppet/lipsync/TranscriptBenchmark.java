@@ -0,0 +1,54 @@
+package fr.brochu.puppet.lipsync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transcript expansion: tokenizing and looking up the pronunciation of every word.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TranscriptBenchmark {
+    @Param({"5", "30", "120"})
+    public String clip;
+
+    private ModelRegistry modelRegistry;
+    private PhoneticSpeechAligner aligner;
+    private String text;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkClips.silenceLogs();
+        text = BenchmarkClips.readTranscript(BenchmarkClips.get(clip));
+        modelRegistry = ModelRegistry.getInstance();
+        aligner = modelRegistry.acquireAligner(LipSync.WORD_DICTIONARY_PATH, BenchmarkClips.SILENT_PROGRESS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        modelRegistry.releaseAligner(aligner);
+    }
+
+    @Benchmark
+    public Transcript expand() throws IOException {
+        return new Transcript(text, aligner.getCompiledDictionary(), aligner.getG2PCache(), aligner.getDictionary());
+    }
+}
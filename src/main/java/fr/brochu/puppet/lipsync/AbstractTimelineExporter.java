@@ -0,0 +1,189 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Text format of a {@link Timeline}, streamed through a buffered writer. Characters
+ * the charset cannot encode are replaced.
+ */
+public abstract class AbstractTimelineExporter implements TimelineExporter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String name;
+    private final String extension;
+    private final Charset charset;
+    private final char[] digits = new char[20];
+    private int frameRate;
+    private VisemeMap visemeMap;
+
+    protected AbstractTimelineExporter(String name, String extension, Charset charset, int frameRate, String visemeMapName) {
+        this.name = name;
+        this.extension = extension;
+        this.charset = charset;
+        this.frameRate = frameRate;
+        try {
+            this.visemeMap = VisemeMap.load(visemeMapName);
+        } catch (IOException e) {
+            throw new IllegalStateException("Missing built-in viseme map " + visemeMapName, e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getExtension() {
+        return extension;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    @Override
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    @Override
+    public void setFrameRate(int frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive: " + frameRate);
+        }
+        this.frameRate = frameRate;
+    }
+
+    @Override
+    public VisemeMap getVisemeMap() {
+        return visemeMap;
+    }
+
+    @Override
+    public void setVisemeMap(VisemeMap visemeMap) {
+        this.visemeMap = visemeMap;
+    }
+
+    @Override
+    public void write(Timeline timeline, WritableByteChannel channel) throws IOException {
+        CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        Writer writer = Channels.newWriter(channel, encoder, BUFFER_SIZE);
+        write(timeline, writer);
+        writer.flush();
+    }
+
+    /**
+     * Write the file to a buffered writer, which is neither flushed nor closed.
+     */
+    public abstract void write(Timeline timeline, Writer writer) throws IOException;
+
+    /**
+     * @return the whole file, for small alignments and tests
+     */
+    public String toString(Timeline timeline) {
+        StringWriter writer = new StringWriter();
+        try {
+            write(timeline, writer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    protected long toFrame(long time) {
+        return (long) (time / 1000d * frameRate);
+    }
+
+    /**
+     * Decimal digits written from a scratch buffer, instead of a String per number.
+     */
+    protected void writeNumber(Writer writer, long value) throws IOException {
+        if (value < 0) {
+            writer.write('-');
+            if (value == Long.MIN_VALUE) {
+                writer.write("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        writer.write(digits, start, digits.length - start);
+    }
+
+    /**
+     * Mouth changes of the timeline at the exporter frame rate: the rest viseme at
+     * frame 0, the viseme of each phone at its start, and rest again at the end of a
+     * word followed by silence. Of several changes on the same frame the last wins,
+     * and a change to the current viseme is dropped.
+     */
+    protected Cues getCues(Timeline timeline) {
+        Cues cues = new Cues(timeline.getPhoneCount() + timeline.getWordCount() + 1);
+        cues.add(0, visemeMap.getRest());
+        for (int word = 0; word < timeline.getWordCount(); word++) {
+            int firstPhone = timeline.getFirstPhone(word);
+            for (int phone = firstPhone; phone < firstPhone + timeline.getPhoneCount(word); phone++) {
+                cues.add(toFrame(timeline.getPhoneStart(phone)), visemeMap.getViseme(timeline.getPhone(phone)));
+            }
+            if (word == timeline.getWordCount() - 1 || timeline.getWordStart(word + 1) > timeline.getWordEnd(word)) {
+                cues.add(toFrame(timeline.getWordEnd(word)), visemeMap.getRest());
+            }
+        }
+        return cues;
+    }
+
+    protected static class Cues {
+        private long[] frames;
+        private String[] visemes;
+        private int size = 0;
+
+        private Cues(int capacity) {
+            frames = new long[Math.max(1, capacity)];
+            visemes = new String[frames.length];
+        }
+
+        private void add(long frame, String viseme) {
+            if (size > 0 && frame <= frames[size - 1]) {
+                // Same frame, or overlapping phones: replace the last cue and keep its frame
+                size--;
+                frame = frames[size];
+            }
+            if (size > 0 && viseme.equals(visemes[size - 1])) {
+                return;
+            }
+            if (size == frames.length) {
+                frames = Arrays.copyOf(frames, size * 2);
+                visemes = Arrays.copyOf(visemes, size * 2);
+            }
+            frames[size] = frame;
+            visemes[size] = viseme;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getFrame(int index) {
+            return frames[index];
+        }
+
+        public String getViseme(int index) {
+            return visemes[index];
+        }
+    }
+}
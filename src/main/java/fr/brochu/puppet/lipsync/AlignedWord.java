@@ -3,40 +3,98 @@ package fr.brochu.puppet.lipsync;
 import edu.cmu.sphinx.result.WordResult;
 import edu.cmu.sphinx.util.TimeFrame;
 
-import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * View of a row of an {@link AlignmentTable}.
+ *
+ * Reads and writes go to the table. Each public field of the former class has
+ * accessors instead: spelling and wordResult are set when the row is added, the
+ * flags have getters and setters, treatments are added one at a time, and the
+ * time frame set by the fixes replaces the decoder one in {@link #getBestTimeFrame()}.
+ */
 public class AlignedWord {
-    public String spelling;
-    public WordResult wordResult;
-    public TimeFrame timeFrame;
-    public boolean deleted = false;
-    public boolean inserted = false;
-    public boolean ignored = false;
-    public List<Treatment> treatments = new ArrayList<>();
+    private final AlignmentTable table;
+    private final int index;
 
+    /**
+     * Standalone word, in a table of its own.
+     */
     public AlignedWord(String spelling, WordResult wordResult, boolean deleted, boolean inserted) {
-        this.spelling = spelling;
-        this.wordResult = wordResult;
-        this.deleted = deleted;
-        this.inserted = inserted;
+        this.table = new AlignmentTable(1);
+        this.index = table.add(spelling, wordResult, deleted, inserted);
+    }
+
+    AlignedWord(AlignmentTable table, int index) {
+        this.table = table;
+        this.index = index;
+    }
+
+    public AlignmentTable getTable() {
+        return table;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getSpelling() {
+        return table.getSpelling(index);
+    }
+
+    public WordResult getWordResult() {
+        return table.getWordResult(index);
+    }
+
+    public boolean isDeleted() {
+        return table.isDeleted(index);
+    }
+
+    public void setDeleted(boolean deleted) {
+        table.setDeleted(index, deleted);
+    }
+
+    public boolean isInserted() {
+        return table.isInserted(index);
+    }
+
+    public void setInserted(boolean inserted) {
+        table.setInserted(index, inserted);
+    }
+
+    public boolean isIgnored() {
+        return table.isIgnored(index);
+    }
+
+    public void setIgnored(boolean ignored) {
+        table.setIgnored(index, ignored);
+    }
+
+    public void setTimeFrame(TimeFrame timeFrame) {
+        table.setTimeFrame(index, timeFrame.getStart(), timeFrame.getEnd());
     }
 
     public void addTreatment(Treatment treatment) {
-        this.treatments.add(treatment);
+        table.addTreatment(index, treatment);
     }
 
-    public TimeFrame getBestTimeFrame() {
-        if (timeFrame != null)
-            return timeFrame;
+    public List<Treatment> getTreatments() {
+        return AlignmentTable.toTreatments(table.getTreatments(index));
+    }
 
-        if (wordResult != null)
-            return wordResult.getTimeFrame();
+    public TimeFrame getBestTimeFrame() {
+        return table.getTimeFrame(index);
+    }
 
-        return null;
+    /**
+     * @deprecated the table keeps a single time frame per row, use {@link #getBestTimeFrame()}
+     */
+    @Deprecated
+    public TimeFrame getTimeFrame() {
+        return getBestTimeFrame();
     }
 
     public String toString() {
-        return spelling;
+        return getSpelling();
     }
-}
\ No newline at end of file
+}
@@ -1,7 +1,6 @@
 package fr.brochu.puppet.lipsync;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class AlignmentStats {
@@ -11,33 +10,41 @@ public class AlignmentStats {
     private PhoneDurationStat allPhonesStats;
     private HashMap<String, PhoneDurationStat> phoneStats;
 
-    public void analyze(List<AlignedWord> alignedPhones) {
+    public void analyze(AlignmentTable alignedPhones) {
         // Alignment accuracy stats
         phoneCount = alignedPhones.size();
         nonAlignedCount = 0;
         insertedCount = 0;
-        for (AlignedWord phone : alignedPhones) {
-            if (phone.deleted) {
+        for (int i = 0; i < alignedPhones.size(); i++) {
+            if (alignedPhones.isDeleted(i)) {
                 nonAlignedCount++;
             }
-            if (phone.inserted) {
+            if (alignedPhones.isInserted(i)) {
                 insertedCount++;
             }
         }
 
-        // Phone duration stats
+        // Phone duration stats, by spelling id while reading the table
         allPhonesStats = new PhoneDurationStat();
-        phoneStats = new HashMap<String, PhoneDurationStat>();
+        PhoneDurationStat[] statsById = new PhoneDurationStat[alignedPhones.getSpellingCount()];
 
-        for (AlignedWord w : alignedPhones) {
-            if (w.wordResult != null) {
-                long duration = w.wordResult.getTimeFrame().getEnd() - w.wordResult.getTimeFrame().getStart();
+        for (int i = 0; i < alignedPhones.size(); i++) {
+            if (alignedPhones.getWordResult(i) != null) {
+                long duration = alignedPhones.getResultEnd(i) - alignedPhones.getResultStart(i);
                 allPhonesStats.pushDuration(duration);
 
-                if (!phoneStats.containsKey(w.spelling)) {
-                    phoneStats.put(w.spelling, new PhoneDurationStat());
+                int id = alignedPhones.getSpellingId(i);
+                if (statsById[id] == null) {
+                    statsById[id] = new PhoneDurationStat();
                 }
-                phoneStats.get(w.spelling).pushDuration(duration);
+                statsById[id].pushDuration(duration);
+            }
+        }
+
+        phoneStats = new HashMap<String, PhoneDurationStat>();
+        for (int id = 0; id < statsById.length; id++) {
+            if (statsById[id] != null) {
+                phoneStats.put(alignedPhones.getSpellingById(id), statsById[id]);
             }
         }
     }
@@ -0,0 +1,270 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.result.WordResult;
+import edu.cmu.sphinx.util.TimeFrame;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aligned words or phones, one row per entry, stored column by column.
+ *
+ * Spellings are ids into a table of the distinct spellings, times are the best time
+ * frame of the entry: the decoder result at first, then whatever the fixes set.
+ * Treatments are a bitmask of {@link Treatment} ordinals. The fixes and the exporters
+ * read and update rows in place, so a long transcript costs a few arrays instead of
+ * an object graph per phone. {@link AlignedWord} is a view of a row.
+ */
+public class AlignmentTable {
+    private static final int DELETED = 1;
+    private static final int INSERTED = 2;
+    private static final int IGNORED = 4;
+    private static final int TIMED = 8;
+    private static final int MAX_SPELLINGS = 1 << 16;
+
+    private final List<String> spellings = new ArrayList<>();
+    private final Map<String, Integer> spellingIds = new HashMap<>();
+    private short[] ids;
+    private WordResult[] results;
+    private long[] starts;
+    private long[] ends;
+    private byte[] flags;
+    private int[] treatments;
+    private int size = 0;
+
+    public AlignmentTable() {
+        this(16);
+    }
+
+    public AlignmentTable(int capacity) {
+        capacity = Math.max(1, capacity);
+        ids = new short[capacity];
+        results = new WordResult[capacity];
+        starts = new long[capacity];
+        ends = new long[capacity];
+        flags = new byte[capacity];
+        treatments = new int[capacity];
+    }
+
+    /**
+     * Copy the rows of views, fixes included.
+     */
+    public static AlignmentTable of(List<AlignedWord> alignedWords) {
+        AlignmentTable table = new AlignmentTable(alignedWords.size());
+        for (AlignedWord alignedWord : alignedWords) {
+            table.add(alignedWord.getTable(), alignedWord.getIndex());
+        }
+        return table;
+    }
+
+    /**
+     * @param wordResult decoder result, null for a deleted entry
+     * @return index of the new row
+     */
+    public int add(String spelling, WordResult wordResult, boolean deleted, boolean inserted) {
+        int index = newRow(intern(spelling));
+        results[index] = wordResult;
+        flags[index] = (byte) ((deleted ? DELETED : 0) | (inserted ? INSERTED : 0));
+        if (wordResult != null) {
+            TimeFrame timeFrame = wordResult.getTimeFrame();
+            setTimeFrame(index, timeFrame.getStart(), timeFrame.getEnd());
+        }
+        return index;
+    }
+
+    /**
+     * Copy a row of another table, fixes included.
+     *
+     * @return index of the new row
+     */
+    public int add(AlignmentTable table, int row) {
+        int index = newRow(table == this ? ids[row] : intern(table.getSpelling(row)));
+        results[index] = table.results[row];
+        starts[index] = table.starts[row];
+        ends[index] = table.ends[row];
+        flags[index] = table.flags[row];
+        treatments[index] = table.treatments[row];
+        return index;
+    }
+
+    private int newRow(short id) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            results = Arrays.copyOf(results, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            treatments = Arrays.copyOf(treatments, capacity);
+        }
+        ids[size] = id;
+        return size++;
+    }
+
+    private short intern(String spelling) {
+        Integer id = spellingIds.get(spelling);
+        if (id == null) {
+            if (spellings.size() == MAX_SPELLINGS) {
+                throw new IllegalStateException("More than " + MAX_SPELLINGS + " distinct spellings");
+            }
+            id = spellings.size();
+            spellings.add(spelling);
+            spellingIds.put(spelling, id);
+        }
+        return (short) id.intValue();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getSpelling(int index) {
+        return spellings.get(getSpellingId(index));
+    }
+
+    /**
+     * @return id of the spelling of the row, from 0 to {@link #getSpellingCount()} excluded
+     */
+    public int getSpellingId(int index) {
+        return ids[index] & 0xFFFF;
+    }
+
+    public int getSpellingCount() {
+        return spellings.size();
+    }
+
+    public String getSpellingById(int id) {
+        return spellings.get(id);
+    }
+
+    /**
+     * @return decoder result of the row, null if it was not aligned or comes from the result cache
+     */
+    public WordResult getWordResult(int index) {
+        return results[index];
+    }
+
+    public long getResultStart(int index) {
+        return results[index].getTimeFrame().getStart();
+    }
+
+    public long getResultEnd(int index) {
+        return results[index].getTimeFrame().getEnd();
+    }
+
+    public boolean isDeleted(int index) {
+        return (flags[index] & DELETED) != 0;
+    }
+
+    public boolean isInserted(int index) {
+        return (flags[index] & INSERTED) != 0;
+    }
+
+    public void setDeleted(int index, boolean deleted) {
+        flags[index] = (byte) (deleted ? flags[index] | DELETED : flags[index] & ~DELETED);
+    }
+
+    public void setInserted(int index, boolean inserted) {
+        flags[index] = (byte) (inserted ? flags[index] | INSERTED : flags[index] & ~INSERTED);
+    }
+
+    public boolean isIgnored(int index) {
+        return (flags[index] & IGNORED) != 0;
+    }
+
+    public void setIgnored(int index, boolean ignored) {
+        flags[index] = (byte) (ignored ? flags[index] | IGNORED : flags[index] & ~IGNORED);
+    }
+
+    /**
+     * @return false if the row has neither a decoder result nor a time frame set by the fixes
+     */
+    public boolean hasTimeFrame(int index) {
+        return (flags[index] & TIMED) != 0;
+    }
+
+    public long getStart(int index) {
+        return starts[index];
+    }
+
+    public long getEnd(int index) {
+        return ends[index];
+    }
+
+    public void setTimeFrame(int index, long start, long end) {
+        starts[index] = start;
+        ends[index] = end;
+        flags[index] |= TIMED;
+    }
+
+    /**
+     * @return best time frame of the row, null if it has none
+     */
+    public TimeFrame getTimeFrame(int index) {
+        if (!hasTimeFrame(index)) {
+            return null;
+        }
+        WordResult result = results[index];
+        if (result != null && result.getTimeFrame().getStart() == starts[index] && result.getTimeFrame().getEnd() == ends[index]) {
+            return result.getTimeFrame();
+        }
+        return new TimeFrame(starts[index], ends[index]);
+    }
+
+    public void addTreatment(int index, Treatment treatment) {
+        treatments[index] |= 1 << treatment.ordinal();
+    }
+
+    /**
+     * @return treatments of the row, as a bitmask of their ordinals
+     */
+    public int getTreatments(int index) {
+        return treatments[index];
+    }
+
+    /**
+     * @return the treatments of a bitmask, in declaration order
+     */
+    public static List<Treatment> toTreatments(int mask) {
+        List<Treatment> list = new ArrayList<>(Integer.bitCount(mask));
+        for (Treatment treatment : Treatment.values()) {
+            if ((mask & 1 << treatment.ordinal()) != 0) {
+                list.add(treatment);
+            }
+        }
+        return list;
+    }
+
+    public AlignedWord get(int index) {
+        return new AlignedWord(this, index);
+    }
+
+    /**
+     * @return views of the rows, created as they are read
+     */
+    public List<AlignedWord> asList() {
+        return new AbstractList<AlignedWord>() {
+            @Override
+            public AlignedWord get(int index) {
+                if (index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+                }
+                return AlignmentTable.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return asList().toString();
+    }
+}
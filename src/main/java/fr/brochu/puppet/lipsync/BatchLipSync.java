@@ -0,0 +1,313 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many wav/transcript pairs on a bounded pool of workers.
+ *
+ * Workers take their aligners from the shared {@link ModelRegistry}, so each worker
+ * ends up with its own warm Sphinx components and the models are loaded at most
+ * once per worker for the whole batch. Every clip gets its own result folder, as a
+ * single {@link LipSync} run does.
+ */
+public class BatchLipSync {
+    private static final Logger logger = Logger.getLogger(BatchLipSync.class.getSimpleName());
+
+    private final int workerCount;
+    private final int alignerParallelism;
+    private final ModelRegistry modelRegistry;
+    private final ProgressListener progressListener;
+    private boolean jointAlignment = false;
+    private boolean windowedPhoneAlignment = false;
+    private boolean diffAlignment = false;
+    private boolean adaptiveBeam = false;
+    private boolean speechDetection = false;
+    private List<String> exportFormats = Arrays.asList(PapagayoExporter.NAME, BinaryTimelineExporter.NAME);
+    private JobLog.Level logLevel = JobLog.getDefaultLevel();
+
+    public BatchLipSync(ProgressListener progressListener) {
+        this(Runtime.getRuntime().availableProcessors(), ModelRegistry.getInstance(), progressListener);
+    }
+
+    public BatchLipSync(int workerCount, ModelRegistry modelRegistry, ProgressListener progressListener) {
+        this.workerCount = Math.max(1, workerCount);
+        // Clips already keep the cores busy, do not also fan out each clip's ranges
+        this.alignerParallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / this.workerCount);
+        this.modelRegistry = modelRegistry;
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Sync every clip and wait for the whole batch.
+     *
+     * @return the clips, with their error set if their sync failed
+     */
+    public List<Clip> run(List<Clip> clips) throws InterruptedException {
+        progressListener.onStart();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(workerCount, Math.max(1, clips.size())), new WorkerThreadFactory());
+        final AtomicInteger doneCount = new AtomicInteger();
+        final int clipCount = clips.size();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (final Clip clip : clips) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            sync(clip);
+                        } finally {
+                            progressListener.onProgress(100. * doneCount.incrementAndGet() / clipCount);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.log(Level.SEVERE, "Batch:: worker failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        progressListener.onStop();
+        return clips;
+    }
+
+    /**
+     * Sync a single clip on the calling thread, writing the export formats and a text
+     * report into its result folder.
+     *
+     * @return false if the sync failed, the clip error is then set
+     */
+    public boolean sync(Clip clip) {
+        try {
+            logger.info("Batch:: start " + clip);
+            LipSync lipSync = new LipSync(clip.getWavPath(), clip.getTranscriptPath(), new ClipProgressListener(), modelRegistry);
+            lipSync.setJointAlignment(jointAlignment);
+            lipSync.setWindowedPhoneAlignment(windowedPhoneAlignment);
+            lipSync.setDiffAlignment(diffAlignment);
+            lipSync.setAdaptiveBeam(adaptiveBeam);
+            lipSync.setSpeechDetection(speechDetection);
+            lipSync.setAlignerParallelism(alignerParallelism);
+            lipSync.setExportPipeline(ExportPipeline.parse(exportFormats));
+            lipSync.setLogLevel(logLevel);
+            lipSync.sync();
+            lipSync.exportReport();
+            clip.resultFolder = lipSync.getResultFolder();
+            return true;
+        } catch (Exception e) {
+            clip.error = e;
+            logger.log(Level.WARNING, "Batch:: failed " + clip, e);
+            return false;
+        }
+    }
+
+    public void setJointAlignment(boolean jointAlignment) {
+        this.jointAlignment = jointAlignment;
+    }
+
+    public void setWindowedPhoneAlignment(boolean windowedPhoneAlignment) {
+        this.windowedPhoneAlignment = windowedPhoneAlignment;
+    }
+
+    public void setDiffAlignment(boolean diffAlignment) {
+        this.diffAlignment = diffAlignment;
+    }
+
+    public void setAdaptiveBeam(boolean adaptiveBeam) {
+        this.adaptiveBeam = adaptiveBeam;
+    }
+
+    public void setSpeechDetection(boolean speechDetection) {
+        this.speechDetection = speechDetection;
+    }
+
+    /**
+     * @param exportFormats format specs of every clip, see {@link ExportPipeline}
+     */
+    public void setExportFormats(List<String> exportFormats) {
+        this.exportFormats = new ArrayList<>(exportFormats);
+    }
+
+    public void setLogLevel(JobLog.Level logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Read a manifest: one clip per line, wav path then transcript path separated by a tab.
+     * Relative paths are resolved against the manifest folder, empty lines and lines
+     * starting with # are skipped.
+     */
+    public static List<Clip> readManifest(File manifest) throws IOException {
+        List<Clip> clips = new ArrayList<>();
+        File folder = manifest.getAbsoluteFile().getParentFile();
+        List<String> lines = Files.readAllLines(manifest.toPath(), Charset.forName("UTF-8"));
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] paths = line.split("\t");
+            if (paths.length != 2) {
+                throw new IOException(String.format("%s:%d: expected <wav>\\t<transcript>", manifest.getPath(), i + 1));
+            }
+            clips.add(new Clip(resolve(folder, paths[0].trim()), resolve(folder, paths[1].trim())));
+        }
+        return clips;
+    }
+
+    /**
+     * Find every foo.wav of a folder having a foo.txt transcript next to it.
+     */
+    public static List<Clip> scanFolder(File folder) {
+        List<Clip> clips = new ArrayList<>();
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return clips;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isFile() && name.toLowerCase().endsWith(".wav")) {
+                File transcript = new File(folder, name.substring(0, name.length() - 4) + ".txt");
+                if (transcript.isFile()) {
+                    clips.add(new Clip(file.getAbsolutePath(), transcript.getAbsolutePath()));
+                } else {
+                    logger.warning("Batch:: no transcript for " + file.getAbsolutePath());
+                }
+            }
+        }
+        return clips;
+    }
+
+    private static String resolve(File folder, String path) {
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(folder, path);
+        }
+        return file.getAbsolutePath();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: BatchLipSync <manifest file | folder> [worker count]");
+            System.exit(1);
+        }
+
+        File source = new File(args[0]);
+        List<Clip> clips = source.isDirectory() ? scanFolder(source) : readManifest(source);
+        int workerCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        BatchLipSync batch = new BatchLipSync(workerCount, ModelRegistry.getInstance(), new ProgressListener() {
+            @Override
+            public void onStart() {
+
+            }
+
+            @Override
+            public void onProgress(double progress) {
+                logger.info(String.format("Batch:: %.0f%%", progress));
+            }
+
+            @Override
+            public void onStop() {
+
+            }
+        });
+        int failed = 0;
+        for (Clip clip : batch.run(clips)) {
+            if (clip.getError() != null) {
+                failed++;
+            }
+        }
+        ModelRegistry.getInstance().deallocate();
+        logger.info(String.format("Batch:: %d clips, %d failed", clips.size(), failed));
+        System.exit(failed > 0 ? 2 : 0);
+    }
+
+    public static class Clip {
+        private final String wavPath;
+        private final String transcriptPath;
+        private volatile File resultFolder;
+        private volatile Exception error;
+
+        public Clip(String wavPath, String transcriptPath) {
+            this.wavPath = wavPath;
+            this.transcriptPath = transcriptPath;
+        }
+
+        public String getWavPath() {
+            return wavPath;
+        }
+
+        public String getTranscriptPath() {
+            return transcriptPath;
+        }
+
+        public File getResultFolder() {
+            return resultFolder;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return new File(wavPath).getName();
+        }
+    }
+
+    private static class ClipProgressListener implements ProgressListener {
+        @Override
+        public void onStart() {
+
+        }
+
+        @Override
+        public void onProgress(double progress) {
+
+        }
+
+        @Override
+        public void onStop() {
+
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "lipsync-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
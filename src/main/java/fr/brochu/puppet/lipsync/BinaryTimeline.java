@@ -0,0 +1,256 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped reader of the binary timeline written by {@link BinaryTimelineExporter}.
+ *
+ * Nothing is parsed when the file is opened: records are read in place and strings
+ * decoded when first asked for, so a whole season of clips can be opened at once.
+ * Starts are in frames and never decrease from a record to the next, lookups by time
+ * are binary searches. Reads are absolute, a reader can be shared between threads.
+ *
+ * Layout, big-endian, every section aligned on 4 bytes:
+ * <pre>
+ * header    magic "LSTL", version, frame rate, end frame, audio path, viseme map name,
+ *           rest viseme, word count, phone count, string count, string data size,
+ *           reserved: 12 ints
+ * strings   string count + 1 offsets into the data, then the UTF-8 data
+ * words     start, end, spelling, first phone, treatments: 5 ints
+ * phones    start, end, spelling: 3 ints, viseme, flags: 2 shorts, treatments: int
+ * </pre>
+ * Strings are referenced by their index in the table, treatments are bitmasks of
+ * {@link Treatment} ordinals.
+ */
+public class BinaryTimeline {
+    static final int MAGIC = 0x4C53544C;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 48;
+    static final int WORD_SIZE = 20;
+    static final int PHONE_SIZE = 20;
+    static final int PHONE_IGNORED = 1;
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int frameRate;
+    private final int endFrame;
+    private final int wordCount;
+    private final int phoneCount;
+    private final int stringCount;
+    private final int stringData;
+    private final int words;
+    private final int phones;
+    private final String[] strings;
+
+    public BinaryTimeline(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a binary timeline");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported binary timeline version " + buffer.getInt(4));
+        }
+        frameRate = buffer.getInt(8);
+        endFrame = buffer.getInt(12);
+        wordCount = buffer.getInt(28);
+        phoneCount = buffer.getInt(32);
+        stringCount = buffer.getInt(36);
+        stringData = HEADER_SIZE + 4 * (stringCount + 1);
+        words = align(stringData + buffer.getInt(40));
+        phones = words + wordCount * WORD_SIZE;
+        if (phones + (long) phoneCount * PHONE_SIZE > buffer.capacity()) {
+            throw new IOException("Truncated binary timeline");
+        }
+        strings = new String[stringCount];
+    }
+
+    /**
+     * Map the file, read-only. The mapping stays valid once the file is closed.
+     */
+    public static BinaryTimeline open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new BinaryTimeline(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static int align(int offset) {
+        return (offset + 3) & ~3;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * @return end of the last timed phone
+     */
+    public int getEndFrame() {
+        return endFrame;
+    }
+
+    /**
+     * @return the frame containing the time, in milliseconds, as the exporters count frames
+     */
+    public int toFrame(long time) {
+        return (int) (time / 1000d * frameRate);
+    }
+
+    public String getAudioPath() {
+        return getString(buffer.getInt(16));
+    }
+
+    public String getVisemeMapName() {
+        return getString(buffer.getInt(20));
+    }
+
+    public String getRestViseme() {
+        return getString(buffer.getInt(24));
+    }
+
+    public int getStringCount() {
+        return stringCount;
+    }
+
+    public String getString(int id) {
+        String string = strings[id];
+        if (string == null) {
+            int start = buffer.getInt(HEADER_SIZE + 4 * id);
+            int end = buffer.getInt(HEADER_SIZE + 4 * (id + 1));
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(stringData + start + i);
+            }
+            string = new String(bytes, CHARSET);
+            strings[id] = string;
+        }
+        return string;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    public String getWord(int word) {
+        return getString(buffer.getInt(words + word * WORD_SIZE + 8));
+    }
+
+    public int getWordStart(int word) {
+        return buffer.getInt(words + word * WORD_SIZE);
+    }
+
+    public int getWordEnd(int word) {
+        return buffer.getInt(words + word * WORD_SIZE + 4);
+    }
+
+    public int getFirstPhone(int word) {
+        return buffer.getInt(words + word * WORD_SIZE + 12);
+    }
+
+    public int getPhoneCount(int word) {
+        return (word + 1 < wordCount ? getFirstPhone(word + 1) : phoneCount) - getFirstPhone(word);
+    }
+
+    public int getWordTreatments(int word) {
+        return buffer.getInt(words + word * WORD_SIZE + 16);
+    }
+
+    public int getPhoneCount() {
+        return phoneCount;
+    }
+
+    public String getPhone(int phone) {
+        return getString(buffer.getInt(phones + phone * PHONE_SIZE + 8));
+    }
+
+    public int getPhoneStart(int phone) {
+        return buffer.getInt(phones + phone * PHONE_SIZE);
+    }
+
+    public int getPhoneEnd(int phone) {
+        return buffer.getInt(phones + phone * PHONE_SIZE + 4);
+    }
+
+    public int getVisemeId(int phone) {
+        return buffer.getShort(phones + phone * PHONE_SIZE + 12) & 0xFFFF;
+    }
+
+    public String getViseme(int phone) {
+        return getString(getVisemeId(phone));
+    }
+
+    public boolean isPhoneIgnored(int phone) {
+        return (buffer.getShort(phones + phone * PHONE_SIZE + 14) & PHONE_IGNORED) != 0;
+    }
+
+    public int getPhoneTreatments(int phone) {
+        return buffer.getInt(phones + phone * PHONE_SIZE + 16);
+    }
+
+    /**
+     * @return the last word starting at or before the frame, -1 if there is none
+     */
+    public int findWord(int frame) {
+        return search(words, WORD_SIZE, wordCount, frame + 1) - 1;
+    }
+
+    /**
+     * @return the last phone starting at or before the frame, -1 if there is none
+     */
+    public int findPhone(int frame) {
+        return search(phones, PHONE_SIZE, phoneCount, frame + 1) - 1;
+    }
+
+    /**
+     * Phones from the first starting at or after a frame to the first starting at or
+     * after another are those starting within that range.
+     *
+     * @return the first phone starting at or after the frame, the phone count if there is none
+     */
+    public int findPhoneFrom(int frame) {
+        return search(phones, PHONE_SIZE, phoneCount, frame);
+    }
+
+    /**
+     * Within a word, a phone holds the mouth until the next one starts, as the mouth
+     * cues of the text formats do.
+     *
+     * @return the phone whose viseme shows on the frame, -1 between words
+     */
+    public int getPhoneAt(int frame) {
+        int word = findWord(frame);
+        if (word < 0 || frame >= getWordEnd(word)) {
+            return -1;
+        }
+        return findPhone(frame);
+    }
+
+    /**
+     * @param time in milliseconds
+     * @return mouth shape at the time, the rest viseme between words
+     */
+    public String getVisemeAt(long time) {
+        int phone = getPhoneAt(toFrame(time));
+        return phone >= 0 ? getViseme(phone) : getRestViseme();
+    }
+
+    /**
+     * @return index of the first record starting at or after the frame, count if none
+     */
+    private int search(int offset, int recordSize, int count, int frame) {
+        int low = 0, high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getInt(offset + middle * recordSize) < frame) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,191 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary timeline (.timeline), the layout is described in {@link BinaryTimeline}.
+ * 100 frames per second and Preston Blair mouth shapes by default.
+ *
+ * Record starts are clamped so they never decrease, as the mouth cues of the text
+ * formats are, which keeps the reader lookups binary searches.
+ */
+public class BinaryTimelineExporter implements TimelineExporter {
+    public static final String NAME = "binary";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_VISEMES = 1 << 16;
+
+    private int frameRate = 100;
+    private VisemeMap visemeMap;
+
+    public BinaryTimelineExporter() {
+        try {
+            this.visemeMap = VisemeMap.load(VisemeMap.PRESTON_BLAIR);
+        } catch (IOException e) {
+            throw new IllegalStateException("Missing built-in viseme map " + VisemeMap.PRESTON_BLAIR, e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getExtension() {
+        return ".timeline";
+    }
+
+    @Override
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    @Override
+    public void setFrameRate(int frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive: " + frameRate);
+        }
+        this.frameRate = frameRate;
+    }
+
+    @Override
+    public VisemeMap getVisemeMap() {
+        return visemeMap;
+    }
+
+    @Override
+    public void setVisemeMap(VisemeMap visemeMap) {
+        this.visemeMap = visemeMap;
+    }
+
+    @Override
+    public void write(Timeline timeline, WritableByteChannel channel) throws IOException {
+        StringTable strings = new StringTable();
+        int audioPath = strings.add(timeline.getAudioPath());
+        int visemeMapName = strings.add(visemeMap.getName());
+        int rest = strings.add(visemeMap.getRest());
+        // Visemes first, their ids are shorts
+        int[] visemes = new int[timeline.getPhoneCount()];
+        for (int phone = 0; phone < timeline.getPhoneCount(); phone++) {
+            visemes[phone] = strings.add(visemeMap.getViseme(timeline.getPhone(phone)));
+            if (visemes[phone] >= MAX_VISEMES) {
+                throw new IOException("More than " + MAX_VISEMES + " visemes in " + visemeMap);
+            }
+        }
+        int[] wordSpellings = new int[timeline.getWordCount()];
+        for (int word = 0; word < timeline.getWordCount(); word++) {
+            wordSpellings[word] = strings.add(timeline.getWord(word));
+        }
+        int[] phoneSpellings = new int[timeline.getPhoneCount()];
+        for (int phone = 0; phone < timeline.getPhoneCount(); phone++) {
+            phoneSpellings[phone] = strings.add(timeline.getPhone(phone));
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.putInt(BinaryTimeline.MAGIC);
+        buffer.putInt(BinaryTimeline.VERSION);
+        buffer.putInt(frameRate);
+        buffer.putInt(toFrame(timeline.getLastTime()));
+        buffer.putInt(audioPath);
+        buffer.putInt(visemeMapName);
+        buffer.putInt(rest);
+        buffer.putInt(timeline.getWordCount());
+        buffer.putInt(timeline.getPhoneCount());
+        buffer.putInt(strings.size());
+        buffer.putInt(strings.dataSize);
+        buffer.putInt(0);
+
+        int offset = 0;
+        for (byte[] string : strings.bytes) {
+            ensure(channel, buffer, 4);
+            buffer.putInt(offset);
+            offset += string.length;
+        }
+        ensure(channel, buffer, 4);
+        buffer.putInt(offset);
+        for (byte[] string : strings.bytes) {
+            for (int written = 0; written < string.length; ) {
+                ensure(channel, buffer, 1);
+                int length = Math.min(buffer.remaining(), string.length - written);
+                buffer.put(string, written, length);
+                written += length;
+            }
+        }
+        for (int padding = BinaryTimeline.align(offset) - offset; padding > 0; padding--) {
+            ensure(channel, buffer, 1);
+            buffer.put((byte) 0);
+        }
+
+        int start = 0;
+        for (int word = 0; word < timeline.getWordCount(); word++) {
+            ensure(channel, buffer, BinaryTimeline.WORD_SIZE);
+            start = Math.max(start, toFrame(timeline.getWordStart(word)));
+            buffer.putInt(start);
+            buffer.putInt(toFrame(timeline.getWordEnd(word)));
+            buffer.putInt(wordSpellings[word]);
+            buffer.putInt(timeline.getFirstPhone(word));
+            buffer.putInt(timeline.getWordTreatments(word));
+        }
+        start = 0;
+        for (int phone = 0; phone < timeline.getPhoneCount(); phone++) {
+            ensure(channel, buffer, BinaryTimeline.PHONE_SIZE);
+            start = Math.max(start, toFrame(timeline.getPhoneStart(phone)));
+            buffer.putInt(start);
+            buffer.putInt(toFrame(timeline.getPhoneEnd(phone)));
+            buffer.putInt(phoneSpellings[phone]);
+            buffer.putShort((short) visemes[phone]);
+            buffer.putShort((short) (timeline.isPhoneIgnored(phone) ? BinaryTimeline.PHONE_IGNORED : 0));
+            buffer.putInt(timeline.getPhoneTreatments(phone));
+        }
+        flush(channel, buffer);
+    }
+
+    private int toFrame(long time) {
+        return (int) (time / 1000d * frameRate);
+    }
+
+    /**
+     * Flush the buffer to the channel if it has less than the space needed.
+     */
+    private static void ensure(WritableByteChannel channel, ByteBuffer buffer, int space) throws IOException {
+        if (buffer.remaining() < space) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static class StringTable {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<byte[]> bytes = new ArrayList<>();
+        private int dataSize = 0;
+
+        private int add(String string) {
+            Integer id = ids.get(string);
+            if (id == null) {
+                id = bytes.size();
+                byte[] encoded = string.getBytes(BinaryTimeline.CHARSET);
+                ids.put(string, id);
+                bytes.add(encoded);
+                dataSize += encoded.length;
+            }
+            return id;
+        }
+
+        private int size() {
+            return bytes.size();
+        }
+    }
+}
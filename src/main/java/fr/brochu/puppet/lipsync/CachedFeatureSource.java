@@ -0,0 +1,50 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.frontend.BaseDataProcessor;
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.frontend.DataProcessingException;
+import edu.cmu.sphinx.frontend.Signal;
+import edu.cmu.sphinx.util.TimeFrame;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Feeds the scorer with a time slice of a {@link FeatureCache} instead of running
+ * the front end on the audio again. Declared as "cachedFeatureSource" in the Sphinx
+ * configuration and plugged in by setting "trivialScorer->frontend".
+ */
+public class CachedFeatureSource extends BaseDataProcessor {
+    private List<Data> slice = Collections.emptyList();
+    private int position = 0;
+    private int frameCount = 0;
+
+    public CachedFeatureSource() {
+    }
+
+    public void setFeatures(FeatureCache features, TimeFrame timeFrame) {
+        this.slice = features.slice(timeFrame);
+        this.position = 0;
+        this.frameCount = 0;
+        for (Data data : slice) {
+            if (!(data instanceof Signal)) {
+                frameCount++;
+            }
+        }
+    }
+
+    /**
+     * @return number of feature frames in the current slice, signals excluded
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public Data getData() throws DataProcessingException {
+        if (position >= slice.size()) {
+            return null;
+        }
+        return slice.get(position++);
+    }
+}
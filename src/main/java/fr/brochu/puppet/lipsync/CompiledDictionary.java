@@ -0,0 +1,314 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.util.props.ConfigurationManagerUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Binary, memory-mapped form of a Sphinx text dictionary.
+ *
+ * The text dictionary is compiled once into a cache folder, then every process maps
+ * the compiled file. Lookups are a binary search over the sorted spellings and do not
+ * allocate. Layout:
+ * <pre>
+ * int magic, int version, long sourceLength, long sourceLastModified
+ * int entryCount, int phoneCount
+ * phoneCount x (byte length, ASCII phone name)
+ * entryCount x int entry offset
+ * entries: short length, char[length] spelling, byte pronunciationCount,
+ *          pronunciationCount x (byte phoneCount, byte[phoneCount] phone ids)
+ * </pre>
+ */
+public class CompiledDictionary {
+    private static final Logger logger = Logger.getLogger(CompiledDictionary.class.getSimpleName());
+
+    private static final int MAGIC = 0x4c534443; // "LSDC"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final IntBuffer offsets;
+    private final String[] phones;
+    private final int entryCount;
+
+    private CompiledDictionary(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a compiled dictionary");
+        }
+        this.entryCount = buffer.getInt(24);
+        int phoneCount = buffer.getInt(28);
+
+        int position = 32;
+        phones = new String[phoneCount];
+        for (int i = 0; i < phoneCount; i++) {
+            int length = buffer.get(position) & 0xFF;
+            byte[] name = new byte[length];
+            for (int j = 0; j < length; j++) {
+                name[j] = buffer.get(position + 1 + j);
+            }
+            phones[i] = new String(name, UTF8).intern();
+            position += 1 + length;
+        }
+
+        ByteBuffer offsetBuffer = buffer.duplicate();
+        offsetBuffer.position(position);
+        offsetBuffer.limit(position + 4 * entryCount);
+        this.offsets = offsetBuffer.slice().asIntBuffer();
+    }
+
+    /**
+     * Map the compiled form of a dictionary, compiling it first into the cache folder
+     * if it is missing or older than the text dictionary.
+     *
+     * @param dictionaryPath Sphinx dictionary location, "resource:" paths are supported
+     */
+    public static CompiledDictionary open(String dictionaryPath, File cacheFolder) throws IOException {
+        URL url = ConfigurationManagerUtils.resourceToURL(dictionaryPath);
+        URLConnection connection = url.openConnection();
+        long sourceLength = connection.getContentLengthLong();
+        long sourceLastModified = connection.getLastModified();
+
+        String name = new File(url.getPath()).getName();
+        File compiledFile = new File(cacheFolder, name + ".bin");
+
+        if (!isUpToDate(compiledFile, sourceLength, sourceLastModified)) {
+            logger.info("Compiling dictionary " + dictionaryPath + " to " + compiledFile);
+            compile(url, compiledFile, sourceLength, sourceLastModified);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(compiledFile, "r")) {
+            FileChannel channel = file.getChannel();
+            return new CompiledDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static boolean isUpToDate(File compiledFile, long sourceLength, long sourceLastModified) throws IOException {
+        if (!compiledFile.isFile() || compiledFile.length() < 32) {
+            return false;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(compiledFile, "r")) {
+            return file.readInt() == MAGIC
+                    && file.readInt() == VERSION
+                    && file.readLong() == sourceLength
+                    && file.readLong() == sourceLastModified;
+        }
+    }
+
+    private static void compile(URL source, File compiledFile, long sourceLength, long sourceLastModified) throws IOException {
+        TreeMap<String, List<List<String>>> entries = new TreeMap<>();
+        Map<String, Integer> phoneIds = new HashMap<>();
+        List<String> phoneNames = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(source.openStream(), UTF8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 2) {
+                    continue;
+                }
+                String spelling = tokens[0];
+                int variant = spelling.lastIndexOf('(');
+                if (variant > 0 && spelling.endsWith(")")) {
+                    spelling = spelling.substring(0, variant);
+                }
+
+                List<String> pronunciation = new ArrayList<>();
+                for (int i = 1; i < tokens.length; i++) {
+                    if (!phoneIds.containsKey(tokens[i])) {
+                        phoneIds.put(tokens[i], phoneNames.size());
+                        phoneNames.add(tokens[i]);
+                    }
+                    pronunciation.add(tokens[i]);
+                }
+
+                List<List<String>> pronunciations = entries.get(spelling);
+                if (pronunciations == null) {
+                    pronunciations = new ArrayList<>();
+                    entries.put(spelling, pronunciations);
+                }
+                pronunciations.add(pronunciation);
+            }
+        }
+        if (phoneNames.size() > 255) {
+            throw new IOException("Too many phones to compile " + source);
+        }
+
+        File folder = compiledFile.getAbsoluteFile().getParentFile();
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Cannot create " + folder);
+        }
+        File tmpFile = File.createTempFile(compiledFile.getName(), ".tmp", folder);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceLength);
+            out.writeLong(sourceLastModified);
+            out.writeInt(entries.size());
+            out.writeInt(phoneNames.size());
+
+            int headerSize = 32;
+            for (String phone : phoneNames) {
+                byte[] name = phone.getBytes(UTF8);
+                out.writeByte(name.length);
+                out.write(name);
+                headerSize += 1 + name.length;
+            }
+
+            int offset = headerSize + 4 * entries.size();
+            for (Map.Entry<String, List<List<String>>> entry : entries.entrySet()) {
+                out.writeInt(offset);
+                offset += 2 + 2 * entry.getKey().length() + 1;
+                for (List<String> pronunciation : entry.getValue()) {
+                    offset += 1 + pronunciation.size();
+                }
+            }
+
+            for (Map.Entry<String, List<List<String>>> entry : entries.entrySet()) {
+                out.writeShort(entry.getKey().length());
+                out.writeChars(entry.getKey());
+                out.writeByte(entry.getValue().size());
+                for (List<String> pronunciation : entry.getValue()) {
+                    out.writeByte(pronunciation.size());
+                    for (String phone : pronunciation) {
+                        out.writeByte(phoneIds.get(phone));
+                    }
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), compiledFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return entry index of the word, -1 if it is not in the dictionary
+     */
+    public int indexOf(String word) {
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(middle, word);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private int compare(int entry, String word) {
+        int offset = offsets.get(entry);
+        int length = buffer.getShort(offset) & 0xFFFF;
+        int n = Math.min(length, word.length());
+        for (int i = 0; i < n; i++) {
+            int difference = buffer.getChar(offset + 2 + 2 * i) - word.charAt(i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - word.length();
+    }
+
+    public int getPronunciationCount(int entry) {
+        return buffer.get(getPronunciationsOffset(entry)) & 0xFF;
+    }
+
+    public int getPhoneCount(int entry, int pronunciation) {
+        return buffer.get(getPronunciationOffset(entry, pronunciation)) & 0xFF;
+    }
+
+    public String getPhone(int entry, int pronunciation, int phone) {
+        return phones[buffer.get(getPronunciationOffset(entry, pronunciation) + 1 + phone) & 0xFF];
+    }
+
+    /**
+     * @return phones of the first pronunciation of the word, null if it is not in the dictionary
+     */
+    public List<String> getPhones(String word) {
+        int entry = indexOf(word);
+        if (entry < 0) {
+            return null;
+        }
+        int phoneCount = getPhoneCount(entry, 0);
+        List<String> wordPhones = new ArrayList<>(phoneCount);
+        for (int i = 0; i < phoneCount; i++) {
+            wordPhones.add(getPhone(entry, 0, i));
+        }
+        return wordPhones;
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * Write the entries of the given words in Sphinx text dictionary format.
+     *
+     * @return the words that are not in the dictionary
+     */
+    public Set<String> writeEntries(Collection<String> words, Writer writer) throws IOException {
+        Set<String> missingWords = new LinkedHashSet<>();
+        StringBuilder line = new StringBuilder();
+        for (String word : new LinkedHashSet<>(words)) {
+            int entry = indexOf(word);
+            if (entry < 0) {
+                missingWords.add(word);
+                continue;
+            }
+            for (int pronunciation = 0; pronunciation < getPronunciationCount(entry); pronunciation++) {
+                line.setLength(0);
+                line.append(word);
+                if (pronunciation > 0) {
+                    line.append('(').append(pronunciation + 1).append(')');
+                }
+                for (int i = 0; i < getPhoneCount(entry, pronunciation); i++) {
+                    line.append(' ').append(getPhone(entry, pronunciation, i));
+                }
+                line.append('\n');
+                writer.write(line.toString());
+            }
+        }
+        return missingWords;
+    }
+
+    private int getPronunciationsOffset(int entry) {
+        int offset = offsets.get(entry);
+        return offset + 2 + 2 * (buffer.getShort(offset) & 0xFFFF);
+    }
+
+    private int getPronunciationOffset(int entry, int pronunciation) {
+        int offset = getPronunciationsOffset(entry) + 1;
+        for (int i = 0; i < pronunciation; i++) {
+            offset += 1 + (buffer.get(offset) & 0xFF);
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,148 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a {@link Timeline} in every configured format, each format to its own file
+ * and on its own thread. The timeline is computed once and read by all of them.
+ *
+ * Formats are given as "format[:frameRate[:visemeMap]]", for example "moho:24" or
+ * "rhubarb:100:rhubarb", the viseme map being a built-in name or a properties file,
+ * see {@link VisemeMap}.
+ */
+public class ExportPipeline {
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "lipsync-export-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final List<TimelineExporter> exporters;
+
+    public ExportPipeline(List<TimelineExporter> exporters) {
+        this.exporters = Collections.unmodifiableList(new ArrayList<>(exporters));
+    }
+
+    /**
+     * @return exporters of the format specs, a new instance each
+     * @throws IllegalArgumentException if a spec is malformed or names an unknown format
+     */
+    public static ExportPipeline parse(List<String> specs) throws IOException {
+        List<TimelineExporter> exporters = new ArrayList<>();
+        for (String spec : specs) {
+            exporters.add(parse(spec));
+        }
+        return new ExportPipeline(exporters);
+    }
+
+    /**
+     * @return a new exporter for the format spec, "format[:frameRate[:visemeMap]]"
+     * @throws IllegalArgumentException if the spec is malformed or names an unknown format
+     */
+    public static TimelineExporter parse(String spec) throws IOException {
+        String[] parts = spec.split(":", 3);
+        TimelineExporter exporter = create(parts[0]);
+        if (parts.length > 1 && !parts[1].isEmpty()) {
+            exporter.setFrameRate(Integer.parseInt(parts[1]));
+        }
+        if (parts.length > 2) {
+            exporter.setVisemeMap(VisemeMap.load(parts[2]));
+        }
+        return exporter;
+    }
+
+    /**
+     * @throws IllegalArgumentException if no exporter has this name
+     */
+    public static TimelineExporter create(String name) {
+        for (TimelineExporter exporter : ServiceLoader.load(TimelineExporter.class)) {
+            if (exporter.getName().equals(name)) {
+                return exporter;
+            }
+        }
+        throw new IllegalArgumentException("Unknown export format " + name + ", expected one of " + getFormatNames());
+    }
+
+    public static List<String> getFormatNames() {
+        List<String> names = new ArrayList<>();
+        for (TimelineExporter exporter : ServiceLoader.load(TimelineExporter.class)) {
+            names.add(exporter.getName());
+        }
+        return names;
+    }
+
+    public List<TimelineExporter> getExporters() {
+        return exporters;
+    }
+
+    /**
+     * Write every format to baseName + its extension in the folder, and wait for all
+     * of them. A format that fails does not stop the others.
+     *
+     * @return the files written, in the order of the exporters
+     * @throws IOException the first failure, once every format is done
+     */
+    public List<File> export(final Timeline timeline, File folder, String baseName) throws IOException {
+        List<File> files = new ArrayList<>();
+        List<Future<Void>> futures = new ArrayList<>();
+        for (final TimelineExporter exporter : exporters) {
+            final File file = new File(folder, baseName + exporter.getExtension());
+            files.add(file);
+            if (exporters.size() == 1) {
+                write(exporter, timeline, file);
+                break;
+            }
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    write(exporter, timeline, file);
+                    return null;
+                }
+            }));
+        }
+
+        IOException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while exporting " + baseName, e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return files;
+    }
+
+    public static void write(TimelineExporter exporter, Timeline timeline, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            exporter.write(timeline, channel);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.frontend.DataEndSignal;
+import edu.cmu.sphinx.frontend.DataStartSignal;
+import edu.cmu.sphinx.frontend.DoubleData;
+import edu.cmu.sphinx.frontend.FloatData;
+import edu.cmu.sphinx.frontend.FrontEnd;
+import edu.cmu.sphinx.frontend.endpoint.SpeechEndSignal;
+import edu.cmu.sphinx.frontend.endpoint.SpeechStartSignal;
+import edu.cmu.sphinx.util.TimeFrame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Front end output of a whole audio file, computed once and sliced by time frame
+ * for every decode (see {@link CachedFeatureSource}).
+ *
+ * The stream is kept as the front end produced it, speech start/end signals included,
+ * so that slices are decoded the same way as a fresh front end run would be.
+ */
+public class FeatureCache {
+    private final DataStartSignal startSignal;
+    private final List<Data> data;
+    private final long[] times;
+    private final boolean[] speechBefore;
+    private final long duration;
+
+    private FeatureCache(DataStartSignal startSignal, List<Data> data, long duration) {
+        this.startSignal = startSignal;
+        this.data = data;
+        this.duration = duration;
+        this.times = new long[data.size()];
+        this.speechBefore = new boolean[data.size() + 1];
+
+        // Signals take the time of the next frame, so a slice starting at that frame keeps them
+        long nextTime = duration;
+        for (int i = data.size() - 1; i >= 0; i--) {
+            long time = getCollectTime(data.get(i));
+            if (time >= 0) {
+                nextTime = time;
+            }
+            times[i] = nextTime;
+        }
+
+        boolean speech = false;
+        for (int i = 0; i < data.size(); i++) {
+            speechBefore[i] = speech;
+            if (data.get(i) instanceof SpeechStartSignal) {
+                speech = true;
+            } else if (data.get(i) instanceof SpeechEndSignal) {
+                speech = false;
+            }
+        }
+        speechBefore[data.size()] = speech;
+    }
+
+    /**
+     * Run the front end until the end of its current stream and keep all of its output.
+     */
+    public static FeatureCache read(FrontEnd frontEnd) {
+        DataStartSignal startSignal = null;
+        List<Data> data = new ArrayList<>();
+        long duration = 0;
+
+        Data d;
+        while ((d = frontEnd.getData()) != null) {
+            if (d instanceof DataStartSignal) {
+                startSignal = (DataStartSignal) d;
+            } else if (d instanceof DataEndSignal) {
+                // Sources give the length of the stream, frames are timed from the start of the audio
+                duration = Math.max(duration, ((DataEndSignal) d).getDuration());
+                break;
+            } else {
+                data.add(d);
+                duration = Math.max(duration, getCollectTime(d));
+            }
+        }
+
+        if (startSignal == null) {
+            startSignal = new DataStartSignal(16000);
+        }
+        return new FeatureCache(startSignal, data, duration);
+    }
+
+    /**
+     * Frames collected within the time frame, wrapped in data start/end signals.
+     * Speech signals are added at the edges when the slice cuts through speech.
+     */
+    public List<Data> slice(TimeFrame timeFrame) {
+        int from = lowerBound(timeFrame.getStart());
+        int to = timeFrame.getEnd() == Long.MAX_VALUE ? data.size() : lowerBound(timeFrame.getEnd());
+
+        List<Data> slice = new ArrayList<>(to - from + 4);
+        slice.add(startSignal);
+
+        boolean speech = speechBefore[from];
+        if (speech) {
+            slice.add(new SpeechStartSignal(from < times.length ? times[from] : duration));
+        }
+
+        long lastTime = from < times.length ? times[from] : duration;
+        for (int i = from; i < to; i++) {
+            Data d = data.get(i);
+            slice.add(d);
+            lastTime = times[i];
+        }
+
+        if (speechBefore[to]) {
+            slice.add(new SpeechEndSignal(lastTime));
+        }
+        slice.add(new DataEndSignal(lastTime - (from < times.length ? times[from] : duration)));
+        return slice;
+    }
+
+    /**
+     * Cache of a growing recording, from this cache and the output of a later front
+     * end run over its end.
+     *
+     * @param tail front end output from before the cut time to the end of the audio
+     * @param start time of the first frame to keep from this cache
+     * @param cut time from which the frames of the tail replace those of this cache
+     */
+    public FeatureCache join(FeatureCache tail, long start, long cut) {
+        int from = lowerBound(start);
+        int to = Math.max(from, lowerBound(cut));
+        int tailFrom = tail.lowerBound(cut);
+        List<Data> joined = new ArrayList<>(to - from + tail.data.size() - tailFrom + 2);
+
+        if (speechBefore[from]) {
+            joined.add(new SpeechStartSignal(from < times.length ? times[from] : duration));
+        }
+        joined.addAll(data.subList(from, to));
+        // Keep speech signals paired where the two front end runs disagree
+        if (speechBefore[to] && !tail.speechBefore[tailFrom]) {
+            joined.add(new SpeechEndSignal(cut));
+        } else if (!speechBefore[to] && tail.speechBefore[tailFrom]) {
+            joined.add(new SpeechStartSignal(cut));
+        }
+        joined.addAll(tail.data.subList(tailFrom, tail.data.size()));
+        return new FeatureCache(startSignal, joined, Math.max(duration, tail.duration));
+    }
+
+    public int getFrameCount() {
+        return data.size();
+    }
+
+    /**
+     * @return audio duration in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    private int lowerBound(long time) {
+        int index = Arrays.binarySearch(times, time);
+        if (index < 0) {
+            return -index - 1;
+        }
+        while (index > 0 && times[index - 1] == time) {
+            index--;
+        }
+        return index;
+    }
+
+    private static long getCollectTime(Data data) {
+        if (data instanceof FloatData) {
+            return ((FloatData) data).getCollectTime();
+        }
+        if (data instanceof DoubleData) {
+            return ((DoubleData) data).getCollectTime();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,178 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.linguist.g2p.G2PConverter;
+import edu.cmu.sphinx.linguist.g2p.Path;
+import edu.cmu.sphinx.util.props.ConfigurationManagerUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Pronunciations generated by the G2P model for out of vocabulary words.
+ *
+ * Results are kept in an LRU map and appended to a store file, one word per line
+ * ("word\tp1 p2|p1 p3"), which is read back on startup. A word seen in a previous run
+ * or job does not go through the FST again.
+ */
+public class G2PCache {
+    private static final Logger logger = Logger.getLogger(G2PCache.class.getSimpleName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_PRONUNCIATIONS = 2;
+
+    private final String g2pModelPath;
+    private final File storeFile;
+    private final Map<String, List<List<String>>> pronunciations;
+    private G2PConverter converter;
+    private boolean converterFailed = false;
+
+    public G2PCache(String g2pModelPath, File storeFile, final int capacity) {
+        this.g2pModelPath = g2pModelPath;
+        this.storeFile = storeFile;
+        this.pronunciations = new LinkedHashMap<String, List<List<String>>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<List<String>>> eldest) {
+                return size() > capacity;
+            }
+        };
+        loadStore();
+    }
+
+    private void loadStore() {
+        if (!storeFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(storeFile), UTF8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                List<List<String>> wordPronunciations = new ArrayList<>();
+                for (String pronunciation : line.substring(tab + 1).split("\\|")) {
+                    wordPronunciations.add(Arrays.asList(pronunciation.trim().split(" ")));
+                }
+                pronunciations.put(line.substring(0, tab), wordPronunciations);
+            }
+        } catch (IOException e) {
+            logger.warning("Cannot read G2P cache " + storeFile + ": " + e);
+        }
+    }
+
+    /**
+     * @return pronunciations of the word, best first, null if they cannot be generated
+     */
+    public synchronized List<List<String>> getPronunciations(String word) {
+        List<List<String>> wordPronunciations = pronunciations.get(word);
+        if (wordPronunciations != null) {
+            return wordPronunciations;
+        }
+
+        G2PConverter converter = getConverter();
+        if (converter == null) {
+            return null;
+        }
+
+        wordPronunciations = new ArrayList<>();
+        for (Path path : converter.phoneticize(word, MAX_PRONUNCIATIONS)) {
+            if (!path.getPath().isEmpty()) {
+                wordPronunciations.add(new ArrayList<>(path.getPath()));
+            }
+        }
+        if (wordPronunciations.isEmpty()) {
+            return null;
+        }
+
+        pronunciations.put(word, wordPronunciations);
+        append(word, wordPronunciations);
+        return wordPronunciations;
+    }
+
+    /**
+     * @return phones of the best pronunciation of the word, null if it cannot be generated
+     */
+    public List<String> getPhones(String word) {
+        List<List<String>> wordPronunciations = getPronunciations(word);
+        return wordPronunciations == null ? null : new ArrayList<>(wordPronunciations.get(0));
+    }
+
+    /**
+     * Write the entries of the given words in Sphinx text dictionary format. Words
+     * that cannot be generated are skipped.
+     */
+    public void writeEntries(Collection<String> words, Writer writer) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (String word : words) {
+            List<List<String>> wordPronunciations = getPronunciations(word);
+            if (wordPronunciations == null) {
+                continue;
+            }
+            for (int i = 0; i < wordPronunciations.size(); i++) {
+                line.setLength(0);
+                line.append(word);
+                if (i > 0) {
+                    line.append('(').append(i + 1).append(')');
+                }
+                for (String phone : wordPronunciations.get(i)) {
+                    line.append(' ').append(phone);
+                }
+                line.append('\n');
+                writer.write(line.toString());
+            }
+        }
+    }
+
+    private G2PConverter getConverter() {
+        if (converter == null && !converterFailed) {
+            try {
+                converter = new G2PConverter(ConfigurationManagerUtils.resourceToURL(g2pModelPath));
+            } catch (Exception e) {
+                converterFailed = true;
+                logger.warning("Cannot load G2P model " + g2pModelPath + ": " + e);
+            }
+        }
+        return converter;
+    }
+
+    private void append(String word, List<List<String>> wordPronunciations) {
+        StringBuilder line = new StringBuilder(word).append('\t');
+        for (int i = 0; i < wordPronunciations.size(); i++) {
+            if (i > 0) {
+                line.append('|');
+            }
+            List<String> phones = wordPronunciations.get(i);
+            for (int j = 0; j < phones.size(); j++) {
+                if (j > 0) {
+                    line.append(' ');
+                }
+                line.append(phones.get(j));
+            }
+        }
+        line.append('\n');
+
+        File folder = storeFile.getAbsoluteFile().getParentFile();
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(storeFile, true), UTF8)) {
+            writer.write(line.toString());
+        } catch (IOException e) {
+            logger.warning("Cannot write G2P cache " + storeFile + ": " + e);
+        }
+    }
+}
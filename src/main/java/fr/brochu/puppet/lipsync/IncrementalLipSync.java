@@ -0,0 +1,287 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.linguist.acoustic.Unit;
+import edu.cmu.sphinx.result.WordResult;
+import edu.cmu.sphinx.util.TimeFrame;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lip sync of a recording that is still in progress.
+ *
+ * Audio is appended in chunks of 16 kHz, 16 bit, mono PCM and the transcript in
+ * confirmed pieces. Every {@link #STEP} of new audio, the new audio goes through the
+ * front end and its features are added to those of the tail that is not finalized
+ * yet. The tail is then decoded against the first pending words, as many as it could
+ * hold. Words that end more than {@link #LATENCY} before the end of the audio are
+ * finalized, their phones are aligned within the word time frame, and both are given
+ * to the listener. Finalized audio is dropped, so the tail window stays short.
+ *
+ * Decoding runs on the thread calling {@link #appendAudio} and {@link #finish}.
+ */
+public class IncrementalLipSync {
+    /** Audio to accumulate before decoding the tail again, in milliseconds */
+    public static final long STEP = 1000;
+    /** Minimum delay between the end of a word and the end of the audio to finalize it */
+    public static final long LATENCY = 500;
+    /** Longest tail window, older audio is given up and its words reported as missing */
+    public static final long MAX_WINDOW = 20000;
+    /** Audio before the new audio run through the front end again, for its live CMN and speech marker to settle */
+    static final long FEATURE_CONTEXT = 2000;
+    /** End of the previous features replaced by the new run, where they lacked the audio that followed */
+    static final long FEATURE_EDGE = 300;
+    /** Shortest word, bounds the number of pending words decoded against the tail */
+    static final long MIN_WORD_LENGTH = 100;
+
+    public interface Listener {
+        /**
+         * @param word finalized word, deleted if it could not be found in the audio
+         * @param phones phones of the word, deleted ones could not be aligned
+         */
+        public void onWordAligned(AlignedWord word, List<AlignedWord> phones);
+    }
+
+    private final ModelRegistry modelRegistry;
+    private final Listener listener;
+    private final PhoneticSpeechAligner wordAligner;
+    private final PhoneticSpeechAligner phoneAligner;
+    private final List<TranscriptWord> pendingWords = new ArrayList<>();
+    private final JobLog log = new JobLog("incremental", JobLog.getDefaultLevel(), System.err);
+
+    private short[] samples = new short[WavFile.SAMPLE_RATE * 10];
+    private int sampleCount = 0;
+    private long firstSample = 0;
+    private long lastDecodeEnd = 0;
+    private FeatureCache features;
+    private long featuresEnd = -1;
+    private int pendingByte = -1;
+    private boolean finished = false;
+
+    public IncrementalLipSync(Listener listener) throws IOException {
+        this(listener, ModelRegistry.getInstance());
+    }
+
+    public IncrementalLipSync(Listener listener, ModelRegistry modelRegistry) throws IOException {
+        this.listener = listener;
+        this.modelRegistry = modelRegistry;
+        // Windows are decoded without progress reporting
+        this.wordAligner = modelRegistry.acquireAligner(LipSync.WORD_DICTIONARY_PATH, null);
+        this.phoneAligner = modelRegistry.acquireAligner(LipSync.PHONE_DICTIONARY_PATH, null);
+        wordAligner.setLog(log);
+        phoneAligner.setLog(log);
+    }
+
+    /**
+     * Append transcript text that the actor is known to say after what was confirmed before.
+     */
+    public synchronized void confirmText(String text) throws IOException {
+        checkNotFinished();
+        Transcript transcript = new Transcript(text, wordAligner.getCompiledDictionary(), wordAligner.getG2PCache(), wordAligner.getDictionary());
+        pendingWords.addAll(transcript.getWords());
+    }
+
+    /**
+     * Append little-endian 16 bit PCM audio, decoding the tail window when enough new audio is available.
+     */
+    public synchronized void appendAudio(byte[] pcm, int offset, int length) throws IOException {
+        checkNotFinished();
+        int end = offset + length;
+        ensureCapacity(sampleCount + (length + 1) / 2);
+        if (pendingByte >= 0 && offset < end) {
+            samples[sampleCount++] = (short) ((pcm[offset++] << 8) | pendingByte);
+            pendingByte = -1;
+        }
+        for (; offset + 1 < end; offset += 2) {
+            samples[sampleCount++] = (short) ((pcm[offset + 1] << 8) | (pcm[offset] & 0xFF));
+        }
+        if (offset < end) {
+            pendingByte = pcm[offset] & 0xFF;
+        }
+
+        if (getAudioEnd() - lastDecodeEnd >= STEP) {
+            update(false);
+        }
+    }
+
+    /**
+     * Finalize every remaining word and give the aligners back. Nothing can be appended afterwards.
+     */
+    public synchronized void finish() throws IOException {
+        checkNotFinished();
+        try {
+            update(true);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Give the aligners back without finalizing the remaining words.
+     */
+    public synchronized void close() {
+        if (!finished) {
+            finished = true;
+            modelRegistry.releaseAligner(wordAligner);
+            modelRegistry.releaseAligner(phoneAligner);
+            log.close();
+        }
+    }
+
+    /**
+     * @return duration of the audio appended so far, in milliseconds
+     */
+    public synchronized long getAudioEnd() {
+        return (firstSample + sampleCount) * 1000L / WavFile.SAMPLE_RATE;
+    }
+
+    private void update(boolean last) throws IOException {
+        long audioEnd = getAudioEnd();
+        lastDecodeEnd = audioEnd;
+        if (pendingWords.isEmpty() || sampleCount == 0) {
+            return;
+        }
+
+        long windowStart = getWindowStart();
+        TimeFrame window = new TimeFrame(windowStart, audioEnd);
+        extractFeatures(windowStart, audioEnd);
+
+        // Later words cannot have been said yet, they would only slow the search down
+        int wordCount = (int) Math.min(pendingWords.size(), (audioEnd - windowStart) / MIN_WORD_LENGTH + 1);
+        List<String> spellings = new ArrayList<>();
+        for (TranscriptWord word : pendingWords.subList(0, wordCount)) {
+            spellings.add(word.getSpelling());
+        }
+        WordResult[] results = wordAligner.alignWindows(features, Collections.singletonList(spellings), Collections.singletonList(window)).get(0);
+
+        int finalizedCount = 0;
+        if (last) {
+            finalizedCount = pendingWords.size();
+        } else {
+            long horizon = audioEnd - LATENCY;
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null && results[i].getTimeFrame().getEnd() <= horizon) {
+                    finalizedCount = i + 1;
+                }
+            }
+            // Bound the latency and the buffer when the actor goes off script. The window
+            // never exceeds MAX_WINDOW, the buffered audio does until words are finalized.
+            if (finalizedCount == 0 && audioEnd - getBufferStart() > MAX_WINDOW) {
+                log.warn("Incremental:: no word found in %s, giving up %s", window, pendingWords.get(0));
+                finalizedCount = 1;
+            }
+        }
+
+        if (finalizedCount > 0) {
+            finalizeWords(results, finalizedCount);
+        }
+    }
+
+    /**
+     * Bring the features of the tail up to the end of the audio. Only the audio since
+     * the previous update is new to the front end. It is run with up to
+     * {@link #FEATURE_CONTEXT} of audio before it, and the new frames replace the cached
+     * ones from {@link #FEATURE_EDGE} before their end.
+     */
+    private void extractFeatures(long windowStart, long audioEnd) {
+        long extractStart = Math.max(windowStart, featuresEnd - FEATURE_CONTEXT);
+        ShortBuffer extractSamples = ShortBuffer.wrap(samples, 0, sampleCount);
+        extractSamples.position((int) (extractStart * WavFile.SAMPLE_RATE / 1000 - firstSample));
+        FeatureCache tail = wordAligner.extractFeatures(extractSamples, firstSample);
+        if (features == null || extractStart == windowStart) {
+            features = tail;
+        } else {
+            features = features.join(tail, windowStart, featuresEnd - FEATURE_EDGE);
+        }
+        featuresEnd = audioEnd;
+    }
+
+    /**
+     * @param results results of the decoded pending words, the words after them are missing
+     */
+    private void finalizeWords(WordResult[] results, int count) throws IOException {
+        List<AlignedWord> words = new ArrayList<>();
+        List<List<String>> phoneTexts = new ArrayList<>();
+        List<TimeFrame> phoneFrames = new ArrayList<>();
+        long finalizedEnd = -1;
+
+        for (int i = 0; i < count; i++) {
+            TranscriptWord transcriptWord = pendingWords.get(i);
+            WordResult result = i < results.length ? results[i] : null;
+            words.add(new AlignedWord(transcriptWord.getSpelling(), result, result == null, false));
+            if (result != null) {
+                List<String> phones = new ArrayList<>();
+                for (Unit phone : result.getWord().getPronunciations()[0].getUnits()) {
+                    phones.add(phone.getName());
+                }
+                transcriptWord.setPhones(phones);
+                phoneTexts.add(phones);
+                phoneFrames.add(result.getTimeFrame());
+                finalizedEnd = Math.max(finalizedEnd, result.getTimeFrame().getEnd());
+            }
+        }
+
+        List<WordResult[]> phoneResults = phoneTexts.isEmpty()
+                ? Collections.<WordResult[]>emptyList()
+                : phoneAligner.alignWindows(features, phoneTexts, phoneFrames);
+
+        int aligned = 0;
+        for (int i = 0; i < count; i++) {
+            AlignedWord word = words.get(i);
+            List<String> phoneSpellings = pendingWords.get(i).getPhones();
+            WordResult[] wordPhoneResults = word.isDeleted() ? new WordResult[phoneSpellings.size()] : phoneResults.get(aligned++);
+
+            List<AlignedWord> phones = new ArrayList<>();
+            for (int j = 0; j < phoneSpellings.size(); j++) {
+                phones.add(new AlignedWord(phoneSpellings.get(j), wordPhoneResults[j], wordPhoneResults[j] == null, false));
+            }
+            listener.onWordAligned(word, phones);
+        }
+
+        pendingWords.subList(0, count).clear();
+        if (finalizedEnd < 0) {
+            // Only missing words, drop the audio nobody could use
+            finalizedEnd = getAudioEnd() - MAX_WINDOW / 2;
+        }
+        dropAudio(finalizedEnd);
+    }
+
+    private long getWindowStart() {
+        return Math.max(getBufferStart(), getAudioEnd() - MAX_WINDOW);
+    }
+
+    /**
+     * @return time of the oldest buffered sample, in milliseconds
+     */
+    private long getBufferStart() {
+        return (firstSample * 1000L + WavFile.SAMPLE_RATE - 1) / WavFile.SAMPLE_RATE;
+    }
+
+    private void dropAudio(long time) {
+        long sample = Math.min(firstSample + sampleCount, time * WavFile.SAMPLE_RATE / 1000);
+        int dropped = (int) (sample - firstSample);
+        if (dropped <= 0) {
+            return;
+        }
+        System.arraycopy(samples, dropped, samples, 0, sampleCount - dropped);
+        sampleCount -= dropped;
+        firstSample = sample;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > samples.length) {
+            short[] newSamples = new short[Math.max(capacity, samples.length * 2)];
+            System.arraycopy(samples, 0, newSamples, 0, sampleCount);
+            samples = newSamples;
+        }
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("Incremental lip sync already finished");
+        }
+    }
+}
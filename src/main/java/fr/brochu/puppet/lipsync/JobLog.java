@@ -0,0 +1,309 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Log of a single job, written asynchronously.
+ *
+ * Calls below the log level return before formatting anything. Enabled lines are
+ * formatted on the calling thread, since they often print objects the job keeps
+ * modifying, then put in a bounded buffer. A writer thread, started with the first
+ * line, drains the buffer in batches into the job log file and, optionally, the
+ * console. When the buffer is full, a job with a log file waits for room and only
+ * the console copy of the line is skipped; without a file the line is dropped. The
+ * number of dropped lines is logged once there is room again.
+ *
+ * Components logging through java.util.logging reach the job log through
+ * {@link #getHandler()}.
+ */
+public class JobLog implements Closeable {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int BATCH_SIZE = 512;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final String name;
+    private final PrintStream console;
+    private final BlockingQueue<Entry> entries = new ArrayBlockingQueue<>(CAPACITY);
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile Thread writerThread;
+    private volatile Level level;
+    private volatile boolean closed = false;
+    private volatile Writer fileWriter;
+    private final Handler handler = new Handler() {
+        private final Formatter formatter = new SimpleFormatter();
+
+        @Override
+        public void publish(LogRecord record) {
+            int value = record.getLevel().intValue();
+            Level level = value >= java.util.logging.Level.SEVERE.intValue() ? Level.ERROR
+                    : value >= java.util.logging.Level.WARNING.intValue() ? Level.WARN
+                    : value >= java.util.logging.Level.INFO.intValue() ? Level.INFO : Level.DEBUG;
+            if (!isEnabled(level)) {
+                return;
+            }
+            String message = record.getLoggerName() + ": " + formatter.formatMessage(record);
+            if (record.getThrown() != null) {
+                error(message, record.getThrown());
+            } else {
+                log(level, message);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * @param name job name, prefixed to console lines so concurrent jobs can be told apart
+     * @param console where to mirror the lines, null for the file only
+     */
+    public JobLog(String name, Level level, PrintStream console) {
+        this.name = name;
+        this.level = level;
+        this.console = console;
+    }
+
+    /**
+     * Level given by the "lipsync.logLevel" system property, INFO by default.
+     */
+    public static Level getDefaultLevel() {
+        String property = System.getProperty("lipsync.logLevel");
+        if (property != null) {
+            try {
+                return Level.valueOf(property.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown log level " + property);
+            }
+        }
+        return Level.INFO;
+    }
+
+    /**
+     * Also write the following lines to the given file, replacing its content.
+     */
+    public void setFile(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        synchronized (this) {
+            if (fileWriter != null) {
+                fileWriter.close();
+            }
+            fileWriter = writer;
+        }
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(String format, Object... args) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, args.length == 0 ? format : String.format(format, args));
+        }
+    }
+
+    public void info(String format, Object... args) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, args.length == 0 ? format : String.format(format, args));
+        }
+    }
+
+    public void warn(String format, Object... args) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, args.length == 0 ? format : String.format(format, args));
+        }
+    }
+
+    public void error(String message, Throwable throwable) {
+        if (isEnabled(Level.ERROR)) {
+            StringWriter stackTrace = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(stackTrace));
+            log(Level.ERROR, message + ": " + stackTrace.toString().trim());
+        }
+    }
+
+    /**
+     * @return handler writing the java.util.logging records it receives to this log
+     */
+    public Handler getHandler() {
+        return handler;
+    }
+
+    private void log(Level level, String message) {
+        if (closed) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        if (writerThread == null) {
+            startWriter();
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), level, message, true);
+        if (entries.offer(entry)) {
+            return;
+        }
+        if (fileWriter != null) {
+            // The file keeps every line, the job waits for the writer
+            entry = new Entry(entry.time, level, message, false);
+            try {
+                while (!closed) {
+                    if (entries.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        droppedCount.incrementAndGet();
+    }
+
+    private synchronized void startWriter() {
+        if (writerThread != null) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEntries();
+            }
+        }, "lipsync-log-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+        writerThread = thread;
+    }
+
+    /**
+     * Write the buffered lines and close the file. Lines logged afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Thread thread = writerThread;
+        if (thread != null) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (fileWriter != null) {
+                try {
+                    fileWriter.close();
+                } catch (IOException e) {
+                    System.err.println("Cannot close log of " + name + ": " + e);
+                }
+                fileWriter = null;
+            }
+        }
+    }
+
+    private void writeEntries() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder lines = new StringBuilder();
+        StringBuilder consoleLines = new StringBuilder();
+
+        while (true) {
+            Entry first;
+            try {
+                first = entries.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                first = null;
+                closed = true;
+            }
+            if (first == null) {
+                if (closed && entries.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+
+            batch.add(first);
+            entries.drainTo(batch, BATCH_SIZE - 1);
+            long dropped = droppedCount.getAndSet(0);
+            if (dropped > 0) {
+                batch.add(new Entry(System.currentTimeMillis(), Level.WARN, dropped + " log lines dropped", true));
+            }
+
+            lines.setLength(0);
+            consoleLines.setLength(0);
+            for (Entry entry : batch) {
+                int start = lines.length();
+                lines.append(dateFormat.format(new Date(entry.time)))
+                        .append(' ').append(entry.level)
+                        .append(' ').append(entry.message)
+                        .append('\n');
+                if (console != null && entry.console) {
+                    consoleLines.append('[').append(name).append("] ").append(lines, start, lines.length());
+                }
+            }
+            batch.clear();
+            write(lines.toString(), consoleLines);
+        }
+    }
+
+    private synchronized void write(String lines, CharSequence consoleLines) {
+        if (fileWriter != null) {
+            try {
+                fileWriter.write(lines);
+                fileWriter.flush();
+            } catch (IOException e) {
+                System.err.println("Cannot write log of " + name + ": " + e);
+            }
+        }
+        if (console != null && consoleLines.length() > 0) {
+            console.print(consoleLines);
+            console.flush();
+        }
+    }
+
+    private static class Entry {
+        private final long time;
+        private final Level level;
+        private final String message;
+        private final boolean console;
+
+        private Entry(long time, Level level, String message, boolean console) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+            this.console = console;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Wall time and allocated bytes of each stage of a job, plus counters.
+ *
+ * A stage is measured by a {@link Span} on the thread running it, so allocations of
+ * other threads are not included: decoding on the recognizer pool is measured by its
+ * own "decode" stage. Stages run several times are summed. Scoped views share the
+ * records of the job and prefix the names, e.g. "wordPass.iteration1".
+ * {@link #NONE} records nothing, for code running outside of a job.
+ */
+public class JobMetrics {
+    public static final String SYNC_STAGE = "sync";
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    /** Metrics that drop everything, so work done outside of a job does not pile up anywhere */
+    public static final JobMetrics NONE = new JobMetrics("", null);
+
+    private final String prefix;
+    private final Records records;
+
+    public JobMetrics() {
+        this("", new Records());
+    }
+
+    private JobMetrics(String prefix, Records records) {
+        this.prefix = prefix;
+        this.records = records;
+    }
+
+    /**
+     * @return a view of these metrics whose stage and counter names start with the given name
+     */
+    public JobMetrics scope(String name) {
+        return records == null ? this : new JobMetrics(prefix + name + ".", records);
+    }
+
+    public Span start(String stage) {
+        return new Span(prefix + stage);
+    }
+
+    public void add(String counter, long delta) {
+        if (records == null) {
+            return;
+        }
+        synchronized (records) {
+            Long value = records.counters.get(prefix + counter);
+            records.counters.put(prefix + counter, (value == null ? 0 : value) + delta);
+        }
+    }
+
+    public long getCounter(String counter) {
+        if (records == null) {
+            return 0;
+        }
+        synchronized (records) {
+            Long value = records.counters.get(prefix + counter);
+            return value == null ? 0 : value;
+        }
+    }
+
+    /**
+     * @return copies of the stages, in the order they were first run
+     */
+    public List<Stage> getStages() {
+        List<Stage> stages = new ArrayList<>();
+        if (records == null) {
+            return stages;
+        }
+        synchronized (records) {
+            for (Stage stage : records.stages.values()) {
+                stages.add(new Stage(stage));
+            }
+            return stages;
+        }
+    }
+
+    public Map<String, Long> getCounters() {
+        if (records == null) {
+            return new LinkedHashMap<>();
+        }
+        synchronized (records) {
+            return new LinkedHashMap<>(records.counters);
+        }
+    }
+
+    public void setAudioDuration(long audioDuration) {
+        if (records == null) {
+            return;
+        }
+        synchronized (records) {
+            records.audioDuration = audioDuration;
+        }
+    }
+
+    /**
+     * @return audio duration in milliseconds
+     */
+    public long getAudioDuration() {
+        if (records == null) {
+            return 0;
+        }
+        synchronized (records) {
+            return records.audioDuration;
+        }
+    }
+
+    /**
+     * @return wall time of the "sync" stage divided by the audio duration, 0 when unknown
+     */
+    public double getRealTimeFactor() {
+        if (records == null) {
+            return 0;
+        }
+        synchronized (records) {
+            Stage sync = records.stages.get(SYNC_STAGE);
+            if (sync == null || records.audioDuration <= 0) {
+                return 0;
+            }
+            return sync.getWallTime() / records.audioDuration;
+        }
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format(Locale.ROOT, "  \"audioDuration\": %d,\n", getAudioDuration()));
+        json.append(String.format(Locale.ROOT, "  \"realTimeFactor\": %.4f,\n", getRealTimeFactor()));
+
+        json.append("  \"stages\": [");
+        List<Stage> stages = getStages();
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            json.append(i > 0 ? ",\n" : "\n");
+            json.append(String.format(Locale.ROOT, "    {\"name\": \"%s\", \"count\": %d, \"wallTime\": %.3f, \"allocatedBytes\": %d}",
+                    stage.getName(), stage.getCount(), stage.getWallTime(), stage.getAllocatedBytes()));
+        }
+        json.append(stages.isEmpty() ? "],\n" : "\n  ],\n");
+
+        json.append("  \"counters\": {");
+        int i = 0;
+        for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+            json.append(i++ > 0 ? ",\n" : "\n");
+            json.append(String.format(Locale.ROOT, "    \"%s\": %d", counter.getKey(), counter.getValue()));
+        }
+        json.append(i > 0 ? "\n  }\n" : "}\n");
+
+        return json.append("}\n").toString();
+    }
+
+    public void write(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            writer.write(toJson());
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static class Records {
+        private final Map<String, Stage> stages = new LinkedHashMap<>();
+        private final Map<String, Long> counters = new LinkedHashMap<>();
+        private long audioDuration = 0;
+    }
+
+    /**
+     * A running stage, to be stopped on the thread that started it.
+     */
+    public class Span {
+        private final String name;
+        private final long startTime;
+        private final long startAllocatedBytes;
+
+        private Span(String name) {
+            this.name = name;
+            this.startAllocatedBytes = getAllocatedBytes();
+            this.startTime = System.nanoTime();
+        }
+
+        public void stop() {
+            if (records == null) {
+                return;
+            }
+            long wallTime = System.nanoTime() - startTime;
+            long allocatedBytes = getAllocatedBytes() - startAllocatedBytes;
+            synchronized (records) {
+                Stage stage = records.stages.get(name);
+                if (stage == null) {
+                    stage = new Stage(name);
+                    records.stages.put(name, stage);
+                }
+                stage.count++;
+                stage.wallTime += wallTime;
+                stage.allocatedBytes += allocatedBytes;
+            }
+        }
+    }
+
+    public static class Stage {
+        private final String name;
+        private int count;
+        private long wallTime;
+        private long allocatedBytes;
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        private Stage(Stage stage) {
+            this.name = stage.name;
+            this.count = stage.count;
+            this.wallTime = stage.wallTime;
+            this.allocatedBytes = stage.allocatedBytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return total wall time in milliseconds
+         */
+        public double getWallTime() {
+            return wallTime / 1e6;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+}
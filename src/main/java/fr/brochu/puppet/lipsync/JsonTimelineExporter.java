@@ -0,0 +1,109 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact JSON timeline: the words with their phones, then the mouth cues. Times are
+ * frames, treatments are listed on the words and phones the fixes changed.
+ *
+ * {"audio":"a.wav","frameRate":24,"visemes":"preston-blair","end":31,
+ *  "words":[{"word":"oui","start":3,"end":9,"phones":[{"phone":"ww","viseme":"WQ","start":3,"end":5},...]}],
+ *  "cues":[[0,"rest"],[3,"WQ"],...]}
+ */
+public class JsonTimelineExporter extends AbstractTimelineExporter {
+    public static final String NAME = "json";
+
+    public JsonTimelineExporter() {
+        super(NAME, ".timeline.json", Charset.forName("UTF-8"), 100, VisemeMap.PRESTON_BLAIR);
+    }
+
+    @Override
+    public void write(Timeline timeline, Writer writer) throws IOException {
+        writer.write("{\"audio\":");
+        writeString(writer, timeline.getAudioPath());
+        writer.write(",\"frameRate\":");
+        writeNumber(writer, getFrameRate());
+        writer.write(",\"visemes\":");
+        writeString(writer, getVisemeMap().getName());
+        writer.write(",\"end\":");
+        writeNumber(writer, toFrame(timeline.getLastTime()));
+
+        writer.write(",\"words\":[");
+        for (int word = 0; word < timeline.getWordCount(); word++) {
+            if (word > 0) {
+                writer.write(',');
+            }
+            writer.write("{\"word\":");
+            writeString(writer, timeline.getWord(word));
+            writeRange(writer, timeline.getWordStart(word), timeline.getWordEnd(word));
+            writeTreatments(writer, timeline.getWordTreatments(word));
+            writer.write(",\"phones\":[");
+            int firstPhone = timeline.getFirstPhone(word);
+            for (int phone = firstPhone; phone < firstPhone + timeline.getPhoneCount(word); phone++) {
+                if (phone > firstPhone) {
+                    writer.write(',');
+                }
+                writer.write("{\"phone\":");
+                writeString(writer, timeline.getPhone(phone));
+                writer.write(",\"viseme\":");
+                writeString(writer, getVisemeMap().getViseme(timeline.getPhone(phone)));
+                writeRange(writer, timeline.getPhoneStart(phone), timeline.getPhoneEnd(phone));
+                writeTreatments(writer, timeline.getPhoneTreatments(phone));
+                writer.write('}');
+            }
+            writer.write("]}");
+        }
+
+        writer.write("],\"cues\":[");
+        Cues cues = getCues(timeline);
+        for (int i = 0; i < cues.size(); i++) {
+            writer.write(i > 0 ? ",[" : "[");
+            writeNumber(writer, cues.getFrame(i));
+            writer.write(',');
+            writeString(writer, cues.getViseme(i));
+            writer.write(']');
+        }
+        writer.write("]}\n");
+    }
+
+    private void writeRange(Writer writer, long start, long end) throws IOException {
+        writer.write(",\"start\":");
+        writeNumber(writer, toFrame(start));
+        writer.write(",\"end\":");
+        writeNumber(writer, toFrame(end));
+    }
+
+    private void writeTreatments(Writer writer, int treatments) throws IOException {
+        if (treatments == 0) {
+            return;
+        }
+        writer.write(",\"treatments\":[");
+        boolean first = true;
+        for (Treatment treatment : AlignmentTable.toTreatments(treatments)) {
+            if (!first) {
+                writer.write(',');
+            }
+            writeString(writer, treatment.name());
+            first = false;
+        }
+        writer.write(']');
+    }
+
+    private static void writeString(Writer writer, String text) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -1,36 +1,59 @@
 package fr.brochu.puppet.lipsync;
 
 import edu.cmu.sphinx.alignment.LongTextAligner;
+import edu.cmu.sphinx.linguist.dictionary.Pronunciation;
+import edu.cmu.sphinx.linguist.dictionary.Word;
 import edu.cmu.sphinx.result.WordResult;
 import edu.cmu.sphinx.util.TimeFrame;
-import org.apache.commons.io.output.TeeOutputStream;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class LipSync implements ProgressListener {
-    private static final String SPHINX_CONFIG_PATH = "resource:/fr/brochu/puppet/lipsync/sphinx4.config.xml";
-    private static final String ACOUSTIC_MODEL_PATH = "resource:/fr/brochu/puppet/lipsync/fr-fr/fr-fr";
-    private static final String WORD_DICTIONARY_PATH = "resource:/fr/brochu/puppet/lipsync/fr-fr/fr.dict";
-    private static final String PHONE_DICTIONARY_PATH = "resource:/fr/brochu/puppet/lipsync/fr-fr/fr-phone.dict";
-    private static final String G2P_MODEL_PATH = "resource:/fr/brochu/puppet/lipsync/fr-fr/g2p/model.fst.ser";
+    static final String WORD_DICTIONARY_PATH = "resource:/fr/brochu/puppet/lipsync/fr-fr/fr.dict";
+    static final String PHONE_DICTIONARY_PATH = "resource:/fr/brochu/puppet/lipsync/fr-fr/fr-phone.dict";
 
     private final static double MAX_POSITIVE_DEVIATION = 1.2;
     private final static double MAX_NEGATIVE_DEVIATION = 1.;
+    private final static long PHONE_WINDOW_MARGIN = 100;
+    private final static long MAX_DIFF_CELLS = 4000000;
 
     private final String wavPath;
     private final String transcriptPath;
+    private final ModelRegistry modelRegistry;
+    private final JobMetrics metrics = new JobMetrics();
+    private final JobLog log;
     private Transcript transcript;
-    private List<AlignedWord> alignedWords;
-    private List<AlignedWord> alignedPhones;
+    private AlignmentTable alignedWords;
+    private AlignmentTable alignedPhones;
+    private WavFile wavFile;
+    private FeatureCache features;
+    private Map<WordResult, List<WordResult>> phoneSegments;
+    private boolean jointAlignment = false;
+    private boolean windowedPhoneAlignment = false;
+    private boolean resultCacheEnabled = true;
+    private String resultKey;
+    private String previousKey;
+    private boolean diffAlignment = false;
+    private ResultCache.Entry previousResult;
+    private int[] previousWordIndexes;
+    private Set<WordResult> keptAnchors;
+    private boolean speechDetection = false;
+    private boolean adaptiveBeam = false;
+    private int alignerParallelism = 0;
+    private ExportPipeline exportPipeline = new ExportPipeline(Arrays.<TimelineExporter>asList(new PapagayoExporter(), new BinaryTimelineExporter()));
+    private List<TimeFrame> speechRegions;
     private AlignmentStats alignmentStats;
     private double progress = 0;
     private ProgressListener progressListener;
@@ -39,26 +62,66 @@ public class LipSync implements ProgressListener {
 
     public void exportPapagayo(String filePath) throws IOException {
         File file = new File(filePath);
-        file.createNewFile();
-        PapagayoExporter exporter = new PapagayoExporter(alignedWords, alignedPhones, this.transcript.getWordIndexes(), wavPath);
-        FileOutputStream fileOutputStream = new FileOutputStream(file);
-        fileOutputStream.write(exporter.toString().getBytes("ISO-8859-1"));
-        fileOutputStream.close();
-        System.err.println(exporter.toString());
+        ExportPipeline.write(new PapagayoExporter(), getTimeline(), file);
+        log.debug("Papagayo:: %s, %d bytes", filePath, file.length());
+    }
+
+    /**
+     * @return final timing of the last sync, as the exporters read it
+     */
+    public Timeline getTimeline() {
+        return new Timeline(alignedWords, alignedPhones, this.transcript.getPhoneIndex(), wavPath);
+    }
+
+    /**
+     * Write the report of the last sync as text in the result folder, one word per
+     * line followed by its phones, see {@link #getReport()}.
+     */
+    public void exportReport() throws IOException {
+        String reportFile = new File(wavPath).getName().replace(".wav", ".report.txt");
+        StringBuilder report = new StringBuilder();
+        for (ReportWord word : getReport()) {
+            report.append(word).append('\n');
+            for (ReportPhone phone : word.phones) {
+                report.append('\t').append(phone).append('\n');
+            }
+        }
+        Files.write(new File(resultFolder, reportFile).toPath(), report.toString().getBytes(Charset.forName("UTF-8")));
     }
 
     public LipSync(String wavPath, String transcriptPath, ProgressListener progressListener) throws IOException {
+        this(wavPath, transcriptPath, progressListener, ModelRegistry.getInstance());
+    }
+
+    public LipSync(String wavPath, String transcriptPath, ProgressListener progressListener, ModelRegistry modelRegistry) throws IOException {
         this.wavPath = wavPath;
         this.transcriptPath = transcriptPath;
         this.progressListener = progressListener;
+        this.modelRegistry = modelRegistry;
         this.alignmentStats = new AlignmentStats();
+        this.log = new JobLog(new File(wavPath).getName(), JobLog.getDefaultLevel(), System.err);
 
-        readTranscript();
+        try {
+            readTranscript();
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
     }
 
     private void readTranscript() throws IOException {
         String transcriptText = readFile(this.transcriptPath);
-        this.transcript = new Transcript(transcriptText, SPHINX_CONFIG_PATH, ACOUSTIC_MODEL_PATH, WORD_DICTIONARY_PATH, G2P_MODEL_PATH);
+        PhoneticSpeechAligner aligner = acquireAligner(WORD_DICTIONARY_PATH, this, "transcript");
+        try {
+            JobMetrics.Span span = metrics.start("transcript");
+            try {
+                this.transcript = new Transcript(transcriptText, aligner.getCompiledDictionary(), aligner.getG2PCache(), aligner.getDictionary());
+            } finally {
+                span.stop();
+            }
+        } finally {
+            modelRegistry.releaseAligner(aligner);
+        }
     }
 
     private static String readFile(String path) throws IOException {
@@ -68,38 +131,414 @@ public class LipSync implements ProgressListener {
 
     public void sync() throws IOException {
         this.progressListener.onStart();
+        JobMetrics.Span syncSpan = metrics.start(JobMetrics.SYNC_STAGE);
 
-        createResultFolder();
-        createLogFile();
-        this.alignedWords = getAlignedPhones(this.transcript.getText(), WORD_DICTIONARY_PATH, new PartialProgressListener(this, 0, 30));
-        System.err.printf("#####Words: %s\n", alignedWords);
-        transcript.updateWordsPronunciation(alignedWords);
-        this.alignedPhones = getAlignedPhones(this.transcript.toPhoneString(), PHONE_DICTIONARY_PATH, new PartialProgressListener(this, 30, 100));
-        System.err.printf("#####Phones: %s\n", alignedPhones);
-
-        dumpAlignmentState();
-        alignmentStats.analyze(alignedPhones);
-        dumpStatistics();
-
-        fixIncompleteWords();
-        fixWordBoundaries();
-        fixMissingWords();
+        try {
+            openAudio();
+            createResultFolder();
+            createLogFile();
+            if (!readCachedResult()) {
+                extractFeatures();
+                detectSpeech();
+                alignWords();
+                alignPhones();
+                fixAlignment();
+                writeCachedResult();
+            }
 
-        createPapagayoFile();
+            createExportFiles();
+        } finally {
+            syncSpan.stop();
+            // Failed jobs are the ones whose timings matter most
+            if (resultFolder != null) {
+                createMetricsFile();
+            }
+            log.close();
+        }
         this.progressListener.onProgress(100);
         this.progressListener.onStop();
     }
 
-    private void createPapagayoFile() {
+    // Pipeline stages, run in this order by sync(). They are package-private for the benchmarks.
+
+    void openAudio() throws IOException {
+        wavFile = WavFile.open(new File(wavPath));
+        metrics.setAudioDuration(wavFile.getDuration());
+    }
+
+    void extractFeatures() throws IOException {
+        PhoneticSpeechAligner aligner = acquireAligner(WORD_DICTIONARY_PATH, this, "frontEnd");
+        try {
+            // Both passes share the same front end output
+            features = aligner.extractFeatures(wavFile);
+        } finally {
+            modelRegistry.releaseAligner(aligner);
+        }
+    }
+
+    void detectSpeech() {
+        if (!speechDetection) {
+            return;
+        }
+        JobMetrics.Span span = metrics.start("speechDetection");
+        try {
+            speechRegions = SpeechDetector.detect(wavFile);
+        } finally {
+            span.stop();
+        }
+        long silence = wavFile.getDuration() - SpeechDetector.getLength(speechRegions);
+        metrics.add("silence", silence);
+        log.info("Speech:: %d regions, %d ms of silence skipped", speechRegions.size(), silence);
+        log.debug("Speech:: %s", speechRegions);
+    }
+
+    void alignWords() throws IOException {
+        JobMetrics.Span span = metrics.start("wordPass");
+        try {
+            Map<Integer, WordResult> anchors = previousResult != null ? getAnchors() : null;
+            double wordPassEnd = jointAlignment ? 100 : 30;
+            this.alignedWords = getAlignedPhones(this.transcript.getText(), WORD_DICTIONARY_PATH, anchors, new PartialProgressListener(this, 0, wordPassEnd));
+            log.debug("#####Words: %s", alignedWords);
+            transcript.updateWordsPronunciation(alignedWords);
+        } finally {
+            span.stop();
+        }
+    }
+
+    void alignPhones() throws IOException {
+        JobMetrics.Span span = metrics.start("phonePass");
+        try {
+            if (jointAlignment) {
+                this.alignedPhones = getSegmentedPhones(keptAnchors != null ? getKeptPhones() : null);
+            } else if (keptAnchors != null) {
+                // Only the words decoded again need their phones aligned
+                this.alignedPhones = getWindowedPhones(new PartialProgressListener(this, 30, 100), getKeptPhones());
+            } else if (windowedPhoneAlignment) {
+                this.alignedPhones = getWindowedPhones(new PartialProgressListener(this, 30, 100), null);
+            } else {
+                this.alignedPhones = getAlignedPhones(this.transcript.toPhoneString(), PHONE_DICTIONARY_PATH, null, new PartialProgressListener(this, 30, 100));
+            }
+            log.debug("#####Phones: %s", alignedPhones);
+        } finally {
+            span.stop();
+        }
+    }
+
+    void fixAlignment() {
+        JobMetrics fixMetrics = metrics.scope("fixes");
+        JobMetrics.Span span = fixMetrics.start("statistics");
+        try {
+            dumpAlignmentState();
+            alignmentStats.analyze(alignedPhones);
+            dumpStatistics();
+        } finally {
+            span.stop();
+        }
+
+        span = fixMetrics.start("incompleteWords");
+        try {
+            fixIncompleteWords();
+        } finally {
+            span.stop();
+        }
+        span = fixMetrics.start("wordBoundaries");
+        try {
+            fixWordBoundaries();
+        } finally {
+            span.stop();
+        }
+        span = fixMetrics.start("missingWords");
+        try {
+            fixMissingWords();
+        } finally {
+            span.stop();
+        }
+    }
+
+    /**
+     * Restore the alignment of an identical previous job, see {@link ResultCache}.
+     *
+     * @return true if the passes and fixes can be skipped
+     */
+    private boolean readCachedResult() {
+        if (!resultCacheEnabled) {
+            return false;
+        }
+        JobMetrics.Span span = metrics.start("resultCache");
+        try {
+            try {
+                byte[] audioHash = ResultCache.hashFile(new File(wavPath));
+                List<String> parts = getResultKeyParts();
+                resultKey = ResultCache.computeKey(audioHash, transcript.getText(), parts);
+                // Latest result for the audio whatever the transcript, for diff alignment
+                parts.add("previous");
+                previousKey = ResultCache.computeKey(audioHash, "", parts);
+            } catch (IOException e) {
+                log.error("Cannot compute result key", e);
+                resultKey = null;
+                previousKey = null;
+                return false;
+            }
+
+            // A corrupt entry is deleted by the cache, and replaced once this job is done
+            try {
+                ResultCache.Entry entry = modelRegistry.getResultCache().get(resultKey, transcript);
+                if (entry != null) {
+                    setAlignment(entry.words, entry.phones);
+                    metrics.add("resultCache.hits", 1);
+                    log.info("Cache:: reusing result %s", resultKey);
+                    return true;
+                }
+                if (diffAlignment) {
+                    previousResult = modelRegistry.getResultCache().read(previousKey);
+                }
+            } catch (IOException e) {
+                log.error("Cannot read cached result", e);
+            }
+            return false;
+        } finally {
+            span.stop();
+        }
+    }
+
+    private void writeCachedResult() {
+        if (resultKey == null) {
+            return;
+        }
+        try {
+            modelRegistry.getResultCache().put(resultKey, transcript, alignedWords, alignedPhones);
+            modelRegistry.getResultCache().putReference(previousKey, resultKey);
+        } catch (IOException e) {
+            log.error("Cannot cache result " + resultKey, e);
+        }
+    }
+
+    /**
+     * Match the transcript words with the words of the previous alignment of the same
+     * audio. Unchanged words that were found in the audio become anchors keeping their
+     * timing and pronunciation, so that the word pass only decodes the changed spans.
+     *
+     * @return anchors by word index, null to align from scratch
+     */
+    private Map<Integer, WordResult> getAnchors() {
+        List<TranscriptWord> words = transcript.getWords();
+        List<String> previousSpellings = new ArrayList<>();
+        for (int i = 0; i < previousResult.words.size(); i++) {
+            previousSpellings.add(previousResult.words.getSpelling(i));
+        }
+        List<String> spellings = new ArrayList<>();
+        for (TranscriptWord word : words) {
+            spellings.add(word.getSpelling());
+        }
+
+        previousWordIndexes = matchWords(previousSpellings, spellings);
+        if (previousWordIndexes == null) {
+            log.info("Diff:: transcript changed too much, aligning from scratch");
+            previousResult = null;
+            return null;
+        }
+
+        Map<Integer, WordResult> anchors = new HashMap<>();
+        keptAnchors = Collections.newSetFromMap(new IdentityHashMap<WordResult, Boolean>());
+        for (int i = 0; i < words.size(); i++) {
+            int previousIndex = previousWordIndexes[i];
+            if (previousIndex < 0) {
+                continue;
+            }
+            AlignmentTable previousWords = previousResult.words;
+            // Missing words were only guessed by the fixes
+            if (previousWords.isDeleted(previousIndex) || previousWords.isIgnored(previousIndex) || !previousWords.hasTimeFrame(previousIndex)) {
+                continue;
+            }
+            WordResult anchor = new WordResult(new Word(previousWords.getSpelling(previousIndex), new Pronunciation[0], false),
+                    previousWords.getTimeFrame(previousIndex), 0, 1);
+            anchors.put(i, anchor);
+            keptAnchors.add(anchor);
+            transcript.setWordPhones(i, new ArrayList<>(previousResult.pronunciations.get(previousIndex)));
+        }
+
+        if (anchors.isEmpty()) {
+            keptAnchors = null;
+            previousResult = null;
+            return null;
+        }
+        log.info("Diff:: keeping %d of %d words from the previous alignment", anchors.size(), words.size());
+        metrics.add("diff.keptWords", anchors.size());
+        return anchors;
+    }
+
+    /**
+     * Phones of the previous alignment for the words whose anchor was not decoded again.
+     */
+    private Map<Integer, AlignmentTable> getKeptPhones() {
+        int[] previousPhoneIndexes = new int[previousResult.pronunciations.size()];
+        int phoneIndex = 0;
+        for (int i = 0; i < previousPhoneIndexes.length; i++) {
+            previousPhoneIndexes[i] = phoneIndex;
+            phoneIndex += previousResult.pronunciations.get(i).size();
+        }
+
+        AlignmentTable previousPhones = previousResult.phones;
+        Map<Integer, AlignmentTable> keptPhones = new HashMap<>();
+        for (int i = 0; i < alignedWords.size(); i++) {
+            if (!keptAnchors.contains(alignedWords.getWordResult(i))) {
+                continue;
+            }
+            int previousIndex = previousWordIndexes[i];
+            int start = previousPhoneIndexes[previousIndex];
+            int end = start + previousResult.pronunciations.get(previousIndex).size();
+            AlignmentTable phones = new AlignmentTable(end - start);
+            for (int j = start; j < end; j++) {
+                WordResult result = previousPhones.isDeleted(j) || !previousPhones.hasTimeFrame(j)
+                        ? null
+                        : new WordResult(new Word(previousPhones.getSpelling(j), new Pronunciation[0], false), previousPhones.getTimeFrame(j), 0, 1);
+                phones.add(previousPhones.getSpelling(j), result, result == null, false);
+            }
+            keptPhones.put(i, phones);
+        }
+        metrics.add("diff.keptPhoneWords", keptPhones.size());
+        return keptPhones;
+    }
+
+    /**
+     * Longest common subsequence of two word lists, after their common prefix and suffix.
+     *
+     * @return for each new word, the index of the matching previous word or -1, null if
+     * the changed part is too large to compare
+     */
+    static int[] matchWords(List<String> previousWords, List<String> words) {
+        int[] matches = new int[words.size()];
+        Arrays.fill(matches, -1);
+
+        int prefix = 0;
+        while (prefix < previousWords.size() && prefix < words.size() && previousWords.get(prefix).equals(words.get(prefix))) {
+            matches[prefix] = prefix;
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < previousWords.size() - prefix && suffix < words.size() - prefix
+                && previousWords.get(previousWords.size() - 1 - suffix).equals(words.get(words.size() - 1 - suffix))) {
+            matches[words.size() - 1 - suffix] = previousWords.size() - 1 - suffix;
+            suffix++;
+        }
+
+        int previousCount = previousWords.size() - prefix - suffix;
+        int count = words.size() - prefix - suffix;
+        if ((long) previousCount * count > MAX_DIFF_CELLS) {
+            return null;
+        }
+        int[][] lengths = new int[previousCount + 1][count + 1];
+        for (int i = previousCount - 1; i >= 0; i--) {
+            for (int j = count - 1; j >= 0; j--) {
+                lengths[i][j] = previousWords.get(prefix + i).equals(words.get(prefix + j))
+                        ? lengths[i + 1][j + 1] + 1
+                        : Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+            }
+        }
+        int i = 0, j = 0;
+        while (i < previousCount && j < count) {
+            if (previousWords.get(prefix + i).equals(words.get(prefix + j))) {
+                matches[prefix + j] = prefix + i;
+                i++;
+                j++;
+            } else if (lengths[i + 1][j] >= lengths[i][j + 1]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return matches;
+    }
+
+    private List<String> getResultKeyParts() throws IOException {
+        List<String> parts = new ArrayList<>();
+        parts.add(ResultCache.getResourceStamp(modelRegistry.getSphinxConfigPath()));
+        parts.add(ResultCache.getResourceStamp(modelRegistry.getAcousticModelPath()));
+        parts.add(ResultCache.getResourceStamp(modelRegistry.getG2PModelPath()));
+        parts.add(ResultCache.getResourceStamp(WORD_DICTIONARY_PATH));
+        parts.add(ResultCache.getResourceStamp(PHONE_DICTIONARY_PATH));
+        parts.add("joint=" + jointAlignment);
+        parts.add("windowed=" + windowedPhoneAlignment);
+        parts.add("speechDetection=" + speechDetection);
+        parts.add("adaptiveBeam=" + adaptiveBeam);
+        return parts;
+    }
 
-        String papagayoFile = new File(wavPath).getName().replace(".wav", ".pgo");
+    private PhoneticSpeechAligner acquireAligner(String dictionaryPath, ProgressListener progressListener, String stage) throws IOException {
+        JobMetrics.Span span = metrics.start("modelLoad");
+        PhoneticSpeechAligner aligner;
         try {
-            exportPapagayo(String.format("%s/%s", resultFolder.getAbsolutePath(), papagayoFile));
+            aligner = modelRegistry.acquireAligner(dictionaryPath, progressListener);
+        } finally {
+            span.stop();
+        }
+        aligner.setMetrics(metrics.scope(stage));
+        aligner.setLog(log);
+        aligner.setAdaptiveBeam(adaptiveBeam);
+        if (alignerParallelism > 0) {
+            aligner.setParallelism(alignerParallelism);
+        }
+        return aligner;
+    }
+
+    /**
+     * Lowest level written to the job log, see {@link JobLog#getDefaultLevel()}.
+     */
+    public void setLogLevel(JobLog.Level level) {
+        log.setLevel(level);
+    }
+
+    /**
+     * Stages and counters of this job, see {@link JobMetrics}.
+     */
+    public JobMetrics getMetrics() {
+        return metrics;
+    }
+
+    AlignmentTable getAlignedWords() {
+        return alignedWords;
+    }
+
+    AlignmentTable getAlignedPhoneList() {
+        return alignedPhones;
+    }
+
+    /**
+     * Replace the pass results, so that {@link #fixAlignment()} can run again on fresh copies.
+     */
+    void setAlignment(AlignmentTable alignedWords, AlignmentTable alignedPhones) {
+        this.alignedWords = alignedWords;
+        this.alignedPhones = alignedPhones;
+    }
+
+    Transcript getTranscript() {
+        return transcript;
+    }
+
+    private void createExportFiles() {
+        String baseName = new File(wavPath).getName().replace(".wav", "");
+        JobMetrics.Span span = metrics.start("export");
+        try {
+            for (File file : exportPipeline.export(getTimeline(), resultFolder, baseName)) {
+                log.debug("Export:: %s, %d bytes", file.getName(), file.length());
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Cannot export " + baseName, e);
+        } finally {
+            span.stop();
         }
     }
 
+    private void createMetricsFile() {
+        String fileName = new File(wavPath).getName().replace(".wav", ".metrics.json");
+        try {
+            metrics.write(new File(resultFolder, fileName));
+        } catch (IOException e) {
+            log.error("Cannot write " + fileName, e);
+        }
+        log.info("Metrics:: real-time factor %.3f", metrics.getRealTimeFactor());
+    }
+
     private void createResultFolder() {
         String folderPath = new File(wavPath).getAbsolutePath().replace(".wav", "_lipsync");
         resultFolder = new File(folderPath);
@@ -111,33 +550,23 @@ public class LipSync implements ProgressListener {
     private void createLogFile() {
         String fileName = new File(wavPath).getName().replace(".wav", ".log");
         File logFile = new File(String.format("%s/%s", resultFolder.getAbsolutePath(), fileName));
-        if (!logFile.exists()) {
-            try {
-                logFile.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
         try {
-            TeeOutputStream teeOutputStream = new TeeOutputStream(new FileOutputStream(logFile), System.err);
-            System.setErr(new PrintStream(teeOutputStream));
+            log.setFile(logFile);
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Cannot create log file " + logFile, e);
         }
     }
 
     private void fixWordBoundaries() {
-        int[] wordIndexes = this.transcript.getWordIndexes();
+        PhoneIndex phoneIndex = this.transcript.getPhoneIndex();
         for (int i = 0; i < alignedWords.size(); i++) {
-            AlignedWord alignedWord = alignedWords.get(i);
-            int wordLength = (i < alignedWords.size() - 1 ? wordIndexes[i + 1] : alignedPhones.size()) - wordIndexes[i];
-            List<AlignedWord> phones = alignedPhones.subList(wordIndexes[i], wordIndexes[i] + wordLength);
+            int wordLength = phoneIndex.getPhoneCount(i);
+            int firstPhone = phoneIndex.getPhoneStart(i);
 
-            if (!alignedWord.deleted) {
+            if (!alignedWords.isDeleted(i)) {
                 int start = -1, end = -1;
                 for (int j = 0; j < wordLength; j++) {
-                    if (!alignedPhones.get(wordIndexes[i]+j).ignored) {
+                    if (!alignedPhones.isIgnored(firstPhone + j)) {
                         if (start < 0) {
                             start = j;
                         }
@@ -146,23 +575,22 @@ public class LipSync implements ProgressListener {
                 }
 
                 if (start >= 0) {
-                    long wordStart = alignedWord.wordResult.getTimeFrame().getStart();
-                    AlignedWord startPhone = alignedPhones.get(wordIndexes[i] + start);
-                    long phoneStart = startPhone.getBestTimeFrame().getStart();
+                    long wordStart = alignedWords.getResultStart(i);
+                    long phoneStart = alignedPhones.getStart(firstPhone + start);
 
                     if (phoneStart != wordStart) {
                         // Fix word start boundary
 
-                        System.err.printf("## Fix word start boundary: %s %s [%s] offset: %d\n",
-                                alignedWord.spelling,
-                                phones,
-                                alignedWord.wordResult.getTimeFrame(),
+                        log.debug("## Fix word start boundary: %s %s [%s] offset: %d",
+                                alignedWords.getSpelling(i),
+                                alignedPhones.asList().subList(firstPhone, phoneIndex.getPhoneEnd(i)),
+                                alignedWords.getWordResult(i).getTimeFrame(),
                                 phoneStart - wordStart);
 
                         if (phoneStart > wordStart) {
-                            System.err.println("Fix:: move word start boundary");
-                            alignedWord.timeFrame = new TimeFrame(phoneStart, alignedWord.wordResult.getTimeFrame().getEnd());
-                            alignedWord.addTreatment(Treatment.MOVE_START);
+                            log.debug("Fix:: move word start boundary");
+                            alignedWords.setTimeFrame(i, phoneStart, alignedWords.getResultEnd(i));
+                            alignedWords.addTreatment(i, Treatment.MOVE_START);
                         }
                         else if (phoneStart < wordStart) {
 
@@ -170,40 +598,37 @@ public class LipSync implements ProgressListener {
                             long previousWordEnd = -1;
                             if (i == 0) {
                                 previousWordEnd = 0;
-                            } else {
-                                AlignedWord previousWord = alignedWords.get(i - 1);
-                                if (!previousWord.deleted) {
-                                    previousWordEnd = previousWord.getBestTimeFrame().getEnd();
-                                }
+                            } else if (!alignedWords.isDeleted(i - 1)) {
+                                previousWordEnd = alignedWords.getEnd(i - 1);
                             }
 
                             if (previousWordEnd >= 0 && previousWordEnd < wordStart - 10) {
                                 long newStart = Math.max(previousWordEnd + 10, phoneStart);
-                                System.err.println("Fix:: Expand word start of " + (wordStart - newStart) + " ms");
-                                alignedWord.timeFrame = new TimeFrame(newStart, alignedWord.getBestTimeFrame().getEnd());
+                                log.debug("Fix:: Expand word start of %d ms", wordStart - newStart);
+                                alignedWords.setTimeFrame(i, newStart, alignedWords.getEnd(i));
                                 wordStart = newStart;
-                                alignedWord.addTreatment(Treatment.MOVE_START);
+                                alignedWords.addTreatment(i, Treatment.MOVE_START);
                             }
 
-                            if (alignedWord.getBestTimeFrame().getStart() > phoneStart) {
-                                System.err.println("Fix:: shrink or delete start phones");
+                            if (alignedWords.getStart(i) > phoneStart) {
+                                log.debug("Fix:: shrink or delete start phones");
                                 for (int j = 0; j < wordLength; j++) {
-                                    AlignedWord phone = alignedPhones.get(wordIndexes[i] + start + j);
-                                    phone.addTreatment(Treatment.SHRINK_TO_START);
-                                    if (phone.ignored) {
+                                    int phone = firstPhone + start + j;
+                                    alignedPhones.addTreatment(phone, Treatment.SHRINK_TO_START);
+                                    if (alignedPhones.isIgnored(phone)) {
                                         continue;
                                     }
-                                    long phoneEnd = phone.getBestTimeFrame().getEnd();
+                                    long phoneEnd = alignedPhones.getEnd(phone);
                                     long minDuration = 10;
                                     if (phoneEnd - minDuration >= wordStart) {
                                         // shrink this phone
-                                        System.err.println("shrink phone [" + phone.toString() + "]");
-                                        phone.timeFrame = new TimeFrame(wordStart, phoneEnd);
+                                        log.debug("shrink phone [%s]", alignedPhones.getSpelling(phone));
+                                        alignedPhones.setTimeFrame(phone, wordStart, phoneEnd);
                                         break;
                                     } else {
                                         // delete this phone
-                                        System.err.println("##### DELETE phone [" + phone.toString() + "]");
-                                        phone.ignored = true;
+                                        log.debug("##### DELETE phone [%s]", alignedPhones.getSpelling(phone));
+                                        alignedPhones.setIgnored(phone, true);
                                     }
                                 }
                             }
@@ -211,64 +636,59 @@ public class LipSync implements ProgressListener {
                     }
                 }
                 if (end >= 0) {
-                    long wordEnd = alignedWord.wordResult.getTimeFrame().getEnd();
-                    AlignedWord endPhone = alignedPhones.get(wordIndexes[i] + end);
-                    long phoneEnd = endPhone.getBestTimeFrame().getEnd();
+                    long wordEnd = alignedWords.getResultEnd(i);
+                    long phoneEnd = alignedPhones.getEnd(firstPhone + end);
 
                     if (phoneEnd != wordEnd) {
                         // Fix word start boundary
 
-                        System.err.printf("## Fix word end boundary: %s %s [%s] offset: %d\n",
-                                alignedWord.spelling,
-                                phones,
-                                alignedWord.wordResult.getTimeFrame(),
+                        log.debug("## Fix word end boundary: %s %s [%s] offset: %d",
+                                alignedWords.getSpelling(i),
+                                alignedPhones.asList().subList(firstPhone, phoneIndex.getPhoneEnd(i)),
+                                alignedWords.getWordResult(i).getTimeFrame(),
                                 wordEnd - phoneEnd);
 
                         if (phoneEnd > wordEnd) {
-                            System.err.println("Fix:: move word end boundary");
-                            long wordStart = alignedWord.getBestTimeFrame().getStart();
-                            alignedWord.timeFrame = new TimeFrame(wordStart, phoneEnd);
-                            alignedWord.addTreatment(Treatment.MOVE_END);
+                            log.debug("Fix:: move word end boundary");
+                            alignedWords.setTimeFrame(i, alignedWords.getStart(i), phoneEnd);
+                            alignedWords.addTreatment(i, Treatment.MOVE_END);
                         }
                         else if (phoneEnd < wordEnd) {
                             long nextWordStart = -1;
-                            if (i == alignedWords.size()) {
+                            if (i == alignedWords.size() - 1) {
                                 nextWordStart = Long.MAX_VALUE;
-                            } else {
-                                AlignedWord nextWord = alignedWords.get(i + 1);
-                                if (!nextWord.deleted) {
-                                    nextWordStart = nextWord.getBestTimeFrame().getStart();
-                                }
+                            } else if (!alignedWords.isDeleted(i + 1)) {
+                                nextWordStart = alignedWords.getStart(i + 1);
                             }
 
                             if (nextWordStart >= 0 && nextWordStart > wordEnd + 10) {
                                 long newEnd = Math.min(nextWordStart - 10, phoneEnd);
-                                System.err.println("Fix:: Expand word end of " + (newEnd - wordEnd) + " ms");
-                                alignedWord.timeFrame = new TimeFrame(alignedWord.getBestTimeFrame().getStart(), newEnd);
+                                log.debug("Fix:: Expand word end of %d ms", newEnd - wordEnd);
+                                alignedWords.setTimeFrame(i, alignedWords.getStart(i), newEnd);
                                 wordEnd = newEnd;
-                                alignedWord.addTreatment(Treatment.MOVE_END);
+                                alignedWords.addTreatment(i, Treatment.MOVE_END);
                             }
 
-                            if (alignedWord.getBestTimeFrame().getEnd() < phoneEnd) {
-                                System.err.println("Fix:: shrink or delete end phones");
+                            if (alignedWords.getEnd(i) < phoneEnd) {
+                                log.debug("Fix:: shrink or delete end phones");
 
                                 for (int j = wordLength - 1 - start; j >= 0; j--) {
-                                    AlignedWord phone = alignedPhones.get(wordIndexes[i] + start + j);
-                                    phone.addTreatment(Treatment.SHRINK_TO_END);
-                                    if (phone.ignored) {
+                                    int phone = firstPhone + start + j;
+                                    alignedPhones.addTreatment(phone, Treatment.SHRINK_TO_END);
+                                    if (alignedPhones.isIgnored(phone)) {
                                         continue;
                                     }
-                                    long phoneStart = phone.getBestTimeFrame().getStart();
+                                    long phoneStart = alignedPhones.getStart(phone);
                                     long minDuration = 10;
                                     if (phoneStart + minDuration <= wordEnd) {
                                         // shrink this phone
-                                        System.err.println("#####shrink phone [" + phone.toString() + "]");
-                                        phone.timeFrame = new TimeFrame(phoneStart, wordEnd);
+                                        log.debug("#####shrink phone [%s]", alignedPhones.getSpelling(phone));
+                                        alignedPhones.setTimeFrame(phone, phoneStart, wordEnd);
                                         break;
                                     } else {
                                         // delete this phone
-                                        System.err.println("#####delete phone [" + phone.toString() + "]");
-                                        phone.ignored = true;
+                                        log.debug("#####delete phone [%s]", alignedPhones.getSpelling(phone));
+                                        alignedPhones.setIgnored(phone, true);
                                     }
                                 }
                             }
@@ -280,19 +700,16 @@ public class LipSync implements ProgressListener {
     }
 
     private void fixMissingWords() {
-        int[] wordIndexes = this.transcript.getWordIndexes();
+        PhoneIndex phoneIndex = this.transcript.getPhoneIndex();
         for (int i = 0; i < alignedWords.size(); i++) {
-            AlignedWord alignedWord = alignedWords.get(i);
-            int wordLength = (i < alignedWords.size() - 1 ? wordIndexes[i + 1] : alignedPhones.size()) - wordIndexes[i];
-            List<AlignedWord> phones = alignedPhones.subList(wordIndexes[i], wordIndexes[i] + wordLength);
-
-            if (alignedWord.deleted) {
+            if (alignedWords.isDeleted(i)) {
+                int wordLength = phoneIndex.getPhoneCount(i);
                 // Fix missing word
-                System.err.printf("## Missing word: %s %s\n",
-                        alignedWord.spelling,
-                        phones);
+                log.info("## Missing word: %s %s",
+                        alignedWords.getSpelling(i),
+                        alignedPhones.asList().subList(phoneIndex.getPhoneStart(i), phoneIndex.getPhoneEnd(i)));
                 fixMissingWord(i);
-                alignedWord.addTreatment(Treatment.MISSING_WORD);
+                alignedWords.addTreatment(i, Treatment.MISSING_WORD);
             }
         }
     }
@@ -304,8 +721,8 @@ public class LipSync implements ProgressListener {
         }
         else {
             for (int i = wordIndex - 1; i >= 0; i--) {
-                if (!alignedWords.get(i).ignored && !alignedWords.get(i).deleted) {
-                    wordStart = alignedWords.get(i).getBestTimeFrame().getEnd() + 10;
+                if (!alignedWords.isIgnored(i) && !alignedWords.isDeleted(i)) {
+                    wordStart = alignedWords.getEnd(i) + 10;
                     break;
                 }
             }
@@ -315,31 +732,39 @@ public class LipSync implements ProgressListener {
         }
         else {
             for (int i = wordIndex + 1; i < alignedWords.size(); i++) {
-                if (!alignedWords.get(i).ignored && !alignedWords.get(i).deleted) {
-                    wordEnd = alignedWords.get(i).getBestTimeFrame().getStart();
+                if (!alignedWords.isIgnored(i) && !alignedWords.isDeleted(i)) {
+                    wordEnd = alignedWords.getStart(i);
                     break;
                 }
             }
         }
 
         if (wordStart > 0 && wordEnd > 0 && wordStart < wordEnd) {
-            int[] wordIndexes = this.transcript.getWordIndexes();
-            int wordLength = (wordIndex < alignedWords.size() - 1 ? wordIndexes[wordIndex + 1] : alignedPhones.size()) - wordIndexes[wordIndex];
+            // Silences are hard boundaries, the word cannot be spoken across them
+            TimeFrame speech = getLongestSpeech(wordStart, wordEnd);
+            if (speech != null) {
+                wordStart = speech.getStart();
+                wordEnd = speech.getEnd();
+            }
+
+            PhoneIndex phoneIndex = this.transcript.getPhoneIndex();
+            int wordLength = phoneIndex.getPhoneCount(wordIndex);
+            int firstPhone = phoneIndex.getPhoneStart(wordIndex);
 
-            List<Double> durations = new ArrayList<>();
-            List<Double> deviations = new ArrayList<>();
+            double[] durations = new double[wordLength];
+            double[] deviations = new double[wordLength];
             double totalDuration = 0;
             double deviationSum = 0;
 
-            for (int i = wordIndexes[wordIndex]; i < wordIndexes[wordIndex] + wordLength; i++) {
-                AlignedWord phone = alignedPhones.get(i);
+            for (int i = 0; i < wordLength; i++) {
+                String phone = alignedPhones.getSpelling(firstPhone + i);
 
-                double mean = alignmentStats.getPhoneMean(phone.spelling);
-                double deviation = alignmentStats.getPhoneDeviation(phone.spelling);
+                double mean = alignmentStats.getPhoneMean(phone);
+                double deviation = alignmentStats.getPhoneDeviation(phone);
                 double duration = mean;
 
-                durations.add(duration);
-                deviations.add(deviation);
+                durations[i] = duration;
+                deviations[i] = deviation;
                 totalDuration += duration + 10;
                 deviationSum += deviation;
             }
@@ -351,13 +776,13 @@ public class LipSync implements ProgressListener {
             int lastPhone = wordLength;
 
             for (int i = 0; i < wordLength; i++) {
-                AlignedWord alignedPhone = alignedPhones.get(wordIndexes[wordIndex] + i);
-                long phoneDuration = Math.round((durations.get(i) + deviations.get(i) * factor) / 10) * 10;
+                int phone = firstPhone + i;
+                long phoneDuration = Math.round((durations[i] + deviations[i] * factor) / 10) * 10;
                 long phoneEnd = lastTime + 10 + phoneDuration;
                 if (phoneEnd <= wordEnd) {
-                    alignedPhone.timeFrame = new TimeFrame(lastTime + 10, phoneEnd);
-                    alignedPhone.addTreatment(Treatment.MISSING_WORD);
-                    System.err.println("Fix:: add phone [" + alignedPhone.spelling + "] [" + alignedPhone.getBestTimeFrame() + "]");
+                    alignedPhones.setTimeFrame(phone, lastTime + 10, phoneEnd);
+                    alignedPhones.addTreatment(phone, Treatment.MISSING_WORD);
+                    log.debug("Fix:: add phone [%s] [%d:%d]", alignedPhones.getSpelling(phone), lastTime + 10, phoneEnd);
                 } else {
                     lastPhone = i;
                     break;
@@ -366,99 +791,112 @@ public class LipSync implements ProgressListener {
             }
 
             if (lastPhone > 0) {
-                alignedWords.get(wordIndex).timeFrame = new TimeFrame(alignedPhones.get(wordIndexes[wordIndex]).getBestTimeFrame().getStart(), lastTime);
+                alignedWords.setTimeFrame(wordIndex, alignedPhones.getStart(firstPhone), lastTime);
             }
 
             for (int i = lastPhone; i < wordLength; i++) {
-                AlignedWord alignedPhone = alignedPhones.get(wordIndexes[wordIndex] + i);
-                alignedPhone.ignored = true;
-                alignedPhone.addTreatment(Treatment.MISSING_WORD);
-                System.err.println("#### Ignore phone [" + alignedPhone.spelling + "]");
+                int phone = firstPhone + i;
+                alignedPhones.setIgnored(phone, true);
+                alignedPhones.addTreatment(phone, Treatment.MISSING_WORD);
+                log.debug("#### Ignore phone [%s]", alignedPhones.getSpelling(phone));
             }
         } else {
-            System.err.println("##### Wrong word boundary => ignoring word.");
-            AlignedWord missingWord = alignedWords.get(wordIndex);
-            missingWord.ignored = true;
-            missingWord.addTreatment(Treatment.MISSING_WORD);
+            log.info("##### Wrong word boundary => ignoring word.");
+            alignedWords.setIgnored(wordIndex, true);
+            alignedWords.addTreatment(wordIndex, Treatment.MISSING_WORD);
+        }
+    }
+
+    /**
+     * @return the longest part of the interval that is in a speech region, null if
+     * speech was not detected or the interval is silent
+     */
+    private TimeFrame getLongestSpeech(long start, long end) {
+        if (speechRegions == null) {
+            return null;
         }
+        TimeFrame longest = null;
+        for (TimeFrame region : speechRegions) {
+            long overlapStart = Math.max(start, region.getStart());
+            long overlapEnd = Math.min(end, region.getEnd());
+            if (overlapEnd > overlapStart && (longest == null || overlapEnd - overlapStart > longest.getEnd() - longest.getStart())) {
+                longest = new TimeFrame(overlapStart, overlapEnd);
+            }
+        }
+        return longest;
     }
 
     private void dumpAlignmentState() {
-        int[] wordIndexes = this.transcript.getWordIndexes();
+        if (!log.isEnabled(JobLog.Level.DEBUG)) {
+            return;
+        }
+        PhoneIndex phoneIndex = this.transcript.getPhoneIndex();
         List<TranscriptWord> transcriptWords = transcript.getWords();
 
         for (int i = 0; i < this.alignedWords.size(); i++) {
-            AlignedWord word = alignedWords.get(i);
             TranscriptWord transcriptWord = transcriptWords.get(i);
             String timeFrameString = "";
-            if (word.wordResult != null) {
-                timeFrameString = "[" + word.wordResult.getTimeFrame() + "]";
+            if (alignedWords.getWordResult(i) != null) {
+                timeFrameString = "[" + alignedWords.getWordResult(i).getTimeFrame() + "]";
             }
-            System.err.printf("%s %s %s\n",
-                    word.deleted ? "-" : " ",
+            log.debug("%s %s %s",
+                    alignedWords.isDeleted(i) ? "-" : " ",
                     transcriptWord.toString(),
                     timeFrameString);
 
-            for (int j = wordIndexes[i]; j < wordIndexes[i] + transcriptWord.getPhones().size(); j++) {
-                AlignedWord phone = this.alignedPhones.get(j);
+            for (int j = phoneIndex.getPhoneStart(i); j < phoneIndex.getPhoneEnd(i); j++) {
                 timeFrameString = "";
-                if (phone.wordResult != null) {
-                    timeFrameString = "[" + phone.wordResult.getTimeFrame() + "]";
+                if (alignedPhones.getWordResult(j) != null) {
+                    timeFrameString = "[" + alignedPhones.getWordResult(j).getTimeFrame() + "]";
                 }
-                System.err.printf("\t%s %s %s\n",
-                        phone.deleted ? "-" : " ",
-                        phone.spelling,
+                log.debug("\t%s %s %s",
+                        alignedPhones.isDeleted(j) ? "-" : " ",
+                        alignedPhones.getSpelling(j),
                         timeFrameString);
             }
         }
     }
 
     private void fixIncompleteWords() {
-        int[] wordIndexes = this.transcript.getWordIndexes();
-        List<List<Integer>> patchedIntervals = new ArrayList<>();
+        PhoneIndex phoneIndex = this.transcript.getPhoneIndex();
 
         for (int i = 0; i < alignedWords.size(); i++) {
-            AlignedWord alignedWord = alignedWords.get(i);
-            if (alignedWord.deleted) {
+            if (alignedWords.isDeleted(i)) {
                 continue;
             }
 
-            int wordLength = (i < alignedWords.size() - 1 ? wordIndexes[i + 1] : alignedPhones.size()) - wordIndexes[i];
-            List<AlignedWord> phones = alignedPhones.subList(wordIndexes[i], wordIndexes[i] + wordLength);
+            int wordLength = phoneIndex.getPhoneCount(i);
+            int firstPhone = phoneIndex.getPhoneStart(i);
 
             boolean incomplete = false;
-            for (AlignedWord phone : phones) {
-                if (phone.deleted) {
+            for (int j = firstPhone; j < phoneIndex.getPhoneEnd(i); j++) {
+                if (alignedPhones.isDeleted(j)) {
                     incomplete = true;
                 }
             }
 
             if (incomplete) {
-                System.err.printf("##Incomplete word: %s %s [%s]\n",
-                        alignedWord.spelling,
-                        phones,
-                        alignedWord.wordResult.getTimeFrame());
+                log.info("##Incomplete word: %s %s [%s]",
+                        alignedWords.getSpelling(i),
+                        alignedPhones.asList().subList(firstPhone, phoneIndex.getPhoneEnd(i)),
+                        alignedWords.getWordResult(i).getTimeFrame());
 
                 int intervalStart = -1;
                 for (int j = 0; j < wordLength; j++) {
-                    if (phones.get(j).deleted) {
+                    boolean deleted = alignedPhones.isDeleted(firstPhone + j);
+                    if (deleted) {
                         if (intervalStart < 0) {
-                            intervalStart = wordIndexes[i] + j;
+                            intervalStart = firstPhone + j;
                         }
                     }
 
-                    if (intervalStart >= 0 && (!phones.get(j).deleted || j == wordLength - 1)) {
-                        int intervalEnd = wordIndexes[i] + j;
-                        if (phones.get(j).deleted && j == phones.size() - 1) {
+                    if (intervalStart >= 0 && (!deleted || j == wordLength - 1)) {
+                        int intervalEnd = firstPhone + j;
+                        if (deleted && j == wordLength - 1) {
                             intervalEnd++;
                         }
 
-                        patchInterval(intervalStart, intervalEnd, wordIndexes[i], wordIndexes[i] + wordLength, i);
-
-                        List<Integer> interval = new ArrayList<>();
-                        interval.add(intervalStart);
-                        interval.add(intervalEnd);
-                        patchedIntervals.add(interval);
+                        patchInterval(intervalStart, intervalEnd, firstPhone, phoneIndex.getPhoneEnd(i), i);
 
                         intervalStart = -1;
                     }
@@ -468,47 +906,40 @@ public class LipSync implements ProgressListener {
     }
 
     private void patchInterval(int start, int end, int wordStart, int wordEnd, int wordIndex) {
-        System.err.println("PATCH INTERVAL: " + start + ", " + end + ", " + wordStart + ", " + wordEnd);
+        log.debug("PATCH INTERVAL: %d, %d, %d, %d", start, end, wordStart, wordEnd);
 
         long startTime, endTime;
         boolean alignStart = false, alignEnd = false;
-        AlignedWord alignedWord = alignedWords.get(wordIndex);
 
         if (start == wordStart) {
-            startTime = alignedWord.wordResult.getTimeFrame().getStart();
+            startTime = alignedWords.getResultStart(wordIndex);
         } else {
             alignStart = true;
-            AlignedWord previousPhone = alignedPhones.get(start - 1);
-
-            TimeFrame previousTimeFrame = previousPhone.wordResult.getTimeFrame();
-            startTime = previousTimeFrame.getStart();
+            startTime = alignedPhones.getResultStart(start - 1);
             start--;
         }
         if (end == wordEnd) {
-            endTime = alignedWord.wordResult.getTimeFrame().getEnd() + 10;
+            endTime = alignedWords.getResultEnd(wordIndex) + 10;
         } else {
             alignEnd = true;
-            AlignedWord nextPhone = alignedPhones.get(end);
-
-            TimeFrame nextTimeFrame = nextPhone.wordResult.getTimeFrame();
-            endTime = nextTimeFrame.getEnd() + 10;
+            endTime = alignedPhones.getResultEnd(end) + 10;
             end++;
         }
 
-        List<Double> durations = new ArrayList<>();
-        List<Double> deviations = new ArrayList<>();
+        double[] durations = new double[end - start];
+        double[] deviations = new double[end - start];
         double totalDuration = 0;
         double deviationSum = 0;
 
         for (int i = start; i < end; i++) {
-            AlignedWord phone = alignedPhones.get(i);
+            String phone = alignedPhones.getSpelling(i);
 
-            double mean = alignmentStats.getPhoneMean(phone.spelling);
-            double deviation = alignmentStats.getPhoneDeviation(phone.spelling);
+            double mean = alignmentStats.getPhoneMean(phone);
+            double deviation = alignmentStats.getPhoneDeviation(phone);
             double duration = mean;
 
-            durations.add(duration);
-            deviations.add(deviation);
+            durations[i - start] = duration;
+            deviations[i - start] = deviation;
             totalDuration += duration + 10;
             deviationSum += deviation;
         }
@@ -517,19 +948,19 @@ public class LipSync implements ProgressListener {
 
         // We do not want phones to be this stretched (not exceed (mean + deviation))
         if (factor > MAX_POSITIVE_DEVIATION) {
-            System.err.println("####### TOO BIG GAP");
+            log.debug("####### TOO BIG GAP");
             long totalCompactDuration = Math.round((totalDuration + MAX_POSITIVE_DEVIATION * deviationSum) / 10) * 10;
 
             if (alignStart && !alignEnd) {
-                System.err.println("FIX:: Stretch maximum and align start");
+                log.debug("FIX:: Stretch maximum and align start");
                 // compact aligned at start of the gap
                 endTime = startTime + totalCompactDuration;
             } else if (alignEnd && !alignStart) {
-                System.err.println("FIX:: Stretch maximum and align end");
+                log.debug("FIX:: Stretch maximum and align end");
                 // compact aligned at end of the gap
                 startTime = endTime - totalCompactDuration;
             } else if (!alignStart && !alignEnd || alignStart && alignEnd) {
-                System.err.println("FIX:: Stretch maximum and align middle");
+                log.debug("FIX:: Stretch maximum and align middle");
                 // compact in the middle of the gap
                 long padding = Math.round(((endTime - startTime) - totalCompactDuration) / 20) * 10;
                 startTime = startTime + padding;
@@ -538,35 +969,34 @@ public class LipSync implements ProgressListener {
 
             totalDuration = 0;
             for (int i = 0; i < end - start; i++) {
-                long duration = Math.round((durations.get(i) + MAX_POSITIVE_DEVIATION * deviations.get(i)) / 10) * 10;
+                long duration = Math.round((durations[i] + MAX_POSITIVE_DEVIATION * deviations[i]) / 10) * 10;
                 long phoneStart;
                 if (i == 0) {
                     phoneStart = startTime;
                 } else {
-                    phoneStart = alignedPhones.get(start + i - 1).timeFrame.getEnd() + 10;
+                    phoneStart = alignedPhones.getEnd(start + i - 1) + 10;
                 }
                 duration = Math.min(duration, endTime - 10 - phoneStart);
-                AlignedWord alignedPhone = alignedPhones.get(start + i);
-                alignedPhone.addTreatment(Treatment.INWORD_BIG_GAP);
-                alignedPhone.timeFrame = new TimeFrame(phoneStart, phoneStart + duration);
+                alignedPhones.addTreatment(start + i, Treatment.INWORD_BIG_GAP);
+                alignedPhones.setTimeFrame(start + i, phoneStart, phoneStart + duration);
 
                 totalDuration += duration + 10;
-                System.err.println(alignedPhones.get(start + i).spelling + " = " + duration + " [" + alignedPhones.get(start + i).timeFrame + "]");
+                log.debug("%s = %d [%d:%d]", alignedPhones.getSpelling(start + i), duration, phoneStart, phoneStart + duration);
             }
-            System.err.println("totalDuration: " + totalDuration + ", gap: " + (endTime - startTime));
+            log.debug("totalDuration: %s, gap: %d", totalDuration, endTime - startTime);
         }
         // We do not want phones to be this shrunk (not below (mean - deviation))
         else if (factor < - MAX_NEGATIVE_DEVIATION) {
-            System.err.println("####### TOO SMALL GAP");
+            log.debug("####### TOO SMALL GAP");
             // remove phonems
             long totalCompactDuration = Math.round((totalDuration - MAX_NEGATIVE_DEVIATION * deviationSum) / 10) * 10;
             if (alignStart || !alignEnd) {
-                System.err.println("FIX:: Align start and remove end phones");
+                log.debug("FIX:: Align start and remove end phones");
                 // Remove end phones
                 int chosenEnd = start;
 
                 for (int i = end - 1; i >= start; i--) {
-                    totalCompactDuration -= durations.get(i - start) - MAX_NEGATIVE_DEVIATION * deviations.get(i - start) - 10;
+                    totalCompactDuration -= durations[i - start] - MAX_NEGATIVE_DEVIATION * deviations[i - start] - 10;
                     if (totalCompactDuration <= (endTime - startTime)) {
                         chosenEnd = i + 1;
                         break;
@@ -575,34 +1005,33 @@ public class LipSync implements ProgressListener {
 
                 totalDuration = 0;
                 for (int i = 0; i < end - start; i++) {
-                    AlignedWord alignedPhone = alignedPhones.get(start + i);
-                    alignedPhone.addTreatment(Treatment.INWORD_SMALL_GAP);
+                    alignedPhones.addTreatment(start + i, Treatment.INWORD_SMALL_GAP);
 
                     if (i < chosenEnd - start) {
-                        long duration = Math.round((durations.get(i) - MAX_NEGATIVE_DEVIATION * deviations.get(i)) / 10) * 10;
+                        long duration = Math.round((durations[i] - MAX_NEGATIVE_DEVIATION * deviations[i]) / 10) * 10;
                         long phoneStart;
                         if (i == 0) {
                             phoneStart = startTime;
                         } else {
-                            phoneStart = alignedPhones.get(start + i - 1).timeFrame.getEnd() + 10;
+                            phoneStart = alignedPhones.getEnd(start + i - 1) + 10;
                         }
                         duration = Math.min(duration, endTime - 10 - phoneStart);
-                        alignedPhone.timeFrame = new TimeFrame(phoneStart, phoneStart + duration);
+                        alignedPhones.setTimeFrame(start + i, phoneStart, phoneStart + duration);
                         totalDuration += duration + 10;
-                        System.err.println(alignedPhones.get(start + i).spelling + " = " + duration + " [" + alignedPhones.get(start + i).timeFrame + "]");
+                        log.debug("%s = %d [%d:%d]", alignedPhones.getSpelling(start + i), duration, phoneStart, phoneStart + duration);
                     } else {
-                        alignedPhones.get(start + i).ignored = true;
+                        alignedPhones.setIgnored(start + i, true);
                     }
                 }
-                System.err.println("totalDuration: " + totalDuration + ", gap: " + (endTime - startTime));
+                log.debug("totalDuration: %s, gap: %d", totalDuration, endTime - startTime);
             } else {
-                System.err.println("FIX:: Align end and remove start phones");
+                log.debug("FIX:: Align end and remove start phones");
                 // Remove start phones
 
                 int chosenStart = end;
 
                 for (int i = start; i < end; i++) {
-                    totalCompactDuration -= durations.get(i - start) - MAX_NEGATIVE_DEVIATION * deviations.get(i - start) - 10;
+                    totalCompactDuration -= durations[i - start] - MAX_NEGATIVE_DEVIATION * deviations[i - start] - 10;
                     if (totalCompactDuration <= (endTime - startTime)) {
                         chosenStart = i + 1;
                         break;
@@ -611,63 +1040,72 @@ public class LipSync implements ProgressListener {
 
                 totalDuration = 0;
                 for (int i = end - start - 1; i >= 0; i--) {
-                    AlignedWord alignedPhone = alignedPhones.get(start + i);
-                    alignedPhone.addTreatment(Treatment.INWORD_SMALL_GAP);
+                    alignedPhones.addTreatment(start + i, Treatment.INWORD_SMALL_GAP);
 
                     if (i > chosenStart - start) {
-                        long duration = Math.round((durations.get(i) - MAX_NEGATIVE_DEVIATION * deviations.get(i)) / 10) * 10;
+                        long duration = Math.round((durations[i] - MAX_NEGATIVE_DEVIATION * deviations[i]) / 10) * 10;
                         long phoneEnd;
                         if (i == end - start - 1) {
                             phoneEnd = endTime - 10;
                         } else {
-                            phoneEnd = alignedPhones.get(start + i + 1).timeFrame.getStart() - 10;
+                            phoneEnd = alignedPhones.getStart(start + i + 1) - 10;
                         }
                         duration = Math.min(duration, phoneEnd - startTime);
-                        alignedPhone.timeFrame = new TimeFrame(phoneEnd - duration, phoneEnd);
+                        alignedPhones.setTimeFrame(start + i, phoneEnd - duration, phoneEnd);
                         totalDuration += duration + 10;
-                        System.err.println(alignedPhones.get(start + i).spelling + " = " + duration + " [" + alignedPhones.get(start + i).timeFrame + "]");
+                        log.debug("%s = %d [%d:%d]", alignedPhones.getSpelling(start + i), duration, phoneEnd - duration, phoneEnd);
                     } else {
-                        alignedPhones.get(start + i).ignored = true;
+                        alignedPhones.setIgnored(start + i, true);
                     }
                 }
-                System.err.println("totalDuration: " + totalDuration + ", gap: " + (endTime - startTime));
+                log.debug("totalDuration: %s, gap: %d", totalDuration, endTime - startTime);
             }
         }
         else {
-            System.err.println("FIX:: Stretch or shrink phones");
+            log.debug("FIX:: Stretch or shrink phones");
             totalDuration = 0;
             for (int i = 0; i < end - start; i++) {
-                long duration = Math.round((durations.get(i) + (deviations.get(i) * factor)) / 10) * 10;
+                long duration = Math.round((durations[i] + (deviations[i] * factor)) / 10) * 10;
                 long phoneStart;
                 if (i == 0) {
                     phoneStart = startTime;
                 } else {
-                    phoneStart = alignedPhones.get(start + i - 1).timeFrame.getEnd() + 10;
+                    phoneStart = alignedPhones.getEnd(start + i - 1) + 10;
                 }
                 duration = Math.min(duration, endTime - 10 - phoneStart);
-                AlignedWord alignedPhone = alignedPhones.get(start + i);
-                alignedPhone.addTreatment(Treatment.INWORD_NORMAL_GAP);
-                alignedPhone.timeFrame = new TimeFrame(phoneStart, phoneStart + duration);
+                alignedPhones.addTreatment(start + i, Treatment.INWORD_NORMAL_GAP);
+                alignedPhones.setTimeFrame(start + i, phoneStart, phoneStart + duration);
 
                 totalDuration += duration + 10;
-                System.err.println(alignedPhones.get(start + i).spelling + " = " + duration + " [" + alignedPhones.get(start + i).timeFrame + "]");
+                log.debug("%s = %d [%d:%d]", alignedPhones.getSpelling(start + i), duration, phoneStart, phoneStart + duration);
             }
-            System.err.println("totalDuration: " + totalDuration + ", gap: " + (endTime - startTime));
+            log.debug("totalDuration: %s, gap: %d", totalDuration, endTime - startTime);
         }
     }
 
     private void dumpStatistics() {
-        System.err.println(alignmentStats.toString());
+        log.info(alignmentStats.toString());
     }
 
-    private List<AlignedWord> getAlignedPhones(String transcript, String dictionaryPath, ProgressListener progressListener) throws IOException {
-        URL audioUrl = new File(this.wavPath).toURI().toURL();
-
-
-        PhoneticSpeechAligner aligner = new PhoneticSpeechAligner(SPHINX_CONFIG_PATH, ACOUSTIC_MODEL_PATH, dictionaryPath, G2P_MODEL_PATH, progressListener);
-
+    /**
+     * @param anchors words whose timing is already known, by word index, null to align from scratch
+     */
+    private AlignmentTable getAlignedPhones(String transcript, String dictionaryPath, Map<Integer, WordResult> anchors, ProgressListener progressListener) throws IOException {
+        List<WordResult> results;
+        List<String> words;
+        PhoneticSpeechAligner aligner = acquireAligner(dictionaryPath, progressListener, WORD_DICTIONARY_PATH.equals(dictionaryPath) ? "wordPass" : "phonePass");
+        try {
+            List<String> sentences = aligner.getTokenizer().expand(transcript);
+            aligner.setSpeechRegions(speechRegions);
+            results = anchors == null
+                    ? aligner.align(features, sentences)
+                    : aligner.align(features, sentences, anchors, wavFile.getDuration());
+            phoneSegments = aligner.getPhoneSegments();
+            words = aligner.sentenceToWords(sentences);
+        } finally {
+            modelRegistry.releaseAligner(aligner);
+        }
 
-        List<WordResult> results = aligner.align(audioUrl, transcript);
         List<String> stringResults = new ArrayList<>();
         for (WordResult wr : results) {
             stringResults.add(wr.getWord().getSpelling());
@@ -675,37 +1113,36 @@ public class LipSync implements ProgressListener {
 
         LongTextAligner textAligner =
                 new LongTextAligner(stringResults, 2);
-        List<String> sentences = aligner.getTokenizer().expand(transcript);
-        List<String> words = aligner.sentenceToWords(sentences);
 
         int[] aid = textAligner.align(words);
-        List<AlignedWord> alignedPhones = new ArrayList<>();
+        AlignmentTable alignedPhones = new AlignmentTable(words.size());
 
         int lastId = -1;
         for (int i = 0; i < aid.length; ++i) {
             if (aid[i] == -1) {
-                System.err.format("- %s\n", words.get(i));
-                alignedPhones.add(new AlignedWord(words.get(i), null, true, false));
+                log.debug("- %s", words.get(i));
+                alignedPhones.add(words.get(i), null, true, false);
             } else {
                 if (aid[i] - lastId > 1) {
                     for (WordResult result : results.subList(lastId + 1, aid[i])) {
-                        System.err.format("+ %-25s [%s]\n", result.getWord().getSpelling(), result.getTimeFrame());
+                        log.debug("+ %-25s [%s]", result.getWord().getSpelling(), result.getTimeFrame());
 //                        alignedPhones.add(new AlignedWord(result.getWord().getSpelling(), result, false, true));
                     }
                 }
                 WordResult result = results.get(aid[i]);
-                System.err.format("  %-25s %s [%s]\n",
+                Pronunciation[] pronunciations = result.getWord().getPronunciations();
+                log.debug("  %-25s %s [%s]",
                         result.getWord().getSpelling(),
-                        result.getWord().getPronunciations()[0],
+                        pronunciations.length > 0 ? pronunciations[0] : "(kept)",
                         result.getTimeFrame());
-                alignedPhones.add(new AlignedWord(result.getWord().getSpelling(), result, false, false));
+                alignedPhones.add(result.getWord().getSpelling(), result, false, false);
                 lastId = aid[i];
             }
         }
 
         if (lastId >= 0 && results.size() - lastId > 1) {
             for (WordResult result : results.subList(lastId + 1, results.size())) {
-                System.err.format("+ %-25s [%s]\n", result.getWord().getSpelling(), result.getTimeFrame());
+                log.debug("+ %-25s [%s]", result.getWord().getSpelling(), result.getTimeFrame());
 //                alignedPhones.add(new AlignedWord(result.getWord().getSpelling(), result, false, true));
             }
         }
@@ -713,6 +1150,200 @@ public class LipSync implements ProgressListener {
         return alignedPhones;
     }
 
+    /**
+     * Take the phones of each aligned word from the word pass decoder path, instead
+     * of decoding the audio again with the phone dictionary. Phones missing from the
+     * path are marked deleted and patched by {@link #fixIncompleteWords()}.
+     */
+    private AlignmentTable getSegmentedPhones(Map<Integer, AlignmentTable> keptPhones) {
+        AlignmentTable phones = new AlignmentTable(alignedWords.size() * 4);
+        List<TranscriptWord> transcriptWords = transcript.getWords();
+
+        for (int i = 0; i < alignedWords.size(); i++) {
+            AlignmentTable kept = keptPhones != null ? keptPhones.get(i) : null;
+            if (kept != null) {
+                for (int k = 0; k < kept.size(); k++) {
+                    phones.add(kept, k);
+                }
+                continue;
+            }
+            List<WordResult> segments = alignedWords.isDeleted(i) ? null : phoneSegments.get(alignedWords.getWordResult(i));
+            int nextSegment = 0;
+
+            for (String phone : transcriptWords.get(i).getPhones()) {
+                WordResult segment = null;
+                for (int j = nextSegment; segments != null && j < segments.size(); j++) {
+                    if (segments.get(j).getWord().getSpelling().equals(phone)) {
+                        segment = segments.get(j);
+                        nextSegment = j + 1;
+                        break;
+                    }
+                }
+                phones.add(phone, segment, segment == null, false);
+            }
+        }
+        return phones;
+    }
+
+    /**
+     * Align the phones of each aligned word inside its time frame, plus a margin,
+     * instead of searching the whole phone string over the whole audio. Runs of
+     * words the word pass missed are searched in the gap left by their aligned
+     * neighbours. Windows are independent and decoded concurrently.
+     *
+     * @param keptPhones phones of words that need no window, by word index, may be null
+     */
+    private AlignmentTable getWindowedPhones(ProgressListener progressListener, Map<Integer, AlignmentTable> keptPhones) throws IOException {
+        List<TranscriptWord> transcriptWords = transcript.getWords();
+        List<List<String>> windowPhones = new ArrayList<>();
+        List<TimeFrame> windowFrames = new ArrayList<>();
+        List<AlignmentTable> windowKeptPhones = new ArrayList<>();
+        List<List<String>> texts = new ArrayList<>();
+        List<TimeFrame> frames = new ArrayList<>();
+
+        int i = 0;
+        while (i < alignedWords.size()) {
+            if (keptPhones != null && keptPhones.containsKey(i)) {
+                windowPhones.add(transcriptWords.get(i).getPhones());
+                windowFrames.add(null);
+                windowKeptPhones.add(keptPhones.get(i));
+                i++;
+                continue;
+            }
+
+            int end = i + 1;
+            long start, stop;
+            if (!alignedWords.isDeleted(i)) {
+                start = alignedWords.getResultStart(i);
+                stop = alignedWords.getResultEnd(i);
+            } else {
+                while (end < alignedWords.size() && alignedWords.isDeleted(end)) {
+                    end++;
+                }
+                start = i == 0 ? 0 : alignedWords.getResultEnd(i - 1);
+                stop = end == alignedWords.size() ? TimeFrame.INFINITE.getEnd() : alignedWords.getResultStart(end);
+            }
+            TimeFrame frame = new TimeFrame(Math.max(0, start - PHONE_WINDOW_MARGIN),
+                    stop == TimeFrame.INFINITE.getEnd() ? stop : stop + PHONE_WINDOW_MARGIN);
+
+            List<String> phones = new ArrayList<>();
+            for (int j = i; j < end; j++) {
+                phones.addAll(transcriptWords.get(j).getPhones());
+            }
+            windowPhones.add(phones);
+            windowFrames.add(frame);
+            windowKeptPhones.add(null);
+            if (!phones.isEmpty()) {
+                texts.add(phones);
+                frames.add(frame);
+            }
+            i = end;
+        }
+
+        progressListener.onProgress(0);
+        List<WordResult[]> results;
+        PhoneticSpeechAligner aligner = acquireAligner(PHONE_DICTIONARY_PATH, progressListener, "phonePass");
+        try {
+            results = aligner.alignWindows(features, texts, frames);
+        } finally {
+            modelRegistry.releaseAligner(aligner);
+        }
+
+        AlignmentTable phones = new AlignmentTable(alignedWords.size() * 4);
+        int resultIndex = 0;
+        for (int j = 0; j < windowPhones.size(); j++) {
+            List<String> spellings = windowPhones.get(j);
+            AlignmentTable kept = windowKeptPhones.get(j);
+            if (kept != null) {
+                for (int k = 0; k < kept.size(); k++) {
+                    phones.add(kept, k);
+                }
+                continue;
+            }
+            if (spellings.isEmpty()) {
+                continue;
+            }
+            WordResult[] windowResults = results.get(resultIndex++);
+            log.debug("Window [%s] %s", windowFrames.get(j), spellings);
+            for (int k = 0; k < spellings.size(); k++) {
+                phones.add(spellings.get(k), windowResults[k], windowResults[k] == null, false);
+            }
+        }
+        progressListener.onProgress(1);
+        return phones;
+    }
+
+    /**
+     * Align the phones of each word within the word time frame, see {@link #getWindowedPhones}.
+     */
+    public void setWindowedPhoneAlignment(boolean windowedPhoneAlignment) {
+        this.windowedPhoneAlignment = windowedPhoneAlignment;
+    }
+
+    /**
+     * Align again only the words that changed since the previous alignment of the same
+     * audio, taken from the {@link ResultCache}. The phones of the words that are not
+     * decoded again are kept as well, the others are aligned in windows, or cut from
+     * the word pass with {@link #setJointAlignment joint alignment}.
+     */
+    public void setDiffAlignment(boolean diffAlignment) {
+        this.diffAlignment = diffAlignment;
+    }
+
+    /**
+     * Whether to decode only the speech regions found by {@link SpeechDetector} in the
+     * first pass, and to keep missing words out of silences. False by default.
+     */
+    public void setSpeechDetection(boolean speechDetection) {
+        this.speechDetection = speechDetection;
+    }
+
+    /**
+     * Whether to decode the ranges of the following passes with a narrow beam first,
+     * widening it only for the ranges that fail to align. Faster on clean audio.
+     */
+    public void setAdaptiveBeam(boolean adaptiveBeam) {
+        this.adaptiveBeam = adaptiveBeam;
+    }
+
+    /**
+     * Formats written to the result folder after each sync, Papagayo and the binary
+     * timeline by default.
+     * Exporters write one file at a time, give each instance its own pipeline.
+     */
+    public void setExportPipeline(ExportPipeline exportPipeline) {
+        this.exportPipeline = exportPipeline;
+    }
+
+    /**
+     * Number of recognizer instances the aligners of this job may decode with, the
+     * {@link ModelRegistry} setting if 0.
+     */
+    public void setAlignerParallelism(int alignerParallelism) {
+        this.alignerParallelism = Math.max(0, alignerParallelism);
+    }
+
+    /**
+     * @return speech regions of the audio, null if they were not detected
+     */
+    public List<TimeFrame> getSpeechRegions() {
+        return speechRegions;
+    }
+
+    /**
+     * Whether to reuse and store results in the {@link ResultCache}, true by default.
+     */
+    public void setResultCacheEnabled(boolean resultCacheEnabled) {
+        this.resultCacheEnabled = resultCacheEnabled;
+    }
+
+    /**
+     * Align phones from the word pass only, skipping the phone pass.
+     */
+    public void setJointAlignment(boolean jointAlignment) {
+        this.jointAlignment = jointAlignment;
+    }
+
     @Override
     public void onStart() {
 
@@ -767,33 +1398,32 @@ public class LipSync implements ProgressListener {
     }
 
     public List<ReportWord> getReport() {
-        int[] wordIndexes = this.transcript.getWordIndexes();
+        PhoneIndex phoneIndex = this.transcript.getPhoneIndex();
         List<ReportWord> report = new ArrayList<>();
 
         for (int i = 0; i < alignedWords.size(); i++) {
-            AlignedWord alignedWord = alignedWords.get(i);
+            boolean wordIgnored = alignedWords.isIgnored(i);
             long wordStart = -1, wordEnd = -1;
-            if (!alignedWord.ignored) {
-                TimeFrame timeFrame = alignedWord.getBestTimeFrame();
-                wordStart = timeFrame.getStart();
-                wordEnd = timeFrame.getEnd();
+            if (!wordIgnored) {
+                wordStart = alignedWords.getStart(i);
+                wordEnd = alignedWords.getEnd(i);
             }
 
             List<ReportPhone> phones = new ArrayList<>();
-            int wordOut = i < alignedWords.size() - 1 ? wordIndexes[i + 1] : alignedPhones.size();
-            for (int j = wordIndexes[i]; j < wordOut && !alignedWord.ignored; j++) {
-                AlignedWord alignedPhone = alignedPhones.get(j);
+            int wordOut = phoneIndex.getPhoneEnd(i);
+            for (int j = phoneIndex.getPhoneStart(i); j < wordOut && !wordIgnored; j++) {
                 long phoneStart = -1, phoneEnd = -1;
-                if (!alignedPhone.ignored) {
-                    TimeFrame timeFrame = alignedPhone.getBestTimeFrame();
-                    phoneStart = timeFrame.getStart();
-                    phoneEnd = timeFrame.getEnd();
+                if (!alignedPhones.isIgnored(j)) {
+                    phoneStart = alignedPhones.getStart(j);
+                    phoneEnd = alignedPhones.getEnd(j);
                 }
-                ReportPhone phone = new ReportPhone(alignedPhone.spelling, alignedPhone.treatments, phoneStart, phoneEnd, alignedPhone.ignored);
+                ReportPhone phone = new ReportPhone(alignedPhones.getSpelling(j), AlignmentTable.toTreatments(alignedPhones.getTreatments(j)),
+                        phoneStart, phoneEnd, alignedPhones.isIgnored(j));
                 phones.add(phone);
             }
 
-            ReportWord word = new ReportWord(alignedWord.spelling, alignedWord.treatments, wordStart, wordEnd, alignedWord.ignored, phones);
+            ReportWord word = new ReportWord(alignedWords.getSpelling(i), AlignmentTable.toTreatments(alignedWords.getTreatments(i)),
+                    wordStart, wordEnd, wordIgnored, phones);
             report.add(word);
         }
         return report;
@@ -0,0 +1,306 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Headless entry point for render nodes.
+ *
+ * Jobs are wav/transcript pairs given on the command line, read from standard input
+ * (one "wav\ttranscript" per line) or found in a spool folder. All of them run on
+ * the same worker pool and share the warm aligners of the {@link ModelRegistry}, so
+ * models are loaded once per process. Results go to the usual "_lipsync" folder next
+ * to each wav file: Papagayo file and binary timeline or the chosen formats, text
+ * report, log and metrics.
+ *
+ * Spool folders receive *.job files in the manifest format of {@link BatchLipSync}.
+ * They must be written under another name then renamed. A job file is claimed by
+ * renaming it to .running, so several nodes can share a spool folder, and ends up
+ * as .done or .failed.
+ */
+public class LipSyncCli {
+    private static final Logger logger = Logger.getLogger(LipSyncCli.class.getSimpleName());
+    private static final String JOB_EXTENSION = ".job";
+
+    private final BatchLipSync batch;
+    private final ExecutorService workers;
+    private final ExecutorService spoolJobs;
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    public LipSyncCli(BatchLipSync batch) {
+        this.batch = batch;
+        this.workers = Executors.newFixedThreadPool(batch.getWorkerCount(), new NamedThreadFactory("lipsync-worker-"));
+        this.spoolJobs = Executors.newCachedThreadPool(new NamedThreadFactory("lipsync-spool-"));
+    }
+
+    public Future<Boolean> submit(final BatchLipSync.Clip clip) {
+        return workers.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                boolean done = batch.sync(clip);
+                if (!done) {
+                    failedCount.incrementAndGet();
+                }
+                logger.info("LipSync:: " + (done ? "done " : "failed ") + clip);
+                return done;
+            }
+        });
+    }
+
+    /**
+     * Run the jobs read from the reader until its end, "wav\ttranscript" per line.
+     */
+    public List<Future<Boolean>> submitLines(BufferedReader reader) throws IOException {
+        List<Future<Boolean>> futures = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] paths = line.split("\t");
+            if (paths.length != 2) {
+                logger.warning("LipSync:: expected <wav>\\t<transcript>, got " + line);
+                failedCount.incrementAndGet();
+                continue;
+            }
+            futures.add(submit(new BatchLipSync.Clip(new File(paths[0]).getAbsolutePath(), new File(paths[1]).getAbsolutePath())));
+        }
+        return futures;
+    }
+
+    /**
+     * Run the job files of the spool folder, then wait for new ones. Never returns.
+     */
+    public void watchSpool(File spoolFolder) throws IOException, InterruptedException {
+        Path spool = spoolFolder.toPath();
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            spool.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            logger.info("LipSync:: watching " + spool.toAbsolutePath());
+            while (true) {
+                scanSpool(spool);
+                // Events only tell something changed, the scan finds what. Poll in case events were lost.
+                WatchKey key = watchService.poll(10, TimeUnit.SECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        }
+    }
+
+    private void scanSpool(Path spool) throws IOException {
+        try (DirectoryStream<Path> jobFiles = Files.newDirectoryStream(spool, "*" + JOB_EXTENSION)) {
+            for (Path jobFile : jobFiles) {
+                Path runningFile = rename(jobFile, ".running");
+                try {
+                    Files.move(jobFile, runningFile, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    // Taken by another node
+                    continue;
+                }
+                submitJobFile(runningFile);
+            }
+        }
+    }
+
+    private void submitJobFile(final Path runningFile) {
+        spoolJobs.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                boolean done = true;
+                try {
+                    List<Future<Boolean>> futures = new ArrayList<>();
+                    for (BatchLipSync.Clip clip : BatchLipSync.readManifest(runningFile.toFile())) {
+                        futures.add(submit(clip));
+                    }
+                    done = waitFor(futures) == 0;
+                } catch (Exception e) {
+                    logger.warning("LipSync:: cannot run " + runningFile + ": " + e);
+                    done = false;
+                }
+                Files.move(runningFile, rename(runningFile, done ? ".done" : ".failed"), StandardCopyOption.REPLACE_EXISTING);
+                return null;
+            }
+        });
+    }
+
+    private static Path rename(Path file, String extension) {
+        String name = file.getFileName().toString();
+        return file.resolveSibling(name.substring(0, name.lastIndexOf('.')) + extension);
+    }
+
+    /**
+     * @return number of failed jobs among the given ones
+     */
+    public static int waitFor(List<Future<Boolean>> futures) throws InterruptedException {
+        int failed = 0;
+        for (Future<Boolean> future : futures) {
+            try {
+                if (!future.get()) {
+                    failed++;
+                }
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+        spoolJobs.shutdown();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: lipsync [options] [<wav> <transcript>]...");
+        System.err.println("  --stdin            read \"<wav>\\t<transcript>\" jobs from standard input");
+        System.err.println("  --spool <folder>   run the *.job manifests dropped in the folder, never exits");
+        System.err.println("  --workers <n>      concurrent jobs, number of cores by default");
+        System.err.println("  --joint            take phone timings from the word pass");
+        System.err.println("  --windowed         align phones within their word time frame");
+        System.err.println("  --diff             align again only the words changed since the last run");
+        System.err.println("  --adaptive-beam    decode with a narrow beam, widened for ranges that fail");
+        System.err.println("  --speech-detection decode only the speech regions in the first pass");
+        System.err.println("  --format <f>       export format, repeatable, papagayo and binary by default:");
+        System.err.println("                     <name>[:<fps>[:<viseme map>]], name among " + ExportPipeline.getFormatNames());
+        System.err.println("  --log-level <l>    DEBUG, INFO, WARN or ERROR");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+
+        List<BatchLipSync.Clip> clips = new ArrayList<>();
+        boolean readStdin = false;
+        File spoolFolder = null;
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        boolean jointAlignment = false;
+        boolean windowedPhoneAlignment = false;
+        boolean diffAlignment = false;
+        boolean adaptiveBeam = false;
+        boolean speechDetection = false;
+        List<String> exportFormats = new ArrayList<>();
+        JobLog.Level logLevel = JobLog.getDefaultLevel();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--stdin")) {
+                    readStdin = true;
+                } else if (arg.equals("--spool")) {
+                    spoolFolder = new File(args[++i]);
+                } else if (arg.equals("--workers")) {
+                    workerCount = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (arg.equals("--joint")) {
+                    jointAlignment = true;
+                } else if (arg.equals("--windowed")) {
+                    windowedPhoneAlignment = true;
+                } else if (arg.equals("--diff")) {
+                    diffAlignment = true;
+                } else if (arg.equals("--adaptive-beam")) {
+                    adaptiveBeam = true;
+                } else if (arg.equals("--speech-detection")) {
+                    speechDetection = true;
+                } else if (arg.equals("--format")) {
+                    String format = args[++i];
+                    ExportPipeline.parse(format);
+                    exportFormats.add(format);
+                } else if (arg.equals("--log-level")) {
+                    logLevel = JobLog.Level.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                } else if (arg.startsWith("--") || i + 1 >= args.length) {
+                    usage();
+                } else {
+                    clips.add(new BatchLipSync.Clip(new File(arg).getAbsolutePath(), new File(args[++i]).getAbsolutePath()));
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            usage();
+        }
+        if (clips.isEmpty() && !readStdin && spoolFolder == null) {
+            usage();
+        }
+
+        // BatchLipSync splits the cores between its workers
+        ModelRegistry modelRegistry = ModelRegistry.getInstance();
+
+        BatchLipSync batch = new BatchLipSync(workerCount, modelRegistry, null);
+        batch.setJointAlignment(jointAlignment);
+        batch.setWindowedPhoneAlignment(windowedPhoneAlignment);
+        batch.setDiffAlignment(diffAlignment);
+        batch.setAdaptiveBeam(adaptiveBeam);
+        batch.setSpeechDetection(speechDetection);
+        if (!exportFormats.isEmpty()) {
+            batch.setExportFormats(exportFormats);
+        }
+        batch.setLogLevel(logLevel);
+        LipSyncCli cli = new LipSyncCli(batch);
+
+        if (spoolFolder != null) {
+            modelRegistry.preload(LipSync.WORD_DICTIONARY_PATH, workerCount);
+            if (!jointAlignment) {
+                modelRegistry.preload(LipSync.PHONE_DICTIONARY_PATH, workerCount);
+            }
+        }
+
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (BatchLipSync.Clip clip : clips) {
+            futures.add(cli.submit(clip));
+        }
+        if (readStdin) {
+            futures.addAll(cli.submitLines(new BufferedReader(new InputStreamReader(System.in, Charset.forName("UTF-8")))));
+        }
+        if (spoolFolder != null) {
+            cli.watchSpool(spoolFolder);
+        }
+
+        waitFor(futures);
+        cli.shutdown();
+        modelRegistry.deallocate();
+        logger.info(String.format("LipSync:: %d jobs, %d failed", futures.size(), cli.getFailedCount()));
+        System.exit(cli.getFailedCount() > 0 ? 2 : 0);
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
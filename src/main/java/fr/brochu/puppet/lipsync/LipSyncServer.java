@@ -0,0 +1,925 @@
+package fr.brochu.puppet.lipsync;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lip sync over HTTP, for pipeline tools that would rather not start a JVM per clip.
+ *
+ * <pre>
+ * POST   /jobs                    multipart form with an "audio" wav part and a "transcript" text part
+ * GET    /jobs/{id}               job status as JSON
+ * GET    /jobs/{id}/events        progress as server-sent events, until the job is done or failed
+ * GET    /jobs/{id}/result.pgo    Papagayo file
+ * GET    /jobs/{id}/result.timeline binary timeline, see {@link BinaryTimeline}
+ * GET    /jobs/{id}/result{ext}   file of any other export format of the job
+ * GET    /jobs/{id}/result.json   word and phone timings, see {@link LipSync#getReport()}
+ * DELETE /jobs/{id}               forget the job and delete its files
+ * </pre>
+ *
+ * The form may also override the server options of the job: "joint", "windowed",
+ * "diff", "adaptiveBeam" and "speechDetection" take "true" or "false", "format" is
+ * repeatable and takes an {@link ExportPipeline} spec with a built-in viseme map.
+ * Other fields are refused with 400.
+ *
+ * Jobs run on a fixed number of workers behind a bounded queue. When the queue is full
+ * the upload is refused with 429. Uploads are streamed part by part to the job folder,
+ * so a request only holds a small buffer whatever the size of its audio. Finished and
+ * failed jobs are forgotten, files included, once they are older than the job TTL.
+ * Aligners come from the shared {@link ModelRegistry}, so they stay warm across requests.
+ */
+public class LipSyncServer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_UPLOAD_SIZE = 256 * 1024 * 1024;
+    private static final long KEEP_ALIVE_INTERVAL = 15000;
+    private static final long CLEANUP_INTERVAL = 60000;
+    private static final int MAX_FIELD_SIZE = 1024;
+    private static final String FORMAT_FIELD = "format";
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    private final ModelRegistry modelRegistry;
+    private final File jobFolder;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("lipsync-cleanup-"));
+    private volatile long jobTtl = TimeUnit.HOURS.toMillis(1);
+    private boolean jointAlignment = false;
+    private boolean windowedPhoneAlignment = false;
+    private boolean speechDetection = false;
+    private boolean diffAlignment = false;
+    private boolean adaptiveBeam = false;
+    private List<String> exportFormats = Arrays.asList(PapagayoExporter.NAME, BinaryTimelineExporter.NAME);
+
+    /**
+     * @param queueCapacity number of jobs that can wait for a worker before uploads are refused
+     * @param jobFolder where uploads and results are written, one sub folder per job
+     */
+    public LipSyncServer(InetSocketAddress address, int workerCount, int queueCapacity, ModelRegistry modelRegistry, File jobFolder) throws IOException {
+        this.modelRegistry = modelRegistry;
+        this.jobFolder = jobFolder;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)), new NamedThreadFactory("lipsync-job-"));
+        this.server = HttpServer.create(address, 0);
+        // Event streams hold their thread for the whole job
+        this.server.setExecutor(Executors.newCachedThreadPool(new NamedThreadFactory("lipsync-http-")));
+        this.server.createContext("/jobs", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    route(exchange);
+                } catch (Exception e) {
+                    System.err.println("Server:: " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + " failed: " + e);
+                    sendError(exchange, 500, e.toString());
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        if (!jobFolder.exists()) {
+            jobFolder.mkdirs();
+        }
+        server.start();
+        cleaner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expireJobs();
+            }
+        }, CLEANUP_INTERVAL, CLEANUP_INTERVAL, TimeUnit.MILLISECONDS);
+        System.err.println("Server:: listening on " + server.getAddress());
+    }
+
+    public void stop() {
+        server.stop(0);
+        workers.shutdownNow();
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * @param jobTtl milliseconds a done or failed job is kept, with its files
+     */
+    public void setJobTtl(long jobTtl) {
+        this.jobTtl = jobTtl;
+    }
+
+    public void setJointAlignment(boolean jointAlignment) {
+        this.jointAlignment = jointAlignment;
+    }
+
+    public void setWindowedPhoneAlignment(boolean windowedPhoneAlignment) {
+        this.windowedPhoneAlignment = windowedPhoneAlignment;
+    }
+
+    public void setSpeechDetection(boolean speechDetection) {
+        this.speechDetection = speechDetection;
+    }
+
+    public void setDiffAlignment(boolean diffAlignment) {
+        this.diffAlignment = diffAlignment;
+    }
+
+    public void setAdaptiveBeam(boolean adaptiveBeam) {
+        this.adaptiveBeam = adaptiveBeam;
+    }
+
+    /**
+     * @param exportFormats format specs of the jobs that do not give theirs, see {@link ExportPipeline}
+     */
+    public void setExportFormats(List<String> exportFormats) {
+        this.exportFormats = new ArrayList<>(exportFormats);
+    }
+
+    private void route(HttpExchange exchange) throws IOException, InterruptedException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+
+        if (path.length == 1) {
+            if (method.equals("POST")) {
+                submit(exchange);
+            } else {
+                sendError(exchange, 405, "Use POST to submit a job");
+            }
+            return;
+        }
+
+        Job job = jobs.get(path[1]);
+        if (job == null) {
+            sendError(exchange, 404, "Unknown job " + path[1]);
+            return;
+        }
+
+        String resource = path.length > 2 ? path[2] : "";
+        if (method.equals("DELETE") && resource.isEmpty()) {
+            delete(exchange, job);
+        } else if (!method.equals("GET")) {
+            sendError(exchange, 405, "Unsupported method " + method);
+        } else if (resource.isEmpty()) {
+            send(exchange, 200, "application/json", job.toJson().getBytes(UTF8));
+        } else if (resource.equals("events")) {
+            streamEvents(exchange, job);
+        } else if (resource.equals("result.json")) {
+            sendResult(exchange, job, null);
+        } else if (resource.startsWith("result.")) {
+            sendResult(exchange, job, resource.substring("result".length()));
+        } else {
+            sendError(exchange, 404, "Unknown resource " + resource);
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        // Refuse early, before reading the upload
+        if (workers.getQueue().remainingCapacity() == 0) {
+            sendBusy(exchange);
+            return;
+        }
+
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String boundary = getBoundary(contentType);
+        if (boundary == null) {
+            sendError(exchange, 415, "Expected multipart/form-data");
+            return;
+        }
+
+        String id = UUID.randomUUID().toString();
+        File folder = new File(jobFolder, id);
+        folder.mkdirs();
+        File wav = new File(folder, id + ".wav");
+        File transcript = new File(folder, id + ".txt");
+        Map<String, File> files = new HashMap<>();
+        files.put("audio", wav);
+        files.put("transcript", transcript);
+        Map<String, List<String>> fields = new HashMap<>();
+        int saved;
+        try {
+            saved = saveMultipart(exchange.getRequestBody(), boundary, files, fields);
+        } catch (UploadTooLargeException e) {
+            deleteFolder(folder);
+            sendError(exchange, 413, "Upload larger than " + MAX_UPLOAD_SIZE + " bytes");
+            return;
+        } catch (InvalidFormException e) {
+            deleteFolder(folder);
+            sendError(exchange, 400, e.getMessage());
+            return;
+        } catch (IOException e) {
+            deleteFolder(folder);
+            throw e;
+        }
+        if (saved < files.size()) {
+            deleteFolder(folder);
+            sendError(exchange, 400, "Expected \"audio\" and \"transcript\" parts");
+            return;
+        }
+
+        Job job = new Job(id, folder, wav, transcript);
+        try {
+            job.setOptions(fields);
+        } catch (IllegalArgumentException e) {
+            deleteFolder(folder);
+            sendError(exchange, 400, e.getMessage());
+            return;
+        }
+        jobs.put(id, job);
+        try {
+            workers.execute(job);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(id);
+            deleteFolder(folder);
+            sendBusy(exchange);
+            return;
+        }
+
+        System.err.println("Server:: queued " + id);
+        exchange.getResponseHeaders().set("Location", "/jobs/" + id);
+        send(exchange, 202, "application/json", job.toJson().getBytes(UTF8));
+    }
+
+    private void streamEvents(HttpExchange exchange, Job job) throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+
+        Status sentStatus = null;
+        double sentProgress = -1;
+        while (true) {
+            Status status;
+            double progress;
+            synchronized (job) {
+                if (job.status == sentStatus && job.progress == sentProgress) {
+                    job.wait(KEEP_ALIVE_INTERVAL);
+                }
+                status = job.status;
+                progress = job.progress;
+            }
+
+            StringBuilder events = new StringBuilder();
+            if (status != sentStatus) {
+                events.append("event: status\ndata: ").append(job.toJson().replace("\n", "")).append("\n\n");
+            }
+            if (progress != sentProgress) {
+                events.append(String.format(Locale.ROOT, "event: progress\ndata: %.1f\n\n", progress));
+            }
+            if (events.length() == 0) {
+                // Lets disconnected clients be noticed
+                events.append(": keep-alive\n\n");
+            }
+            // Fails once the client is gone, which ends the stream
+            out.write(events.toString().getBytes(UTF8));
+            out.flush();
+
+            sentStatus = status;
+            sentProgress = progress;
+            if (status == Status.DONE || status == Status.FAILED) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param extension of the result file to send, null for the report as JSON
+     */
+    /**
+     * @param extension extension of one of the export formats of the job, null for the report
+     */
+    private void sendResult(HttpExchange exchange, Job job, String extension) throws IOException {
+        if (job.status != Status.DONE) {
+            sendError(exchange, 409, "Job is " + job.status);
+            return;
+        }
+        if (extension == null) {
+            send(exchange, 200, "application/json", toJson(job.report).getBytes(UTF8));
+            return;
+        }
+        for (TimelineExporter exporter : job.exportPipeline.getExporters()) {
+            if (exporter.getExtension().equals(extension)) {
+                byte[] result = Files.readAllBytes(new File(job.resultFolder, job.id + extension).toPath());
+                send(exchange, 200, getContentType(exporter), result);
+                return;
+            }
+        }
+        sendError(exchange, 404, "No " + extension + " result, the job was not exported in this format");
+    }
+
+    private static String getContentType(TimelineExporter exporter) {
+        if (!(exporter instanceof AbstractTimelineExporter)) {
+            return "application/octet-stream";
+        }
+        String type = exporter.getExtension().endsWith(".json") ? "application/json" : "text/plain";
+        return type + "; charset=" + ((AbstractTimelineExporter) exporter).getCharset().name();
+    }
+
+    /**
+     * Forget the done and failed jobs older than the TTL, and delete their files.
+     */
+    void expireJobs() {
+        long now = System.currentTimeMillis();
+        Iterator<Job> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            Job job = iterator.next();
+            if ((job.status == Status.DONE || job.status == Status.FAILED) && now - job.finishedTime > jobTtl) {
+                iterator.remove();
+                deleteFolder(job.folder);
+                System.err.println("Server:: expired " + job.id);
+            }
+        }
+    }
+
+    private void delete(HttpExchange exchange, Job job) throws IOException {
+        if (job.status == Status.QUEUED || job.status == Status.RUNNING) {
+            sendError(exchange, 409, "Job is " + job.status);
+            return;
+        }
+        jobs.remove(job.id);
+        deleteFolder(job.folder);
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private void sendBusy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "10");
+        sendError(exchange, 429, "Job queue is full");
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        send(exchange, code, "application/json", ("{\"error\": " + quote(message) + "}\n").getBytes(UTF8));
+    }
+
+    private static void send(HttpExchange exchange, int code, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                return parameter.substring("boundary=".length()).replace("\"", "");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stream the parts of a multipart/form-data body to their files, through a buffer
+     * of a fixed size. Parts without a file are read as text fields.
+     *
+     * @param files file of each part name
+     * @param fields filled with the values of each text field, in order
+     * @return number of files written
+     * @throws UploadTooLargeException once more than {@link #MAX_UPLOAD_SIZE} bytes are read
+     * @throws InvalidFormException if a text field is larger than {@link #MAX_FIELD_SIZE}
+     */
+    private static int saveMultipart(InputStream in, String boundary, Map<String, File> files, Map<String, List<String>> fields) throws IOException {
+        MultipartReader reader = new MultipartReader(in, boundary);
+        int saved = 0;
+        String name;
+        while ((name = reader.nextPart()) != null) {
+            File file = files.get(name);
+            if (file == null) {
+                List<String> values = fields.get(name);
+                if (values == null) {
+                    values = new ArrayList<>();
+                    fields.put(name, values);
+                }
+                values.add(readField(reader, name));
+                continue;
+            }
+            try (OutputStream out = new FileOutputStream(file)) {
+                reader.copyPart(out);
+            }
+            saved++;
+        }
+        return saved;
+    }
+
+    private static String getPartName(String headers) {
+        for (String header : headers.split("\r\n")) {
+            if (!header.toLowerCase(Locale.ROOT).startsWith("content-disposition:")) {
+                continue;
+            }
+            for (String parameter : header.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.startsWith("name=")) {
+                    return parameter.substring("name=".length()).replace("\"", "");
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(byte[] data, int to, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteFolder(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        folder.delete();
+    }
+
+    static String toJson(List<ReportWord> report) {
+        StringBuilder json = new StringBuilder("{\"words\": [");
+        for (int i = 0; i < report.size(); i++) {
+            ReportWord word = report.get(i);
+            json.append(i > 0 ? ",\n" : "\n").append("  {");
+            appendTimings(json, word);
+            json.append(", \"phones\": [");
+            for (int j = 0; j < word.phones.size(); j++) {
+                json.append(j > 0 ? ", " : "").append('{');
+                appendTimings(json, word.phones.get(j));
+                json.append('}');
+            }
+            json.append("]}");
+        }
+        return json.append(report.isEmpty() ? "]}\n" : "\n]}\n").toString();
+    }
+
+    private static void appendTimings(StringBuilder json, ReportPhone phone) {
+        json.append("\"name\": ").append(quote(phone.name))
+                .append(", \"start\": ").append(phone.start)
+                .append(", \"end\": ").append(phone.end)
+                .append(", \"ignored\": ").append(phone.ignored)
+                .append(", \"treatments\": [");
+        for (int i = 0; i < phone.treatments.size(); i++) {
+            json.append(i > 0 ? ", " : "").append('"').append(phone.treatments.get(i)).append('"');
+        }
+        json.append(']');
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String readField(MultipartReader reader, final String name) throws IOException {
+        final ByteArrayOutputStream value = new ByteArrayOutputStream();
+        reader.copyPart(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                if (value.size() + length > MAX_FIELD_SIZE) {
+                    throw new InvalidFormException("Field \"" + name + "\" larger than " + MAX_FIELD_SIZE + " bytes");
+                }
+                value.write(bytes, offset, length);
+            }
+        });
+        return new String(value.toByteArray(), UTF8).trim();
+    }
+
+    private static class UploadTooLargeException extends IOException {
+        private UploadTooLargeException() {
+            super("Upload larger than " + MAX_UPLOAD_SIZE + " bytes");
+        }
+    }
+
+    private static class InvalidFormException extends IOException {
+        private InvalidFormException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads a multipart/form-data body one part at a time. The buffer keeps the bytes
+     * that could still start a delimiter, the rest of a part is handed out as it comes.
+     */
+    private static class MultipartReader {
+        private static final byte[] HEADER_END = "\r\n\r\n".getBytes(UTF8);
+
+        private final InputStream in;
+        private final byte[] delimiter;
+        private final byte[] firstDelimiter;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int start = 0;
+        private int end = 0;
+        private long total = 0;
+        private boolean started = false;
+        private boolean finished = false;
+
+        private MultipartReader(InputStream in, String boundary) {
+            this.in = in;
+            this.delimiter = ("\r\n--" + boundary).getBytes(UTF8);
+            // The first delimiter is not preceded by a line break
+            this.firstDelimiter = Arrays.copyOfRange(delimiter, 2, delimiter.length);
+        }
+
+        /**
+         * @return name of the next part, with the reader at its content, or null after the last part
+         */
+        private String nextPart() throws IOException {
+            while (!finished) {
+                if (!started) {
+                    int position = find(firstDelimiter);
+                    if (position < 0) {
+                        return null;
+                    }
+                    start = position + firstDelimiter.length;
+                    started = true;
+                }
+                if (!require(2)) {
+                    return null;
+                }
+                if (buffer[start] == '-' && buffer[start + 1] == '-') {
+                    finished = true;
+                    return null;
+                }
+                start += 2;
+                int headersEnd = find(HEADER_END);
+                if (headersEnd < 0) {
+                    return null;
+                }
+                String headers = new String(buffer, start, headersEnd - start, UTF8);
+                start = headersEnd + HEADER_END.length;
+                String name = getPartName(headers);
+                if (name != null) {
+                    return name;
+                }
+                copyPart(null);
+            }
+            return null;
+        }
+
+        /**
+         * Copy the content of the current part, up to the next delimiter, which is skipped.
+         *
+         * @param out null to skip the content
+         */
+        private void copyPart(OutputStream out) throws IOException {
+            while (true) {
+                int position = indexOf(buffer, end, delimiter, start);
+                if (position >= 0) {
+                    if (out != null) {
+                        out.write(buffer, start, position - start);
+                    }
+                    start = position + delimiter.length;
+                    return;
+                }
+                // Keep what could be the beginning of the delimiter
+                int safeEnd = Math.max(start, end - delimiter.length + 1);
+                if (out != null) {
+                    out.write(buffer, start, safeEnd - start);
+                }
+                start = safeEnd;
+                if (!fill()) {
+                    finished = true;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return start of the pattern in the buffer, reading more as needed, -1 at the end of the body
+         */
+        private int find(byte[] pattern) throws IOException {
+            while (true) {
+                int position = indexOf(buffer, end, pattern, start);
+                if (position >= 0) {
+                    return position;
+                }
+                if (!fill()) {
+                    finished = true;
+                    return -1;
+                }
+            }
+        }
+
+        private boolean require(int count) throws IOException {
+            while (end - start < count) {
+                if (!fill()) {
+                    finished = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Move the unread bytes to the front of the buffer and read more after them.
+         *
+         * @return false at the end of the body, or when the buffer is full of unread bytes
+         */
+        private boolean fill() throws IOException {
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (end == buffer.length) {
+                return false;
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                return false;
+            }
+            total += read;
+            if (total > MAX_UPLOAD_SIZE) {
+                throw new UploadTooLargeException();
+            }
+            end += read;
+            return true;
+        }
+    }
+
+    private class Job implements Runnable, ProgressListener {
+        private final String id;
+        private final File folder;
+        private final File wav;
+        private final File transcript;
+        private volatile Status status = Status.QUEUED;
+        private volatile long finishedTime;
+        private double progress = 0;
+        private String error;
+        private File resultFolder;
+        private List<ReportWord> report;
+        private boolean jointAlignment = LipSyncServer.this.jointAlignment;
+        private boolean windowedPhoneAlignment = LipSyncServer.this.windowedPhoneAlignment;
+        private boolean diffAlignment = LipSyncServer.this.diffAlignment;
+        private boolean adaptiveBeam = LipSyncServer.this.adaptiveBeam;
+        private boolean speechDetection = LipSyncServer.this.speechDetection;
+        private ExportPipeline exportPipeline;
+
+        private Job(String id, File folder, File wav, File transcript) throws IOException {
+            this.id = id;
+            this.folder = folder;
+            this.wav = wav;
+            this.transcript = transcript;
+            this.exportPipeline = ExportPipeline.parse(exportFormats);
+        }
+
+        /**
+         * Override the server options with the form fields of the request.
+         *
+         * @throws IllegalArgumentException if a field is unknown or has an invalid value
+         */
+        private void setOptions(Map<String, List<String>> fields) throws IOException {
+            for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+                String name = field.getKey();
+                List<String> values = field.getValue();
+                if (name.equals(FORMAT_FIELD)) {
+                    for (String spec : values) {
+                        String[] parts = spec.split(":", 3);
+                        // Viseme map files would read the server file system
+                        if (parts.length > 2 && !VisemeMap.isBuiltIn(parts[2])) {
+                            throw new IllegalArgumentException("Unknown viseme map " + parts[2]);
+                        }
+                    }
+                    exportPipeline = ExportPipeline.parse(values);
+                } else if (name.equals("joint")) {
+                    jointAlignment = parseBoolean(name, values);
+                } else if (name.equals("windowed")) {
+                    windowedPhoneAlignment = parseBoolean(name, values);
+                } else if (name.equals("diff")) {
+                    diffAlignment = parseBoolean(name, values);
+                } else if (name.equals("adaptiveBeam")) {
+                    adaptiveBeam = parseBoolean(name, values);
+                } else if (name.equals("speechDetection")) {
+                    speechDetection = parseBoolean(name, values);
+                } else {
+                    throw new IllegalArgumentException("Unknown form field \"" + name + "\"");
+                }
+            }
+        }
+
+        private boolean parseBoolean(String name, List<String> values) {
+            if (values.size() != 1 || !values.get(0).matches("true|false")) {
+                throw new IllegalArgumentException("Expected a single \"true\" or \"false\" for \"" + name + "\"");
+            }
+            return Boolean.parseBoolean(values.get(0));
+        }
+
+        @Override
+        public void run() {
+            setStatus(Status.RUNNING, null);
+            try {
+                LipSync lipSync = new LipSync(wav.getAbsolutePath(), transcript.getAbsolutePath(), this, modelRegistry);
+                lipSync.setJointAlignment(jointAlignment);
+                lipSync.setWindowedPhoneAlignment(windowedPhoneAlignment);
+                lipSync.setSpeechDetection(speechDetection);
+                lipSync.setDiffAlignment(diffAlignment);
+                lipSync.setAdaptiveBeam(adaptiveBeam);
+                lipSync.setExportPipeline(exportPipeline);
+                lipSync.sync();
+                synchronized (this) {
+                    resultFolder = lipSync.getResultFolder();
+                    report = lipSync.getReport();
+                }
+                setStatus(Status.DONE, null);
+                System.err.println("Server:: done " + id);
+            } catch (Exception e) {
+                System.err.println("Server:: failed " + id + ": " + e);
+                e.printStackTrace();
+                setStatus(Status.FAILED, e.toString());
+            }
+        }
+
+        private synchronized void setStatus(Status status, String error) {
+            if (status == Status.DONE || status == Status.FAILED) {
+                finishedTime = System.currentTimeMillis();
+            }
+            this.status = status;
+            this.error = error;
+            notifyAll();
+        }
+
+        @Override
+        public void onStart() {
+
+        }
+
+        @Override
+        public synchronized void onProgress(double progress) {
+            this.progress = progress;
+            notifyAll();
+        }
+
+        @Override
+        public void onStop() {
+
+        }
+
+        private synchronized String toJson() {
+            return String.format(Locale.ROOT, "{\"id\": \"%s\", \"status\": \"%s\", \"progress\": %.1f%s}\n",
+                    id, status, progress, error == null ? "" : ", \"error\": " + quote(error));
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LipSyncServer [options]");
+        System.err.println("  --port <port>      8080 by default");
+        System.err.println("  --bind <address>   listen on this address instead of localhost only");
+        System.err.println("  --workers <n>      concurrent jobs, number of cores by default");
+        System.err.println("  --queue <n>        jobs waiting for a worker before refusing uploads, 16 by default");
+        System.err.println("  --folder <folder>  job files, lipsync-server in the temporary folder by default");
+        System.err.println("  --ttl <minutes>    how long finished jobs and their files are kept, 60 by default");
+        System.err.println("  --joint            take phone timings from the word pass");
+        System.err.println("  --windowed         align phones within their word time frame");
+        System.err.println("  --speech-detection decode only the speech regions in the first pass");
+        System.err.println("  --diff             align again only the words changed since the last run");
+        System.err.println("  --adaptive-beam    decode with a narrow beam, widened for ranges that fail");
+        System.err.println("  --format <f>       export format, repeatable, papagayo and binary by default:");
+        System.err.println("                     <name>[:<fps>[:<viseme map>]], name among " + ExportPipeline.getFormatNames());
+        System.err.println("Jobs may override them with the form fields joint, windowed, diff, adaptiveBeam,");
+        System.err.println("speechDetection and format");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        int port = 8080;
+        InetAddress bindAddress = InetAddress.getLoopbackAddress();
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        int queueCapacity = 16;
+        File folder = new File(System.getProperty("java.io.tmpdir"), "lipsync-server");
+        long jobTtl = TimeUnit.HOURS.toMillis(1);
+        boolean jointAlignment = false;
+        boolean windowedPhoneAlignment = false;
+        boolean speechDetection = false;
+        boolean diffAlignment = false;
+        boolean adaptiveBeam = false;
+        List<String> exportFormats = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--port")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--bind")) {
+                    bindAddress = InetAddress.getByName(args[++i]);
+                } else if (arg.equals("--workers")) {
+                    workerCount = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (arg.equals("--queue")) {
+                    queueCapacity = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--folder")) {
+                    folder = new File(args[++i]);
+                } else if (arg.equals("--ttl")) {
+                    jobTtl = TimeUnit.MINUTES.toMillis(Long.parseLong(args[++i]));
+                } else if (arg.equals("--joint")) {
+                    jointAlignment = true;
+                } else if (arg.equals("--windowed")) {
+                    windowedPhoneAlignment = true;
+                } else if (arg.equals("--speech-detection")) {
+                    speechDetection = true;
+                } else if (arg.equals("--diff")) {
+                    diffAlignment = true;
+                } else if (arg.equals("--adaptive-beam")) {
+                    adaptiveBeam = true;
+                } else if (arg.equals("--format")) {
+                    String format = args[++i];
+                    ExportPipeline.parse(format);
+                    exportFormats.add(format);
+                } else {
+                    usage();
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            usage();
+        }
+
+        ModelRegistry modelRegistry = ModelRegistry.getInstance();
+        // Jobs already keep the cores busy, do not also fan out each job's ranges
+        modelRegistry.setAlignerParallelism(Runtime.getRuntime().availableProcessors() / workerCount);
+        modelRegistry.preload(LipSync.WORD_DICTIONARY_PATH, workerCount);
+        if (!jointAlignment) {
+            modelRegistry.preload(LipSync.PHONE_DICTIONARY_PATH, workerCount);
+        }
+
+        LipSyncServer server = new LipSyncServer(new InetSocketAddress(bindAddress, port), workerCount, queueCapacity, modelRegistry, folder);
+        server.setJointAlignment(jointAlignment);
+        server.setWindowedPhoneAlignment(windowedPhoneAlignment);
+        server.setSpeechDetection(speechDetection);
+        server.setDiffAlignment(diffAlignment);
+        server.setAdaptiveBeam(adaptiveBeam);
+        if (!exportFormats.isEmpty()) {
+            server.setExportFormats(exportFormats);
+        }
+        server.setJobTtl(jobTtl);
+        server.start();
+    }
+}
@@ -0,0 +1,94 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.frontend.DataEndSignal;
+import edu.cmu.sphinx.frontend.DataProcessingException;
+import edu.cmu.sphinx.frontend.DataStartSignal;
+import edu.cmu.sphinx.frontend.DoubleData;
+import edu.cmu.sphinx.frontend.util.StreamDataSource;
+import edu.cmu.sphinx.util.TimeFrame;
+
+import java.io.InputStream;
+import java.nio.ShortBuffer;
+
+/**
+ * Front end data source reading samples from a memory-mapped {@link WavFile}.
+ *
+ * It replaces StreamDataSource as the "dataSource" of the front end pipeline and
+ * still accepts input streams (see {@link #setInputStream(InputStream, TimeFrame)}),
+ * so Context.setSpeechSource keeps working. Frame times and the end signal are
+ * absolute, counted from the sample offset.
+ */
+public class MappedWavDataSource extends StreamDataSource {
+    private static final int SAMPLES_PER_READ = 1600;
+
+    private ShortBuffer samples;
+    private long sampleOffset;
+    private boolean started;
+    private boolean ended;
+
+    public MappedWavDataSource() {
+    }
+
+    /**
+     * Serve the samples of the wav file within the time frame. Reading starts at
+     * the first sample of the frame.
+     */
+    public void setWavFile(WavFile wavFile, TimeFrame timeFrame) {
+        setSamples(wavFile.getSamples(timeFrame), 0);
+    }
+
+    /**
+     * Serve samples from their current position to their limit.
+     *
+     * @param sampleOffset number of the sample at index 0 of the buffer, so that frame
+     *                     times stay absolute when the buffer only holds the end of a recording
+     */
+    public void setSamples(ShortBuffer samples, long sampleOffset) {
+        this.samples = samples;
+        this.sampleOffset = sampleOffset;
+        this.started = false;
+        this.ended = false;
+    }
+
+    @Override
+    public void setInputStream(InputStream inputStream) {
+        this.samples = null;
+        super.setInputStream(inputStream);
+    }
+
+    @Override
+    public void setInputStream(InputStream inputStream, TimeFrame timeFrame) {
+        this.samples = null;
+        super.setInputStream(inputStream, timeFrame);
+    }
+
+    @Override
+    public Data getData() throws DataProcessingException {
+        if (samples == null) {
+            return super.getData();
+        }
+
+        if (!started) {
+            started = true;
+            return new DataStartSignal(WavFile.SAMPLE_RATE);
+        }
+
+        if (!samples.hasRemaining()) {
+            if (ended) {
+                return null;
+            }
+            ended = true;
+            // End time rather than length, so that it matches the sample numbers of the frames
+            long end = (sampleOffset + samples.position()) * 1000L / WavFile.SAMPLE_RATE;
+            return new DataEndSignal(end);
+        }
+
+        long firstSampleNumber = sampleOffset + samples.position();
+        double[] values = new double[Math.min(SAMPLES_PER_READ, samples.remaining())];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = samples.get();
+        }
+        return new DoubleData(values, WavFile.SAMPLE_RATE, firstSampleNumber);
+    }
+}
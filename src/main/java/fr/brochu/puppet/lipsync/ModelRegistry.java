@@ -0,0 +1,192 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide holder of warm {@link PhoneticSpeechAligner} instances.
+ *
+ * Building an aligner parses the Sphinx configuration and loads the acoustic model,
+ * so aligners are kept once created and handed out again to the next pass or job
+ * that needs the same dictionary. An aligner is not thread-safe: it must be
+ * acquired, used by one thread, then released.
+ */
+public class ModelRegistry {
+    public static final String SPHINX_CONFIG_PATH = "resource:/fr/brochu/puppet/lipsync/sphinx4.config.xml";
+    public static final String ACOUSTIC_MODEL_PATH = "resource:/fr/brochu/puppet/lipsync/fr-fr/fr-fr";
+    public static final String G2P_MODEL_PATH = "resource:/fr/brochu/puppet/lipsync/fr-fr/g2p/model.fst.ser";
+    public static final long RESULT_CACHE_SIZE = 256L * 1024 * 1024;
+
+    private static ModelRegistry instance;
+
+    private final String sphinxConfigPath;
+    private final String acousticModelPath;
+    private final String g2pModelPath;
+    private final Map<String, Deque<PhoneticSpeechAligner>> idleAligners = new HashMap<>();
+    private final Map<String, CompiledDictionary> compiledDictionaries = new HashMap<>();
+    private G2PCache g2pCache;
+    private ResultCache resultCache;
+    private File cacheFolder = new File(System.getProperty("user.home"), ".lipsync");
+    private volatile int alignerParallelism = Runtime.getRuntime().availableProcessors();
+
+    public ModelRegistry(String sphinxConfigPath, String acousticModelPath, String g2pModelPath) {
+        this.sphinxConfigPath = sphinxConfigPath;
+        this.acousticModelPath = acousticModelPath;
+        this.g2pModelPath = g2pModelPath;
+    }
+
+    public static synchronized ModelRegistry getInstance() {
+        if (instance == null) {
+            instance = new ModelRegistry(SPHINX_CONFIG_PATH, ACOUSTIC_MODEL_PATH, G2P_MODEL_PATH);
+        }
+        return instance;
+    }
+
+    /**
+     * Get an aligner using the given dictionary. A warm one is reused if available,
+     * otherwise a new one is loaded. It must be given back with {@link #releaseAligner}.
+     */
+    public PhoneticSpeechAligner acquireAligner(String dictionaryPath, ProgressListener progressListener) throws IOException {
+        PhoneticSpeechAligner aligner = null;
+        synchronized (this) {
+            Deque<PhoneticSpeechAligner> aligners = idleAligners.get(dictionaryPath);
+            if (aligners != null) {
+                aligner = aligners.poll();
+            }
+        }
+
+        if (aligner == null) {
+            System.err.println("Loading aligner for dictionary " + dictionaryPath);
+            aligner = new PhoneticSpeechAligner(sphinxConfigPath, acousticModelPath, dictionaryPath, g2pModelPath, progressListener);
+            aligner.setCompiledDictionary(getCompiledDictionary(dictionaryPath));
+            aligner.setG2PCache(getG2PCache());
+        } else {
+            aligner.setProgressListener(progressListener);
+        }
+        aligner.setParallelism(alignerParallelism);
+        return aligner;
+    }
+
+    /**
+     * Load aligners ahead of the first job, so that it does not pay for model loading.
+     *
+     * @param count number of aligners to have idle for the dictionary, typically one per worker
+     */
+    public void preload(String dictionaryPath, int count) throws IOException {
+        List<PhoneticSpeechAligner> aligners = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                aligners.add(acquireAligner(dictionaryPath, null));
+            }
+        } finally {
+            for (PhoneticSpeechAligner aligner : aligners) {
+                releaseAligner(aligner);
+            }
+        }
+    }
+
+    /**
+     * Get the memory-mapped compiled form of a dictionary, compiled into the cache
+     * folder on first use.
+     *
+     * @return null if the dictionary could not be compiled, the text dictionary is then used
+     */
+    public synchronized CompiledDictionary getCompiledDictionary(String dictionaryPath) {
+        if (!compiledDictionaries.containsKey(dictionaryPath)) {
+            CompiledDictionary compiledDictionary = null;
+            try {
+                compiledDictionary = CompiledDictionary.open(dictionaryPath, cacheFolder);
+            } catch (IOException e) {
+                System.err.println("Cannot compile dictionary " + dictionaryPath + ": " + e);
+            }
+            compiledDictionaries.put(dictionaryPath, compiledDictionary);
+        }
+        return compiledDictionaries.get(dictionaryPath);
+    }
+
+    /**
+     * Get the G2P cache shared by every aligner. Its store is kept in the cache folder,
+     * named after the G2P model.
+     */
+    public synchronized G2PCache getG2PCache() {
+        if (g2pCache == null) {
+            File storeFile = new File(cacheFolder, new File(g2pModelPath).getName() + ".cache");
+            g2pCache = new G2PCache(g2pModelPath, storeFile, 10000);
+        }
+        return g2pCache;
+    }
+
+    /**
+     * Get the cache of previous job results, kept in the "results" sub folder of the cache folder.
+     */
+    public synchronized ResultCache getResultCache() {
+        if (resultCache == null) {
+            resultCache = new ResultCache(new File(cacheFolder, "results"), RESULT_CACHE_SIZE);
+        }
+        return resultCache;
+    }
+
+    public String getSphinxConfigPath() {
+        return sphinxConfigPath;
+    }
+
+    public String getAcousticModelPath() {
+        return acousticModelPath;
+    }
+
+    public String getG2PModelPath() {
+        return g2pModelPath;
+    }
+
+    public File getCacheFolder() {
+        return cacheFolder;
+    }
+
+    /**
+     * Folder where compiled dictionaries and the G2P cache are kept, ~/.lipsync by default.
+     */
+    public synchronized void setCacheFolder(File cacheFolder) {
+        this.cacheFolder = cacheFolder;
+        this.resultCache = null;
+    }
+
+    /**
+     * Number of recognizer instances each aligner may decode with concurrently.
+     */
+    public void setAlignerParallelism(int alignerParallelism) {
+        this.alignerParallelism = Math.max(1, alignerParallelism);
+    }
+
+    /**
+     * Stop the decoder threads of the idle aligners, before exiting or dropping the
+     * registry. Aligners acquired later start them again.
+     */
+    public synchronized void deallocate() {
+        for (Deque<PhoneticSpeechAligner> aligners : idleAligners.values()) {
+            for (PhoneticSpeechAligner aligner : aligners) {
+                aligner.deallocate();
+            }
+        }
+    }
+
+    public synchronized void releaseAligner(PhoneticSpeechAligner aligner) {
+        Deque<PhoneticSpeechAligner> aligners = idleAligners.get(aligner.getDictionaryPath());
+        if (aligners == null) {
+            aligners = new ArrayDeque<>();
+            idleAligners.put(aligner.getDictionaryPath(), aligners);
+        }
+        aligner.setProgressListener(null);
+        aligner.setMetrics(JobMetrics.NONE);
+        aligner.setLog(null);
+        aligner.setSpeechRegions(null);
+        aligner.setAdaptiveBeam(false);
+        aligners.push(aligner);
+    }
+
+}
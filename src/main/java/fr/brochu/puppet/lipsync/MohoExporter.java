@@ -0,0 +1,29 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Moho switch data (.dat): the mouth cues, "frame viseme" per line. Moho counts
+ * frames from 1. 24 frames per second and Preston Blair mouth shapes by default.
+ */
+public class MohoExporter extends AbstractTimelineExporter {
+    public static final String NAME = "moho";
+
+    public MohoExporter() {
+        super(NAME, ".dat", Charset.forName("ISO-8859-1"), 24, VisemeMap.PRESTON_BLAIR);
+    }
+
+    @Override
+    public void write(Timeline timeline, Writer writer) throws IOException {
+        writer.write("MohoSwitch1\n");
+        Cues cues = getCues(timeline);
+        for (int i = 0; i < cues.size(); i++) {
+            writeNumber(writer, cues.getFrame(i) + 1);
+            writer.write(' ');
+            writer.write(cues.getViseme(i));
+            writer.write('\n');
+        }
+    }
+}
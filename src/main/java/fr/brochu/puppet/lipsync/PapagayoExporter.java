@@ -1,166 +1,72 @@
 package fr.brochu.puppet.lipsync;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-public class PapagayoExporter {
-    private List<AlignedWord> alignedWords;
-    private List<AlignedWord> alignedPhones;
-    private int[] wordIndexes;
-    private String wavPath;
-
-    private final static Map<String, String> phoneShapeMap = new HashMap<>();
-    private final static int FPS = 100;
-
-    static {
-        phoneShapeMap.put("aa", "AI");
-        phoneShapeMap.put("ai", "E");
-        phoneShapeMap.put("an", "E");
-        phoneShapeMap.put("au", "O");
-        phoneShapeMap.put("bb", "MBP");
-        phoneShapeMap.put("ch", "etc");
-        phoneShapeMap.put("dd", "etc");
-        phoneShapeMap.put("ee", "E");
-        phoneShapeMap.put("ei", "E");
-        phoneShapeMap.put("eu", "O");
-        phoneShapeMap.put("ff", "FV");
-        phoneShapeMap.put("gg", "etc");
-        phoneShapeMap.put("gn", "etc");
-        phoneShapeMap.put("ii", "E");
-        phoneShapeMap.put("in", "E");
-        phoneShapeMap.put("jj", "etc");
-        phoneShapeMap.put("kk", "etc");
-        phoneShapeMap.put("ll", "L");
-        phoneShapeMap.put("mm", "MBP");
-        phoneShapeMap.put("nn", "etc");
-        phoneShapeMap.put("oe", "E");
-        phoneShapeMap.put("on", "O");
-        phoneShapeMap.put("oo", "O");
-        phoneShapeMap.put("ou", "U");
-        phoneShapeMap.put("pp", "MBP");
-        phoneShapeMap.put("rr", "etc");
-        phoneShapeMap.put("ss", "etc");
-        phoneShapeMap.put("tt", "etc");
-        phoneShapeMap.put("un", "E");
-        phoneShapeMap.put("uu", "U");
-        phoneShapeMap.put("uy", "E");
-        phoneShapeMap.put("vv", "FV");
-        phoneShapeMap.put("ww", "WQ");
-        phoneShapeMap.put("yy", "etc");
-        phoneShapeMap.put("zz", "etc");
-    }
-
-    public PapagayoExporter(List<AlignedWord> alignedWords, List<AlignedWord> alignedPhones, int[] wordIndexes, String wavPath) {
-        this.alignedWords = alignedWords;
-        this.alignedPhones = alignedPhones;
-        this.wordIndexes = wordIndexes;
-        this.wavPath = wavPath;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Papagayo .pgo file of an alignment, 100 frames per second and Preston Blair mouth
+ * shapes by default. The file is streamed word by word.
+ */
+public class PapagayoExporter extends AbstractTimelineExporter {
+    public static final String NAME = "papagayo";
+    public static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    public PapagayoExporter() {
+        super(NAME, ".pgo", CHARSET, 100, VisemeMap.PRESTON_BLAIR);
     }
 
     @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb
-                .append("lipsync version 1\n")
-                .append(wavPath + "\n")
-                .append(FPS)
-                .append("\n");
-
-        // Get last timing
-        long lastTime = -1;
-        for (int i = alignedPhones.size() - 1; i >= 0; i--) {
-            if (!alignedPhones.get(i).ignored) {
-                lastTime = alignedPhones.get(i).getBestTimeFrame().getEnd();
-                break;
-            }
-        }
-
-        sb
-                .append(timeToFrame(lastTime))
-                .append("\n");
-
-        sb
-                .append("1\n")
-                .append("\tVoice 1\n");
-
-        int wordCount = 0;
-        StringBuilder transcript = new StringBuilder();
-        for (AlignedWord word : alignedWords) {
-            if (!word.ignored) {
-                transcript.append(word.spelling + " ");
-                wordCount++;
-            }
+    public void write(Timeline timeline, Writer writer) throws IOException {
+        long lastFrame = toFrame(timeline.getLastTime());
+
+        writer.write("lipsync version 1\n");
+        writer.write(timeline.getAudioPath());
+        writer.write('\n');
+        writeNumber(writer, getFrameRate());
+        writer.write('\n');
+        writeNumber(writer, lastFrame);
+        writer.write("\n1\n\tVoice 1\n\t");
+
+        writeTranscript(writer, timeline);
+        writer.write("\n\t1\n\t\t");
+        writeTranscript(writer, timeline);
+        writer.write("\n\t\t0\n\t\t");
+        writeNumber(writer, lastFrame);
+        writer.write("\n\t\t");
+        writeNumber(writer, timeline.getWordCount());
+        writer.write('\n');
+
+        for (int word = 0; word < timeline.getWordCount(); word++) {
+            writeWordStructure(writer, timeline, word);
         }
-
-        sb
-                .append("\t" + transcript + "\n")
-                .append("\t1\n")
-                .append("\t\t" + transcript + "\n")
-                .append("\t\t0\n")
-                .append("\t\t" + timeToFrame(lastTime) + "\n")
-                .append("\t\t" + wordCount + "\n");
-
-        for (int i = 0; i < alignedWords.size(); i++) {
-            if (!alignedWords.get(i).ignored) {
-                sb.append(getWordStructure(i));
-            }
-        }
-
-        return sb.toString();
     }
 
-    private static long timeToFrame(long time) {
-        return (long) (time / 1000d * FPS);
-    }
-
-    private String getWordStructure(int wordIndex) {
-        AlignedWord alignedWord = alignedWords.get(wordIndex);
-        int phoneCount = 0;
-        int wordLength = (wordIndex < alignedWords.size() - 1 ? wordIndexes[wordIndex + 1] : alignedPhones.size()) - wordIndexes[wordIndex];
-        StringBuilder phoneSb = new StringBuilder();
-        for (int i = 0; i < wordLength; i++) {
-            AlignedWord phone = alignedPhones.get(wordIndexes[wordIndex] + i);
-            phoneCount++;
-            phoneSb.append("\t\t\t\t" + getPhoneStart(wordIndex, i) + " " + phoneToMouthShape(phone.spelling) + "\n");
+    private void writeTranscript(Writer writer, Timeline timeline) throws IOException {
+        for (int word = 0; word < timeline.getWordCount(); word++) {
+            writer.write(timeline.getWord(word));
+            writer.write(' ');
         }
-        StringBuilder sb = new StringBuilder();
-        sb
-                .append(String.format("\t\t\t%s %d %d %d\n",
-                        alignedWord.spelling,
-                        timeToFrame(alignedWord.getBestTimeFrame().getStart()),
-                        timeToFrame(alignedWord.getBestTimeFrame().getEnd()),
-                        phoneCount))
-                .append(phoneSb);
-
-        return  sb.toString();
     }
 
-    private long getPhoneStart(int wordIndex, int phoneIndex) {
-        AlignedWord phone = alignedPhones.get(wordIndexes[wordIndex] + phoneIndex);
-        long start = -1;
-        if (!phone.ignored) {
-            start = timeToFrame(phone.getBestTimeFrame().getStart());
-        } else {
-            for (int i = phoneIndex; i >= 0; i--) {
-                AlignedWord prevPhone = alignedPhones.get(wordIndexes[wordIndex] + i);
-                if (!prevPhone.ignored) {
-                    start = timeToFrame(prevPhone.getBestTimeFrame().getEnd());
-                    break;
-                }
-            }
-            if (start < 0) {
-                AlignedWord alignedWord = alignedWords.get(wordIndex);
-                start = timeToFrame(alignedWord.getBestTimeFrame().getStart());
-            }
+    private void writeWordStructure(Writer writer, Timeline timeline, int word) throws IOException {
+        int firstPhone = timeline.getFirstPhone(word);
+        int phoneCount = timeline.getPhoneCount(word);
+        writer.write("\t\t\t");
+        writer.write(timeline.getWord(word));
+        writer.write(' ');
+        writeNumber(writer, toFrame(timeline.getWordStart(word)));
+        writer.write(' ');
+        writeNumber(writer, toFrame(timeline.getWordEnd(word)));
+        writer.write(' ');
+        writeNumber(writer, phoneCount);
+        writer.write('\n');
+        for (int phone = firstPhone; phone < firstPhone + phoneCount; phone++) {
+            writer.write("\t\t\t\t");
+            writeNumber(writer, toFrame(timeline.getPhoneStart(phone)));
+            writer.write(' ');
+            writer.write(getVisemeMap().getViseme(timeline.getPhone(phone)));
+            writer.write('\n');
         }
-        return start;
-    }
-
-    /**
-     * See phoneShapeMap
-     */
-    private static String phoneToMouthShape(String phone) {
-        return phoneShapeMap.get(phone);
     }
 }
@@ -0,0 +1,66 @@
+package fr.brochu.puppet.lipsync;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Position of the phones of each word in the phone sequence of a transcript, and
+ * the reverse. Immutable, computed once per pronunciation change, see
+ * {@link Transcript#getPhoneIndex()}.
+ */
+public class PhoneIndex {
+    /** Start of each word phones, followed by the phone count */
+    private final int[] phoneStarts;
+    private final int[] phoneWords;
+
+    public PhoneIndex(List<TranscriptWord> words) {
+        phoneStarts = new int[words.size() + 1];
+        for (int i = 0; i < words.size(); i++) {
+            phoneStarts[i + 1] = phoneStarts[i] + words.get(i).getPhones().size();
+        }
+        phoneWords = new int[getPhoneCount()];
+        for (int i = 0; i < words.size(); i++) {
+            Arrays.fill(phoneWords, phoneStarts[i], phoneStarts[i + 1], i);
+        }
+    }
+
+    public int getWordCount() {
+        return phoneStarts.length - 1;
+    }
+
+    public int getPhoneCount() {
+        return phoneStarts[phoneStarts.length - 1];
+    }
+
+    /**
+     * @return index of the first phone of the word
+     */
+    public int getPhoneStart(int word) {
+        return phoneStarts[word];
+    }
+
+    /**
+     * @return index after the last phone of the word
+     */
+    public int getPhoneEnd(int word) {
+        return phoneStarts[word + 1];
+    }
+
+    public int getPhoneCount(int word) {
+        return phoneStarts[word + 1] - phoneStarts[word];
+    }
+
+    /**
+     * @return index of the word the phone belongs to
+     */
+    public int getWord(int phone) {
+        return phoneWords[phone];
+    }
+
+    /**
+     * @return start of each word phones, a copy
+     */
+    public int[] getPhoneStarts() {
+        return Arrays.copyOf(phoneStarts, getWordCount());
+    }
+}
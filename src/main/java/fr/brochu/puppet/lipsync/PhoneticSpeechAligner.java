@@ -5,8 +5,16 @@ import edu.cmu.sphinx.alignment.SimpleTokenizer;
 import edu.cmu.sphinx.alignment.TextTokenizer;
 import edu.cmu.sphinx.api.Configuration;
 import edu.cmu.sphinx.api.Context;
+import edu.cmu.sphinx.decoder.search.ActiveListFactory;
 import edu.cmu.sphinx.decoder.search.Token;
+import edu.cmu.sphinx.frontend.FrontEnd;
+import edu.cmu.sphinx.linguist.HMMSearchState;
 import edu.cmu.sphinx.linguist.WordSearchState;
+import edu.cmu.sphinx.linguist.acoustic.HMM;
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
+import edu.cmu.sphinx.linguist.acoustic.Unit;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.linguist.dictionary.Dictionary;
 import edu.cmu.sphinx.linguist.dictionary.Pronunciation;
 import edu.cmu.sphinx.linguist.language.grammar.AlignerGrammar;
 import edu.cmu.sphinx.linguist.language.ngram.DynamicTrigramModel;
@@ -15,61 +23,193 @@ import edu.cmu.sphinx.result.Result;
 import edu.cmu.sphinx.result.WordResult;
 import edu.cmu.sphinx.util.Range;
 import edu.cmu.sphinx.util.TimeFrame;
+import edu.cmu.sphinx.util.props.ConfigurationManager;
+import edu.cmu.sphinx.util.props.ConfigurationManagerUtils;
+import edu.cmu.sphinx.util.props.PropertySheet;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ShortBuffer;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 public class PhoneticSpeechAligner {
-    private final Logger logger = Logger.getLogger(getClass().getSimpleName());
+    private static final AtomicInteger alignerCount = new AtomicInteger();
+
+    /** Child of the class logger, so that the job using this aligner can take its messages */
+    private final Logger logger = Logger.getLogger(getClass().getSimpleName() + "." + alignerCount.incrementAndGet());
+    private JobLog log;
 
     private static final int TUPLE_SIZE = 3;
+    private static final long FRAME_LENGTH = 10;
+    /** Length of the first pass chunks, audio longer than two chunks is decoded in chunks */
+    public static final long DEFAULT_CHUNK_LENGTH = 120000;
+    private static final long CHUNK_OVERLAP = 15000;
+    private static final int SPAN_SLACK = 20;
+    /** Aligner grammar beams tried first by the adaptive beam, the configured ones being restored on failure */
+    private static final String NARROW_ABSOLUTE_BEAM_WIDTH = "2000";
+    private static final String NARROW_RELATIVE_BEAM_WIDTH = "1e-30";
+    /**
+     * Shortest silence between speech regions skipped by the first pass, in milliseconds.
+     * Closer regions are decoded together, since each decode starts the language model
+     * and grammar context over.
+     */
+    static final long MIN_SKIPPED_SILENCE = 1000;
+    /** Error rate above which a range decoded with the narrow beam is decoded again */
+    private static final double MAX_NARROW_ERROR_RATE = 0.2;
+    /** Absolute and relative beams of the "activeList" component, by configuration path */
+    private static final Map<String, String[]> configuredBeams = new HashMap<>();
 
-    private final Context context;
-    private final Recognizer recognizer;
-    private final AlignerGrammar grammar;
-    private final DynamicTrigramModel languageModel;
-    private final ProgressListener progressListener;
+    private final String sphinxConfigPath;
+    private final String amPath;
+    private final String dictionaryPath;
+    private final String g2pPath;
+    /** Aligner grammar beams of the configuration, restored after a narrow beam */
+    private final String[] beamWidths;
+    private final RecognizerInstance mainInstance;
+    private final List<RecognizerInstance> instances = new ArrayList<>();
+    private final BlockingQueue<RecognizerInstance> idleInstances = new LinkedBlockingQueue<>();
+    private int instanceCount = 1;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor;
+    private ProgressListener progressListener;
     private double progress = 0;
+    private CompiledDictionary compiledDictionary;
+    private G2PCache g2pCache;
+    private File dictionarySubsetFile;
+    private Set<String> dictionarySubsetWords;
+    private String currentDictionaryPath;
+    private Map<WordResult, List<WordResult>> phoneSegments = Collections.emptyMap();
+    private JobMetrics metrics = JobMetrics.NONE;
+    private List<TimeFrame> speechRegions;
+    private long chunkLength = DEFAULT_CHUNK_LENGTH;
+    private boolean adaptiveBeam = false;
 
     private TextTokenizer tokenizer;
 
     public PhoneticSpeechAligner(String sphinxConfigPath, String amPath, String dictPath, String g2pPath, ProgressListener progressListener) throws MalformedURLException, IOException {
+        this.sphinxConfigPath = sphinxConfigPath;
+        this.amPath = amPath;
+        this.dictionaryPath = dictPath;
+        this.g2pPath = g2pPath;
+        this.currentDictionaryPath = dictPath;
         this.progressListener = progressListener;
-        Configuration configuration = new Configuration();
-        configuration.setAcousticModelPath(amPath);
-        configuration.setDictionaryPath(dictPath);
-
-        context = new Context(sphinxConfigPath, configuration);
-        if (g2pPath != null) {
-            context.setLocalProperty("dictionary->g2pModelPath", g2pPath);
-            context.setLocalProperty("dictionary->g2pMaxPron", "2");
-        }
-        context.setLocalProperty("lexTreeLinguist->languageModel", "dynamicTrigramModel");
-        recognizer = context.getInstance(Recognizer.class);
-        grammar = context.getInstance(AlignerGrammar.class);
-        languageModel = context.getInstance(DynamicTrigramModel.class);
+        this.beamWidths = getConfiguredBeams(sphinxConfigPath);
+        this.mainInstance = new RecognizerInstance();
+        this.idleInstances.offer(mainInstance);
         setTokenizer(new SimpleTokenizer());
     }
 
     public List<WordResult> align(URL audioUrl, String transcript) throws IOException {
-        return align(audioUrl, getTokenizer().expand(transcript));
+        return align(extractFeatures(audioUrl), getTokenizer().expand(transcript));
+    }
+
+    public List<WordResult> align(URL audioUrl, List<String> sentenceTranscript) throws IOException {
+        return align(extractFeatures(audioUrl), sentenceTranscript);
+    }
+
+    public List<WordResult> align(FeatureCache features, String transcript) throws IOException {
+        return align(features, getTokenizer().expand(transcript));
+    }
+
+    /**
+     * Run the front end once over the whole memory-mapped wav file. The result can be
+     * shared by every pass and every aligner using the same acoustic model.
+     */
+    public FeatureCache extractFeatures(WavFile wavFile) {
+        FeatureCache features = extractFeatures(wavFile.getSamples(TimeFrame.INFINITE), 0);
+        logger.info("Extracted " + features.getFrameCount() + " frames from " + wavFile.getFile());
+        return features;
+    }
+
+    /**
+     * Run the front end over 16 kHz samples, from their position to their limit.
+     *
+     * @param sampleOffset number of the sample at index 0 of the buffer
+     */
+    public FeatureCache extractFeatures(ShortBuffer samples, long sampleOffset) {
+        JobMetrics.Span span = metrics.start("features");
+        try {
+            FrontEnd frontEnd = mainInstance.context.getInstance(FrontEnd.class);
+            frontEnd.initialize();
+            mainInstance.context.getInstance(MappedWavDataSource.class).setSamples(samples, sampleOffset);
+            return FeatureCache.read(frontEnd);
+        } finally {
+            span.stop();
+        }
+    }
+
+    /**
+     * Run the front end once over the whole audio stream. The result can be shared by
+     * every pass and every aligner using the same acoustic model.
+     */
+    public FeatureCache extractFeatures(URL audioUrl) throws IOException {
+        FrontEnd frontEnd = mainInstance.context.getInstance(FrontEnd.class);
+        InputStream stream = audioUrl.openStream();
+        try {
+            frontEnd.initialize();
+            mainInstance.context.setSpeechSource(stream);
+            FeatureCache features = FeatureCache.read(frontEnd);
+            logger.info("Extracted " + features.getFrameCount() + " frames from " + audioUrl);
+            return features;
+        } finally {
+            stream.close();
+        }
     }
 
     /**
      * Align audio to sentence transcript
      *
-     * @param audioUrl audio file URL to process
+     * The first pass decodes the whole audio with the transcript language model. The
+     * following passes decode the gaps left between aligned words; those ranges do not
+     * overlap, so they are decoded concurrently on up to {@link #getParallelism()}
+     * recognizer instances, then merged in their scheduling order.
+     *
+     * @param features front end output of the audio to process, see {@link #extractFeatures(URL)}
      * @param sentenceTranscript cleaned transcript
      * @return List of aligned words with timings
      * @throws IOException if IO went wrong
      */
-    public List<WordResult> align(URL audioUrl, List<String> sentenceTranscript) throws IOException {
+    public List<WordResult> align(final FeatureCache features, List<String> sentenceTranscript) throws IOException {
+        return align(features, sentenceTranscript, Collections.<Integer, WordResult>emptyMap(), TimeFrame.INFINITE.getEnd());
+    }
+
+    /**
+     * Align audio to sentence transcript, starting from words whose timing is already
+     * known, typically the words left unchanged since a previous alignment. The first
+     * pass is skipped: the gaps between anchors are scheduled as the following passes
+     * schedule gaps between aligned words, so only the changed spans are decoded.
+     * Anchors that are not decoded again are returned as given.
+     *
+     * @param anchors known words by transcript word index, all of them when empty
+     * @param lastFrame end of the audio, in milliseconds
+     */
+    public List<WordResult> align(final FeatureCache features, List<String> sentenceTranscript, Map<Integer, WordResult> anchors, long lastFrame) throws IOException {
         progressListener.onStart();
+        progress = 0;
+        phoneSegments = Collections.synchronizedMap(new IdentityHashMap<WordResult, List<WordResult>>());
+
+        // The aligner may be reused, restore the first pass search manager
+        mainInstance.context.setLocalProperty("decoder->searchManager", "wordPruningSearchManager");
 
         List<String> transcript = sentenceToWords(sentenceTranscript);
+        useDictionarySubset(transcript);
 
         LongTextAligner aligner = new LongTextAligner(transcript, TUPLE_SIZE);
         Map<Integer, WordResult> alignedWords = new TreeMap<Integer, WordResult>();
@@ -77,102 +217,614 @@ public class PhoneticSpeechAligner {
         Queue<List<String>> texts = new ArrayDeque<List<String>>();
         Queue<TimeFrame> timeFrames = new ArrayDeque<TimeFrame>();
 
-        ranges.offer(new Range(0, transcript.size()));
-        texts.offer(transcript);
-        TimeFrame totalTimeFrame = TimeFrame.INFINITE;
-        timeFrames.offer(totalTimeFrame);
-        long lastFrame = TimeFrame.INFINITE.getEnd();
-
-        languageModel.setText(sentenceTranscript);
-
-        for (int i = 0; i < 4; ++i) {
-            if (i == 1) {
-                context.setLocalProperty("decoder->searchManager", "alignerSearchManager");
+        int firstIteration = 0;
+        if (anchors.isEmpty() && chunkLength > 0 && features.getDuration() > 2 * chunkLength) {
+            JobMetrics.Span iterationSpan = metrics.start("iteration0");
+            try {
+                lastFrame = features.getDuration();
+                alignedWords.putAll(decodeChunks(features, transcript, aligner));
+                scheduleNextAlignment(transcript, alignedWords, ranges, texts, timeFrames, lastFrame);
+            } finally {
+                iterationSpan.stop();
             }
+            firstIteration = 1;
+        } else if (anchors.isEmpty()) {
+            ranges.offer(new Range(0, transcript.size()));
+            texts.offer(transcript);
+            timeFrames.offer(TimeFrame.INFINITE);
+            mainInstance.languageModel.setText(sentenceTranscript);
+        } else {
+            alignedWords.putAll(anchors);
+            scheduleNextAlignment(transcript, alignedWords, ranges, texts, timeFrames, lastFrame);
+            metrics.add("anchors", anchors.size());
+            firstIteration = 1;
+        }
+
+        for (int i = firstIteration; i < 4; ++i) {
+            JobMetrics.Span iterationSpan = metrics.start("iteration" + i);
+            try {
+                if (i == 1) {
+                    mainInstance.context.setLocalProperty("decoder->searchManager", "alignerSearchManager");
+                }
 
-            while (!texts.isEmpty()) {
                 assert texts.size() == ranges.size();
                 assert texts.size() == timeFrames.size();
 
-                List<String> text = texts.poll();
-                TimeFrame frame = timeFrames.poll();
-                Range range = ranges.poll();
+                List<List<String>> passTexts = new ArrayList<List<String>>(texts);
+                List<TimeFrame> passFrames = new ArrayList<TimeFrame>(timeFrames);
+                List<Range> passRanges = new ArrayList<Range>(ranges);
+                texts.clear();
+                timeFrames.clear();
+                ranges.clear();
 
+                List<List<WordResult>> hypotheses;
+                if (i == 0) {
+                    hypotheses = new ArrayList<List<WordResult>>();
+                    for (int j = 0; j < passTexts.size(); j++) {
+                        hypotheses.add(decodeSpeech(features, passTexts.get(j), TimeFrame.INFINITE, true));
+                    }
+                } else {
+                    hypotheses = decodeConcurrently(features, passTexts, passFrames);
+                }
 
-                logger.info("Aligning frame " + frame + " to text " + text + " range " + range);
+                for (int j = 0; j < hypotheses.size(); j++) {
+                    List<WordResult> hypothesis = hypotheses.get(j);
 
-                recognizer.allocate();
+                    if (i == 0) {
+                        if (hypothesis.size() > 0) {
+                            lastFrame = hypothesis.get(hypothesis.size() - 1).getTimeFrame().getEnd();
+                        }
+                    }
 
-                if (i >= 1) {
-                    grammar.setWords(text);
-                }
+                    List<String> words = new ArrayList<String>();
+                    for (WordResult wr : hypothesis) {
+                        words.add(wr.getWord().getSpelling());
+                    }
+                    int[] alignment = aligner.align(words, passRanges.get(j));
 
-                context.setSpeechSource(audioUrl.openStream(), frame);
+                    List<WordResult> results = hypothesis;
 
-                List<WordResult> hypothesis = new ArrayList<WordResult>();
-                Result result;
-                while (null != (result = recognizer.recognize())) {
-                    logger.info("Utterance result " + result.getTimedBestResult(true));
-                    logger.info("Utterance Pronunciation: " + result.getBestPronunciationResult());
-                    List<WordResult> bestWordResults = result.getTimedBestResult(false);
+                    logger.info("Decoding result is " + results);
 
-                    double newProgress = progress + (double)bestWordResults.size() / text.size();
-                    if (newProgress != progress && i == 0) {
-                        this.progressListener.onProgress(newProgress);
-                    }
-                    progress = newProgress;
+                    // dumpAlignment(transcript, alignment, results);
+                    dumpAlignmentStats(transcript, alignment, results);
 
-                    // Record Best pronunciation and remove other ones.
-                    Token token = result.getBestFinalToken();
-                    for (int j = bestWordResults.size() - 1; j >= 0 && token != null; j--) {
-                        while (!token.isWord() || token.getWord().isFiller()) {
-                            token = token.getPredecessor();
+                    for (int k = 0; k < alignment.length; k++) {
+                        if (alignment[k] != -1) {
+                            alignedWords.put(alignment[k], hypothesis.get(k));
                         }
-                        WordSearchState wordState = (WordSearchState) token.getSearchState();
-                        Pronunciation pronunciation = wordState.getPronunciation();
-                        Pronunciation[] wordPronunciations = bestWordResults.get(j).getWord().getPronunciations();
-                        wordPronunciations[0] = pronunciation;
-                        for (int k = 1; k < wordPronunciations.length; k++) {
-                            wordPronunciations[k] = null;
-                        }
-                        token = token.getPredecessor();
                     }
-                    hypothesis.addAll(bestWordResults);
                 }
 
-                if (i == 0) {
-                    if (hypothesis.size() > 0) {
-                        lastFrame = hypothesis.get(hypothesis.size() - 1).getTimeFrame().getEnd();
-                    }
-                }
+                scheduleNextAlignment(transcript, alignedWords, ranges, texts, timeFrames, lastFrame);
+                metrics.add("rangesDecoded", passTexts.size());
+            } finally {
+                iterationSpan.stop();
+            }
+        }
+        this.progressListener.onStop();
+
+        return new ArrayList<WordResult>(alignedWords.values());
+    }
+
+    /**
+     * Align independent windows, each one holding a short text and the time frame it
+     * is known to be spoken in. Windows are decoded concurrently with the aligner grammar.
+     *
+     * @return for each window, the result of each of its words, null for words not aligned
+     */
+    public List<WordResult[]> alignWindows(FeatureCache features, List<List<String>> texts, List<TimeFrame> frames) throws IOException {
+        List<String> allWords = new ArrayList<String>();
+        for (List<String> text : texts) {
+            allWords.addAll(text);
+        }
+        useDictionarySubset(allWords);
+        mainInstance.context.setLocalProperty("decoder->searchManager", "alignerSearchManager");
+        phoneSegments = Collections.synchronizedMap(new IdentityHashMap<WordResult, List<WordResult>>());
+
+        JobMetrics.Span span = metrics.start("windows");
+        try {
+            List<List<WordResult>> hypotheses = decodeConcurrently(features, texts, frames);
+            metrics.add("windowsDecoded", texts.size());
+
+            List<WordResult[]> windowResults = new ArrayList<WordResult[]>();
+            for (int i = 0; i < texts.size(); i++) {
+                List<String> text = texts.get(i);
+                List<WordResult> hypothesis = hypotheses.get(i);
+                WordResult[] results = new WordResult[text.size()];
 
                 List<String> words = new ArrayList<String>();
                 for (WordResult wr : hypothesis) {
                     words.add(wr.getWord().getSpelling());
                 }
-                int[] alignment = aligner.align(words, range);
+                if (!text.isEmpty() && !words.isEmpty()) {
+                    int[] alignment = new LongTextAligner(text, Math.min(TUPLE_SIZE, text.size())).align(words);
+                    for (int j = 0; j < alignment.length; j++) {
+                        if (alignment[j] != -1) {
+                            results[alignment[j]] = hypothesis.get(j);
+                        }
+                    }
+                }
+                windowResults.add(results);
+            }
+            return windowResults;
+        } finally {
+            span.stop();
+        }
+    }
+
+    /**
+     * First pass decode of a time frame with the language model of the current text.
+     * When speech regions are known, only they are decoded and their hypotheses are
+     * joined in time order: regions cannot be matched with transcript chunks before
+     * decoding, so each one is decoded against the same language model.
+     */
+    private List<WordResult> decodeSpeech(FeatureCache features, List<String> text, TimeFrame frame, boolean reportProgress) throws IOException {
+        if (speechRegions == null) {
+            return decode(mainInstance, features, text, frame, false, reportProgress);
+        }
+        List<WordResult> hypothesis = new ArrayList<WordResult>();
+        for (TimeFrame region : mergeSpeechRegions(speechRegions, frame)) {
+            hypothesis.addAll(decode(mainInstance, features, text, region, false, reportProgress));
+            metrics.add("speechRegions", 1);
+        }
+        return hypothesis;
+    }
+
+    /**
+     * @return the regions within the frame, those separated by less than
+     * {@link #MIN_SKIPPED_SILENCE} joined with the silence between them
+     */
+    static List<TimeFrame> mergeSpeechRegions(List<TimeFrame> regions, TimeFrame frame) {
+        List<TimeFrame> merged = new ArrayList<TimeFrame>();
+        long mergedStart = -1;
+        long mergedEnd = -1;
+        for (TimeFrame region : regions) {
+            long start = Math.max(region.getStart(), frame.getStart());
+            long end = Math.min(region.getEnd(), frame.getEnd());
+            if (start >= end) {
+                continue;
+            }
+            if (mergedStart >= 0 && start - mergedEnd < MIN_SKIPPED_SILENCE) {
+                mergedEnd = end;
+                continue;
+            }
+            if (mergedStart >= 0) {
+                merged.add(new TimeFrame(mergedStart, mergedEnd));
+            }
+            mergedStart = start;
+            mergedEnd = end;
+        }
+        if (mergedStart >= 0) {
+            merged.add(new TimeFrame(mergedStart, mergedEnd));
+        }
+        return merged;
+    }
+
+    /**
+     * First pass over long audio, one overlapping chunk at a time, so that the search
+     * never holds more than a chunk worth of tokens and lattice.
+     *
+     * Each chunk is decoded with the language model of a transcript span starting after
+     * the last anchor and long enough for the chunk, given the average speech rate. Only
+     * the words up to the last confident one ending before the overlap are kept; they
+     * are the anchors the next chunk and span start from. Words missed here are left
+     * to the following passes.
+     *
+     * @return aligned words by transcript word index
+     */
+    private Map<Integer, WordResult> decodeChunks(FeatureCache features, List<String> transcript, LongTextAligner aligner) throws IOException {
+        Map<Integer, WordResult> alignedWords = new TreeMap<Integer, WordResult>();
+        long duration = features.getDuration();
+        double wordsPerMs = (double) transcript.size() / duration;
+        int chunkWords = (int) (chunkLength * wordsPerMs);
+        long overlap = Math.min(CHUNK_OVERLAP, chunkLength / 2);
+
+        long chunkStart = 0;
+        int spanStart = 0;
+        while (chunkStart < duration && spanStart < transcript.size()) {
+            long chunkEnd = Math.min(duration, chunkStart + chunkLength);
+            boolean last = chunkEnd >= duration;
+            int expectedEnd = (int) (chunkEnd * wordsPerMs);
+            int spanEnd = last ? transcript.size()
+                    : Math.min(transcript.size(), Math.max(spanStart + chunkWords, expectedEnd) + chunkWords / 2 + SPAN_SLACK);
+            List<String> span = transcript.subList(spanStart, spanEnd);
+
+            mainInstance.languageModel.setText(Collections.singletonList(join(span)));
+            List<WordResult> hypothesis = decodeSpeech(features, span, new TimeFrame(chunkStart, chunkEnd), false);
+            List<String> words = new ArrayList<String>();
+            for (WordResult wr : hypothesis) {
+                words.add(wr.getWord().getSpelling());
+            }
+            int[] alignment = aligner.align(words, new Range(spanStart, spanEnd));
+            dumpAlignmentStats(span, alignment, hypothesis);
+            metrics.add("chunks", 1);
+
+            long keepEnd = last ? duration : chunkEnd - overlap;
+            int lastAnchor = -1;
+            for (int k = 0; k < alignment.length; k++) {
+                if (alignment[k] != -1 && hypothesis.get(k).getTimeFrame().getEnd() <= keepEnd && (last || isConfident(alignment, k))) {
+                    lastAnchor = k;
+                }
+            }
+            for (int k = 0; k <= lastAnchor; k++) {
+                if (alignment[k] != -1) {
+                    alignedWords.put(alignment[k], hypothesis.get(k));
+                }
+            }
 
-                List<WordResult> results = hypothesis;
+            progressListener.onProgress((double) chunkEnd / duration);
+            if (last) {
+                break;
+            }
+            long nextStart = chunkEnd - overlap;
+            if (lastAnchor >= 0) {
+                nextStart = Math.max(hypothesis.get(lastAnchor).getTimeFrame().getEnd(), chunkStart + Math.max(1, overlap));
+                spanStart = alignment[lastAnchor] + 1;
+            }
+            logger.info("Chunk " + chunkStart + "-" + chunkEnd + " anchored up to word " + spanStart);
+            chunkStart = nextStart;
+        }
+        return alignedWords;
+    }
 
-                logger.info("Decoding result is " + results);
+    /**
+     * A word is confident when its neighbours in the hypothesis are aligned to its
+     * neighbours in the transcript.
+     */
+    private static boolean isConfident(int[] alignment, int k) {
+        return k > 0 && k < alignment.length - 1
+                && alignment[k - 1] == alignment[k] - 1
+                && alignment[k + 1] == alignment[k] + 1;
+    }
+
+    private static String join(List<String> words) {
+        StringBuilder text = new StringBuilder();
+        for (String word : words) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(word);
+        }
+        return text.toString();
+    }
 
-                // dumpAlignment(transcript, alignment, results);
-                dumpAlignmentStats(transcript, alignment, results);
+    /**
+     * Decode ranges with the aligner grammar on the instance pool. Results are
+     * returned in the order of the given ranges.
+     */
+    private List<List<WordResult>> decodeConcurrently(final FeatureCache features, List<List<String>> texts, List<TimeFrame> frames) throws IOException {
+        List<List<WordResult>> hypotheses = new ArrayList<List<WordResult>>();
+        if (texts.size() <= 1 || parallelism <= 1) {
+            for (int j = 0; j < texts.size(); j++) {
+                hypotheses.add(decodeRange(mainInstance, features, texts.get(j), frames.get(j)));
+            }
+            return hypotheses;
+        }
 
-                for (int j = 0; j < alignment.length; j++) {
-                    if (alignment[j] != -1) {
-                        alignedWords.put(alignment[j], hypothesis.get(j));
+        List<Future<List<WordResult>>> futures = new ArrayList<Future<List<WordResult>>>();
+        for (int j = 0; j < texts.size(); j++) {
+            final List<String> text = texts.get(j);
+            final TimeFrame frame = frames.get(j);
+            futures.add(getExecutor().submit(new Callable<List<WordResult>>() {
+                @Override
+                public List<WordResult> call() throws Exception {
+                    RecognizerInstance instance = acquireInstance();
+                    try {
+                        return decodeRange(instance, features, text, frame);
+                    } finally {
+                        idleInstances.offer(instance);
                     }
                 }
+            }));
+        }
 
-                recognizer.deallocate();
+        try {
+            for (Future<List<WordResult>> future : futures) {
+                hypotheses.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<List<WordResult>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return hypotheses;
+    }
 
-            scheduleNextAlignment(transcript, alignedWords, ranges, texts, timeFrames, lastFrame);
+    /**
+     * Decode a range with the aligner grammar. With the adaptive beam, the range is
+     * first decoded with a narrow beam, which is enough for clean audio, and decoded
+     * again with the configured beam only if too many of its words fail to align.
+     */
+    private List<WordResult> decodeRange(RecognizerInstance instance, FeatureCache features, List<String> text, TimeFrame frame) throws IOException {
+        setNarrowBeam(instance, adaptiveBeam);
+        List<WordResult> hypothesis = decode(instance, features, text, frame, true, false);
+        if (!adaptiveBeam) {
+            return hypothesis;
         }
-        this.progressListener.onStop();
 
-        return new ArrayList<WordResult>(alignedWords.values());
+        List<String> words = new ArrayList<String>();
+        for (WordResult wr : hypothesis) {
+            words.add(wr.getWord().getSpelling());
+        }
+        int[] alignment = words.isEmpty() ? new int[0]
+                : new LongTextAligner(text, Math.min(TUPLE_SIZE, text.size())).align(words);
+        double errorRate = getErrorRate(text, alignment);
+        if (errorRate <= MAX_NARROW_ERROR_RATE) {
+            metrics.add("narrowBeamRanges", 1);
+            return hypothesis;
+        }
+
+        logger.info(String.format("Error rate %.2f with narrow beam, widening beam for frame %s", errorRate * 100, frame));
+        metrics.add("widenedBeamRanges", 1);
+        setNarrowBeam(instance, false);
+        return decode(instance, features, text, frame, true, false);
+    }
+
+    private void setNarrowBeam(RecognizerInstance instance, boolean narrowBeam) {
+        if (instance.narrowBeam != narrowBeam) {
+            instance.context.setLocalProperty("activeList->" + ActiveListFactory.PROP_ABSOLUTE_BEAM_WIDTH,
+                    narrowBeam ? NARROW_ABSOLUTE_BEAM_WIDTH : beamWidths[0]);
+            instance.context.setLocalProperty("activeList->" + ActiveListFactory.PROP_RELATIVE_BEAM_WIDTH,
+                    narrowBeam ? NARROW_RELATIVE_BEAM_WIDTH : beamWidths[1]);
+            instance.narrowBeam = narrowBeam;
+        }
+    }
+
+    private List<WordResult> decode(RecognizerInstance instance, FeatureCache features, List<String> text, TimeFrame frame, boolean useGrammar, boolean reportProgress) throws IOException {
+        logger.info("Aligning frame " + frame + " to text " + text);
+        JobMetrics.Span span = metrics.start("decode");
+
+        instance.recognizer.allocate();
+        try {
+            if (useGrammar) {
+                instance.grammar.setWords(text);
+            }
+
+            instance.context.setLocalProperty("trivialScorer->frontend", "cachedFeatureSource");
+            CachedFeatureSource featureSource = instance.context.getInstance(CachedFeatureSource.class);
+            featureSource.setFeatures(features, frame);
+            metrics.add("framesDecoded", featureSource.getFrameCount());
+
+            List<WordResult> hypothesis = new ArrayList<WordResult>();
+            Result result;
+            while (null != (result = instance.recognizer.recognize())) {
+                logger.info("Utterance result " + result.getTimedBestResult(true));
+                logger.info("Utterance Pronunciation: " + result.getBestPronunciationResult());
+                List<WordResult> bestWordResults = result.getTimedBestResult(false);
+
+                if (reportProgress) {
+                    double newProgress = progress + (double) bestWordResults.size() / text.size();
+                    if (newProgress != progress) {
+                        this.progressListener.onProgress(newProgress);
+                    }
+                    progress = newProgress;
+                }
+
+                segmentPhones(result.getBestFinalToken(), bestWordResults);
+
+                // Record Best pronunciation and remove other ones.
+                Token token = result.getBestFinalToken();
+                for (int j = bestWordResults.size() - 1; j >= 0 && token != null; j--) {
+                    while (!token.isWord() || token.getWord().isFiller()) {
+                        token = token.getPredecessor();
+                    }
+                    WordSearchState wordState = (WordSearchState) token.getSearchState();
+                    Pronunciation pronunciation = wordState.getPronunciation();
+                    Pronunciation[] wordPronunciations = bestWordResults.get(j).getWord().getPronunciations();
+                    wordPronunciations[0] = pronunciation;
+                    for (int k = 1; k < wordPronunciations.length; k++) {
+                        wordPronunciations[k] = null;
+                    }
+                    token = token.getPredecessor();
+                }
+                hypothesis.addAll(bestWordResults);
+                metrics.add("utterances", 1);
+            }
+            return hypothesis;
+        } finally {
+            instance.recognizer.deallocate();
+            span.stop();
+        }
+    }
+
+    /**
+     * Cut the state level path of the best token into phones and give each word
+     * the phones whose middle falls within its time frame. Both search managers keep
+     * all tokens, so the path holds one emitting token per frame.
+     */
+    private void segmentPhones(Token token, List<WordResult> words) {
+        List<WordResult> phones = new ArrayList<WordResult>();
+        HMM hmm = null;
+        int state = -1;
+        long start = 0, end = 0;
+        for (; token != null; token = token.getPredecessor()) {
+            if (!token.isEmitting() || !(token.getSearchState() instanceof HMMSearchState)) {
+                continue;
+            }
+            HMMState hmmState = ((HMMSearchState) token.getSearchState()).getHMMState();
+            // Going backward, a new phone starts when the HMM changes or its states start over
+            if (hmmState.getHMM() != hmm || hmmState.getState() > state) {
+                if (hmm != null) {
+                    addPhone(phones, hmm.getBaseUnit(), start, end);
+                }
+                hmm = hmmState.getHMM();
+                end = token.getCollectTime() + FRAME_LENGTH;
+            }
+            state = hmmState.getState();
+            start = token.getCollectTime();
+        }
+        if (hmm != null) {
+            addPhone(phones, hmm.getBaseUnit(), start, end);
+        }
+        Collections.reverse(phones);
+
+        int phoneIndex = 0;
+        for (WordResult word : words) {
+            TimeFrame frame = word.getTimeFrame();
+            List<WordResult> wordPhones = new ArrayList<WordResult>();
+            for (; phoneIndex < phones.size(); phoneIndex++) {
+                TimeFrame phoneFrame = phones.get(phoneIndex).getTimeFrame();
+                long middle = (phoneFrame.getStart() + phoneFrame.getEnd()) / 2;
+                if (middle > frame.getEnd()) {
+                    break;
+                }
+                if (middle >= frame.getStart()) {
+                    wordPhones.add(phones.get(phoneIndex));
+                }
+            }
+            phoneSegments.put(word, wordPhones);
+        }
+    }
+
+    private static void addPhone(List<WordResult> phones, Unit unit, long start, long end) {
+        if (!unit.isFiller()) {
+            Word phone = new Word(unit.getName(), new Pronunciation[0], false);
+            phones.add(new WordResult(phone, new TimeFrame(start, end), 0, 1));
+        }
+    }
+
+    /**
+     * Make Sphinx load only the entries of the transcript words, taken from the
+     * compiled dictionary, instead of parsing the whole text dictionary at every
+     * allocation. Words missing from the dictionary are taken from the G2P cache,
+     * when there is one, otherwise they are left to the G2P model of Sphinx.
+     * The subset is kept while it covers the words, a new path would make every
+     * instance reload its dictionary.
+     */
+    private void useDictionarySubset(List<String> words) throws IOException {
+        if (compiledDictionary == null) {
+            return;
+        }
+        if (dictionarySubsetWords != null && dictionarySubsetWords.containsAll(words)) {
+            return;
+        }
+
+        if (dictionarySubsetFile == null) {
+            dictionarySubsetFile = File.createTempFile("lipsync-", ".dict");
+            dictionarySubsetFile.deleteOnExit();
+        }
+        // A failed write leaves the file unusable for any word set
+        dictionarySubsetWords = null;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dictionarySubsetFile), "UTF-8"))) {
+            Set<String> missingWords = compiledDictionary.writeEntries(words, writer);
+            if (!missingWords.isEmpty()) {
+                logger.info("Words missing from dictionary: " + missingWords);
+                if (g2pCache != null) {
+                    g2pCache.writeEntries(missingWords, writer);
+                }
+            }
+        }
+
+        dictionarySubsetWords = new HashSet<String>(words);
+        synchronized (this) {
+            currentDictionaryPath = dictionarySubsetFile.toURI().toURL().toString();
+            for (RecognizerInstance instance : instances) {
+                instance.context.setLocalProperty("dictionary->dictionaryPath", currentDictionaryPath);
+            }
+        }
+    }
+
+    private RecognizerInstance acquireInstance() throws IOException, InterruptedException {
+        RecognizerInstance instance = idleInstances.poll();
+        if (instance != null) {
+            return instance;
+        }
+
+        synchronized (this) {
+            if (instanceCount < parallelism) {
+                // Count the instance once built, a failed load must not use up a slot
+                instance = new RecognizerInstance();
+                instance.context.setLocalProperty("decoder->searchManager", "alignerSearchManager");
+                instanceCount++;
+                return instance;
+            }
+        }
+        return idleInstances.take();
+    }
+
+    /**
+     * Stop the decoder threads. The aligner can still be used, they are started again
+     * by the next concurrent decoding.
+     */
+    public synchronized void deallocate() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private int threadCount = 0;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "aligner-decoder-" + (++threadCount));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Sphinx components needed to decode one range. Each instance has its own
+     * Context, so instances can decode concurrently.
+     */
+    private class RecognizerInstance {
+        private final Context context;
+        private final Recognizer recognizer;
+        private final AlignerGrammar grammar;
+        private final DynamicTrigramModel languageModel;
+        private boolean narrowBeam = false;
+
+        private RecognizerInstance() throws IOException {
+            Configuration configuration = new Configuration();
+            configuration.setAcousticModelPath(amPath);
+            configuration.setDictionaryPath(currentDictionaryPath);
+
+            context = new Context(sphinxConfigPath, configuration);
+            if (g2pPath != null) {
+                context.setLocalProperty("dictionary->g2pModelPath", g2pPath);
+                context.setLocalProperty("dictionary->g2pMaxPron", "2");
+            }
+            context.setLocalProperty("lexTreeLinguist->languageModel", "dynamicTrigramModel");
+            recognizer = context.getInstance(Recognizer.class);
+            grammar = context.getInstance(AlignerGrammar.class);
+            languageModel = context.getInstance(DynamicTrigramModel.class);
+            instances.add(this);
+        }
+    }
+
+    /**
+     * @return absolute and relative beams of the configuration, parsed once per path
+     */
+    private static synchronized String[] getConfiguredBeams(String sphinxConfigPath) throws IOException {
+        String[] beams = configuredBeams.get(sphinxConfigPath);
+        if (beams == null) {
+            PropertySheet activeList = new ConfigurationManager(ConfigurationManagerUtils.resourceToURL(sphinxConfigPath))
+                    .getPropertySheet("activeList");
+            beams = new String[]{
+                    String.valueOf(activeList.getInt(ActiveListFactory.PROP_ABSOLUTE_BEAM_WIDTH)),
+                    String.valueOf(activeList.getDouble(ActiveListFactory.PROP_RELATIVE_BEAM_WIDTH))
+            };
+            configuredBeams.put(sphinxConfigPath, beams);
+        }
+        return beams;
     }
 
     private static class PronunciationComparator implements Comparator<Pronunciation> {
@@ -205,9 +857,31 @@ public class PhoneticSpeechAligner {
     }
 
     private void dumpAlignmentStats(List<String> transcript, int[] alignment, List<WordResult> results) {
+        int[] errors = countErrors(transcript, alignment);
+        int insertions = errors[0];
+        int deletions = errors[1];
+        int size = transcript.size();
+        logger.info(String.format("Size %d deletions %d insertions %d error rate %.2f", size, insertions, deletions,
+                (insertions + deletions) / ((float) size) * 100f));
+    }
+
+    /**
+     * @return insertions and deletions over the transcript length, 0 for an empty transcript
+     */
+    private static double getErrorRate(List<String> transcript, int[] alignment) {
+        if (transcript.isEmpty()) {
+            return 0;
+        }
+        int[] errors = countErrors(transcript, alignment);
+        return (double) (errors[0] + errors[1]) / transcript.size();
+    }
+
+    /**
+     * @return number of insertions and number of deletions of the alignment
+     */
+    private static int[] countErrors(List<String> transcript, int[] alignment) {
         int insertions = 0;
         int deletions = 0;
-        int size = transcript.size();
 
         int[] aid = alignment;
         int lastId = -1;
@@ -222,11 +896,12 @@ public class PhoneticSpeechAligner {
             }
         }
 
-        if (lastId >= 0 && transcript.size() - lastId > 1) {
+        if (lastId < 0) {
+            deletions = transcript.size();
+        } else if (transcript.size() - lastId > 1) {
             deletions += transcript.size() - lastId;
         }
-        logger.info(String.format("Size %d deletions %d insertions %d error rate %.2f", size, insertions, deletions,
-                (insertions + deletions) / ((float) size) * 100f));
+        return new int[]{insertions, deletions};
     }
 
     private void scheduleNextAlignment(List<String> transcript, Map<Integer, WordResult> alignedWords, Queue<Range> ranges,
@@ -281,14 +956,120 @@ public class PhoneticSpeechAligner {
         // milliseconds
         if (wordDensity < 10.0 && (end - start) > 3) {
             logger.info("Skipping text range due to a high density " + transcript.subList(start, end).toString());
+            metrics.add("rangesSkipped", 1);
             return;
         }
 
+        metrics.add("rangesScheduled", 1);
         texts.offer(transcript.subList(start, end));
         timeFrames.offer(new TimeFrame(timeStart, timeEnd));
         ranges.offer(new Range(start, end - 1));
     }
 
+    /**
+     * Phones of the words returned by the last {@link #align} or {@link #alignWindows} call, cut from the
+     * decoder path. Each phone is a WordResult spelled as its acoustic unit.
+     *
+     * @return phone results by word result, words are compared by identity
+     */
+    public Map<WordResult, List<WordResult>> getPhoneSegments() {
+        return phoneSegments;
+    }
+
+    public String getDictionaryPath() {
+        return dictionaryPath;
+    }
+
+    /**
+     * The dictionary shared with the recognizer of this aligner. It must not be
+     * used while an alignment is running.
+     */
+    public Dictionary getDictionary() {
+        return mainInstance.context.getInstance(Dictionary.class);
+    }
+
+    /**
+     * Use a compiled form of this aligner's dictionary, see {@link #useDictionarySubset}.
+     */
+    public void setCompiledDictionary(CompiledDictionary compiledDictionary) {
+        this.compiledDictionary = compiledDictionary;
+    }
+
+    public CompiledDictionary getCompiledDictionary() {
+        return compiledDictionary;
+    }
+
+    public void setG2PCache(G2PCache g2pCache) {
+        this.g2pCache = g2pCache;
+    }
+
+    public G2PCache getG2PCache() {
+        return g2pCache;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Maximum number of recognizer instances decoding concurrently. Each instance
+     * holds its own copy of the acoustic model, so memory grows with it.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Record the stages and counters of the following calls into the given metrics,
+     * null to stop recording.
+     */
+    public void setMetrics(JobMetrics metrics) {
+        this.metrics = metrics == null ? JobMetrics.NONE : metrics;
+    }
+
+    /**
+     * Send the messages of the following calls to the given job log instead of the
+     * java.util.logging handlers, null to restore them.
+     */
+    public void setLog(JobLog log) {
+        if (this.log != null) {
+            logger.removeHandler(this.log.getHandler());
+        }
+        this.log = log;
+        if (log != null) {
+            logger.addHandler(log.getHandler());
+        }
+        logger.setUseParentHandlers(log == null);
+    }
+
+    /**
+     * Limit the first pass of the following {@link #align} calls to the given regions,
+     * see {@link SpeechDetector}. Null decodes the whole audio.
+     */
+    public void setSpeechRegions(List<TimeFrame> speechRegions) {
+        this.speechRegions = speechRegions;
+    }
+
+    /**
+     * Decode aligner grammar ranges with a narrow beam first, widening it only for
+     * the ranges that fail to align.
+     */
+    public void setAdaptiveBeam(boolean adaptiveBeam) {
+        this.adaptiveBeam = adaptiveBeam;
+    }
+
+    /**
+     * Length of the first pass chunks, in milliseconds, see {@link #decodeChunks}. Audio
+     * up to twice as long is decoded in a single search. 0 never chunks.
+     */
+    public void setChunkLength(long chunkLength) {
+        this.chunkLength = Math.max(0, chunkLength);
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
     public TextTokenizer getTokenizer() {
         return tokenizer;
     }
@@ -0,0 +1,336 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.util.props.ConfigurationManagerUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Alignment results of previous jobs, keyed by what they were computed from.
+ *
+ * The key is a SHA-256 of the audio bytes, the cleaned transcript text and a
+ * description of the models and options (see {@link #getResourceStamp}), so a hit
+ * can only come from an identical job. An entry holds the final words and phones,
+ * after fixes, with their treatments. Entries are files of the cache folder; the
+ * least recently used ones are deleted once the folder exceeds its size. Layout:
+ * <pre>
+ * int magic, int version
+ * int wordCount, wordCount x (short phoneCount, entry)
+ * int phoneCount, phoneCount x entry
+ * entry: UTF spelling, byte flags (deleted, inserted, ignored, has time frame),
+ *        [int start, int end], byte treatmentCount, treatmentCount x byte treatment ordinal
+ * </pre>
+ * Changing the layout or the {@link Treatment} order requires a new version.
+ *
+ * A key can also refer to the entry of another key (see {@link #putReference}), the
+ * reference file then only holds the other key. A reference whose entry was evicted
+ * reads as no entry.
+ */
+public class ResultCache {
+    private static final int MAGIC = 0x4c535243; // "LSRC"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String EXTENSION = ".bin";
+    private static final String REFERENCE_EXTENSION = ".ref";
+
+    private static final int DELETED = 1;
+    private static final int INSERTED = 2;
+    private static final int IGNORED = 4;
+    private static final int TIMED = 8;
+
+    private final File folder;
+    private final long maxSize;
+
+    /**
+     * @param maxSize total size of the entries, in bytes, above which the oldest are deleted
+     */
+    public ResultCache(File folder, long maxSize) {
+        this.folder = folder;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return SHA-256 of the file content, to be given to {@link #computeKey}
+     */
+    public static byte[] hashFile(File file) throws IOException {
+        MessageDigest digest = getDigest();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @param audioHash hash of the audio file, see {@link #hashFile}
+     * @param parts model and option descriptions, in a fixed order
+     * @return hexadecimal key of the job
+     */
+    public static String computeKey(byte[] audioHash, String transcriptText, List<String> parts) throws IOException {
+        MessageDigest digest = getDigest();
+        digest.update(intBytes(VERSION));
+        digest.update(audioHash);
+        // Lengths prefixed so that parts cannot run into each other
+        byte[] text = transcriptText.getBytes(UTF8);
+        digest.update(intBytes(text.length));
+        digest.update(text);
+        for (String part : parts) {
+            byte[] bytes = part.getBytes(UTF8);
+            digest.update(intBytes(bytes.length));
+            digest.update(bytes);
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b & 0xFF));
+        }
+        return key.toString();
+    }
+
+    private static MessageDigest getDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] intBytes(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    /**
+     * @return location, length and modification date of a resource, so that replacing
+     * a model or dictionary invalidates the entries computed with it
+     */
+    public static String getResourceStamp(String path) throws IOException {
+        URLConnection connection = ConfigurationManagerUtils.resourceToURL(path).openConnection();
+        return path + "|" + connection.getContentLengthLong() + "|" + connection.getLastModified();
+    }
+
+    /**
+     * Read an entry and give its pronunciations to the transcript words.
+     *
+     * @return null if there is no usable entry for the key
+     * @throws IOException if the entry cannot be read, see {@link #read}
+     */
+    public Entry get(String key, Transcript transcript) throws IOException {
+        Entry entry = read(key);
+        List<TranscriptWord> transcriptWords = transcript.getWords();
+        if (entry == null || entry.words.size() != transcriptWords.size()) {
+            return null;
+        }
+        for (int i = 0; i < transcriptWords.size(); i++) {
+            transcript.setWordPhones(i, entry.pronunciations.get(i));
+        }
+        return entry;
+    }
+
+    /**
+     * @return the entry stored under the key, null if there is none or it has another version
+     * @throws IOException if the entry cannot be read or is corrupt, in which case it is deleted
+     */
+    public Entry read(String key) throws IOException {
+        File file = new File(folder, key + EXTENSION);
+        if (!file.isFile()) {
+            File reference = new File(folder, key + REFERENCE_EXTENSION);
+            if (!reference.isFile()) {
+                return null;
+            }
+            String targetKey = new String(Files.readAllBytes(reference.toPath()), UTF8);
+            if (!targetKey.matches("[0-9a-f]+")) {
+                reference.delete();
+                throw new IOException("Corrupt cached result reference " + reference);
+            }
+            file = new File(folder, targetKey + EXTENSION);
+            if (!file.isFile()) {
+                reference.delete();
+                return null;
+            }
+            reference.setLastModified(System.currentTimeMillis());
+        }
+
+        Entry entry = new Entry();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int wordCount = in.readInt();
+            int[] wordPhoneCounts = new int[wordCount];
+            for (int i = 0; i < wordCount; i++) {
+                wordPhoneCounts[i] = in.readShort();
+                readEntry(in, entry.words);
+            }
+            int phoneCount = in.readInt();
+            for (int i = 0; i < phoneCount; i++) {
+                readEntry(in, entry.phones);
+            }
+
+            // Pronunciations picked by the word pass
+            int phoneIndex = 0;
+            for (int i = 0; i < wordCount; i++) {
+                List<String> wordPhones = new ArrayList<>();
+                for (int j = 0; j < wordPhoneCounts[i]; j++) {
+                    wordPhones.add(entry.phones.getSpelling(phoneIndex++));
+                }
+                entry.pronunciations.add(wordPhones);
+            }
+            if (phoneIndex != phoneCount) {
+                throw new IOException("Corrupt cached result " + file + ": " + phoneCount + " phones, " + phoneIndex + " in words");
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
+            file.delete();
+            throw e instanceof IOException ? (IOException) e : new IOException("Corrupt cached result " + file, e);
+        }
+
+        // Keeps recently used entries from being evicted
+        file.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    public void put(String key, Transcript transcript, AlignmentTable alignedWords, AlignmentTable alignedPhones) throws IOException {
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        File file = new File(folder, key + EXTENSION);
+        // Written aside then moved, so concurrent jobs never read a partial entry
+        File tempFile = File.createTempFile(key, ".tmp", folder);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                List<TranscriptWord> transcriptWords = transcript.getWords();
+                out.writeInt(alignedWords.size());
+                for (int i = 0; i < alignedWords.size(); i++) {
+                    out.writeShort(transcriptWords.get(i).getPhones().size());
+                    writeEntry(out, alignedWords, i);
+                }
+                out.writeInt(alignedPhones.size());
+                for (int i = 0; i < alignedPhones.size(); i++) {
+                    writeEntry(out, alignedPhones, i);
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+        evict();
+    }
+
+    /**
+     * Make the key read as the entry of the target key, without copying the entry.
+     */
+    public void putReference(String key, String targetKey) throws IOException {
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        File tempFile = File.createTempFile(key, ".tmp", folder);
+        try {
+            Files.write(tempFile.toPath(), targetKey.getBytes(UTF8));
+            Files.move(tempFile.toPath(), new File(folder, key + REFERENCE_EXTENSION).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+        // An entry stored under the key would hide the reference
+        new File(folder, key + EXTENSION).delete();
+    }
+
+    private static void writeEntry(DataOutputStream out, AlignmentTable table, int index) throws IOException {
+        boolean timed = table.hasTimeFrame(index);
+        int flags = (table.isDeleted(index) ? DELETED : 0)
+                | (table.isInserted(index) ? INSERTED : 0)
+                | (table.isIgnored(index) ? IGNORED : 0)
+                | (timed ? TIMED : 0);
+        out.writeUTF(table.getSpelling(index));
+        out.writeByte(flags);
+        if (timed) {
+            out.writeInt((int) table.getStart(index));
+            out.writeInt((int) table.getEnd(index));
+        }
+        int treatments = table.getTreatments(index);
+        out.writeByte(Integer.bitCount(treatments));
+        for (Treatment treatment : Treatment.values()) {
+            if ((treatments & 1 << treatment.ordinal()) != 0) {
+                out.writeByte(treatment.ordinal());
+            }
+        }
+    }
+
+    private static void readEntry(DataInputStream in, AlignmentTable table) throws IOException {
+        String spelling = in.readUTF();
+        int flags = in.readByte();
+        int index = table.add(spelling, null, (flags & DELETED) != 0, (flags & INSERTED) != 0);
+        table.setIgnored(index, (flags & IGNORED) != 0);
+        if ((flags & TIMED) != 0) {
+            table.setTimeFrame(index, in.readInt(), in.readInt());
+        }
+        int treatmentCount = in.readByte();
+        Treatment[] treatments = Treatment.values();
+        for (int i = 0; i < treatmentCount; i++) {
+            table.addTreatment(index, treatments[in.readByte()]);
+        }
+    }
+
+    private synchronized void evict() {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalSize = 0;
+        List<File> entries = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(EXTENSION) || file.getName().endsWith(REFERENCE_EXTENSION)) {
+                entries.add(file);
+                totalSize += file.length();
+            }
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        File[] oldestFirst = entries.toArray(new File[entries.size()]);
+        Arrays.sort(oldestFirst, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < oldestFirst.length && totalSize > maxSize; i++) {
+            long length = oldestFirst[i].length();
+            if (oldestFirst[i].delete()) {
+                totalSize -= length;
+            }
+        }
+    }
+
+    /**
+     * Final words and phones of a job, phones in word order.
+     */
+    public static class Entry {
+        public final AlignmentTable words = new AlignmentTable();
+        public final AlignmentTable phones = new AlignmentTable();
+        /** Phone spellings of each word, as picked by the word pass */
+        public final List<List<String>> pronunciations = new ArrayList<>();
+    }
+}
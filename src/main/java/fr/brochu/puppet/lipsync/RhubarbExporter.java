@@ -0,0 +1,36 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Rhubarb Lip Sync style TSV: the mouth cues, "seconds\tshape" per line, with the
+ * times rounded to the frame rate. 100 frames per second and the Rhubarb shapes A
+ * to H, X at rest, by default.
+ */
+public class RhubarbExporter extends AbstractTimelineExporter {
+    public static final String NAME = "rhubarb";
+
+    public RhubarbExporter() {
+        super(NAME, ".tsv", Charset.forName("UTF-8"), 100, VisemeMap.RHUBARB);
+    }
+
+    @Override
+    public void write(Timeline timeline, Writer writer) throws IOException {
+        Cues cues = getCues(timeline);
+        for (int i = 0; i < cues.size(); i++) {
+            long millis = Math.round(cues.getFrame(i) * 1000d / getFrameRate());
+            writeNumber(writer, millis / 1000);
+            writer.write('.');
+            long fraction = millis % 1000;
+            if (fraction < 100) {
+                writer.write(fraction < 10 ? "00" : "0");
+            }
+            writeNumber(writer, fraction);
+            writer.write('\t');
+            writer.write(cues.getViseme(i));
+            writer.write('\n');
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.util.TimeFrame;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Energy based voice activity detection, cheap enough to run before decoding.
+ *
+ * The energy of each 10 ms frame is compared to the noise floor of the recording,
+ * estimated as a low percentile of the frame energies. Speech frames separated by
+ * less than {@link #MIN_SILENCE} are merged into one region, then regions are padded
+ * so that soft onsets and word endings stay inside. Recordings without a clear gap
+ * between noise floor and speech level are reported as speech from start to end.
+ */
+public class SpeechDetector {
+    private static final int FRAME_LENGTH = 10;
+    private static final int FRAME_SAMPLES = WavFile.SAMPLE_RATE * FRAME_LENGTH / 1000;
+    /** Shortest pause that splits two speech regions, in milliseconds */
+    public static final long MIN_SILENCE = 300;
+    /** Audio kept around each speech region, in milliseconds */
+    public static final long PADDING = 150;
+    /** Level above the noise floor for a frame to be speech, in dB */
+    private static final double SPEECH_MARGIN = 12;
+    private static final double NOISE_PERCENTILE = 0.1;
+    private static final double SPEECH_PERCENTILE = 0.99;
+
+    private SpeechDetector() {
+    }
+
+    /**
+     * @return speech regions of the whole file, in order, in milliseconds
+     */
+    public static List<TimeFrame> detect(WavFile wavFile) {
+        return detect(wavFile.getSamples(TimeFrame.INFINITE));
+    }
+
+    /**
+     * @return speech regions of the samples from their position to their limit, times
+     * are relative to the position
+     */
+    public static List<TimeFrame> detect(ShortBuffer samples) {
+        int start = samples.position();
+        int frameCount = (samples.limit() - start) / FRAME_SAMPLES;
+        long duration = (long) (samples.limit() - start) * 1000 / WavFile.SAMPLE_RATE;
+        List<TimeFrame> regions = new ArrayList<>();
+        if (frameCount == 0) {
+            return regions;
+        }
+
+        double[] energies = new double[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            double sum = 0;
+            for (int j = start + i * FRAME_SAMPLES, end = j + FRAME_SAMPLES; j < end; j++) {
+                double sample = samples.get(j);
+                sum += sample * sample;
+            }
+            energies[i] = 10 * Math.log10(sum / FRAME_SAMPLES + 1);
+        }
+
+        double[] sorted = energies.clone();
+        Arrays.sort(sorted);
+        double noiseFloor = sorted[(int) (NOISE_PERCENTILE * (frameCount - 1))];
+        double speechLevel = sorted[(int) (SPEECH_PERCENTILE * (frameCount - 1))];
+        if (speechLevel - noiseFloor < SPEECH_MARGIN) {
+            regions.add(new TimeFrame(0, duration));
+            return regions;
+        }
+        double threshold = noiseFloor + SPEECH_MARGIN;
+
+        long regionStart = -1, regionEnd = -1;
+        for (int i = 0; i < frameCount; i++) {
+            if (energies[i] < threshold) {
+                continue;
+            }
+            long frameStart = (long) i * FRAME_LENGTH;
+            if (regionStart >= 0 && frameStart - regionEnd >= MIN_SILENCE) {
+                addRegion(regions, regionStart, regionEnd, duration);
+                regionStart = -1;
+            }
+            if (regionStart < 0) {
+                regionStart = frameStart;
+            }
+            regionEnd = frameStart + FRAME_LENGTH;
+        }
+        if (regionStart >= 0) {
+            addRegion(regions, regionStart, regionEnd, duration);
+        }
+        return regions;
+    }
+
+    private static void addRegion(List<TimeFrame> regions, long start, long end, long duration) {
+        start = Math.max(0, start - PADDING);
+        end = Math.min(duration, end + PADDING);
+        if (!regions.isEmpty()) {
+            TimeFrame last = regions.get(regions.size() - 1);
+            if (start <= last.getEnd()) {
+                regions.set(regions.size() - 1, new TimeFrame(last.getStart(), end));
+                return;
+            }
+        }
+        regions.add(new TimeFrame(start, end));
+    }
+
+    /**
+     * @return the gaps between the speech regions, including lead-in and tail
+     */
+    public static List<TimeFrame> getSilences(List<TimeFrame> speechRegions, long duration) {
+        List<TimeFrame> silences = new ArrayList<>();
+        long start = 0;
+        for (TimeFrame region : speechRegions) {
+            if (region.getStart() > start) {
+                silences.add(new TimeFrame(start, region.getStart()));
+            }
+            start = region.getEnd();
+        }
+        if (start < duration) {
+            silences.add(new TimeFrame(start, duration));
+        }
+        return silences;
+    }
+
+    /**
+     * @return total length of the regions, in milliseconds
+     */
+    public static long getLength(List<TimeFrame> regions) {
+        long length = 0;
+        for (TimeFrame region : regions) {
+            length += region.getEnd() - region.getStart();
+        }
+        return length;
+    }
+}
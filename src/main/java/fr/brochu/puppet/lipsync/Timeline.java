@@ -0,0 +1,156 @@
+package fr.brochu.puppet.lipsync;
+
+/**
+ * Final timing of the words and phones of an alignment, as the exporters read it.
+ *
+ * Built in one pass over the alignment, then shared read-only by every format.
+ * Ignored words are left out. The phones of the other words are all kept; an
+ * ignored phone starts and ends where the previous timed phone of its word ends,
+ * or at the word start. Times are in milliseconds.
+ */
+public class Timeline {
+    private final String audioPath;
+    private final long lastTime;
+    private final int wordCount;
+    private final String[] words;
+    private final long[] wordStarts;
+    private final long[] wordEnds;
+    private final int[] wordTreatments;
+    /** First phone of each word, followed by the phone count */
+    private final int[] firstPhones;
+    private final String[] phones;
+    private final long[] phoneStarts;
+    private final long[] phoneEnds;
+    private final int[] phoneTreatments;
+    private final boolean[] phoneIgnored;
+
+    public Timeline(AlignmentTable alignedWords, AlignmentTable alignedPhones, PhoneIndex phoneIndex, String audioPath) {
+        this.audioPath = audioPath;
+
+        long lastTime = -1;
+        for (int i = alignedPhones.size() - 1; i >= 0; i--) {
+            if (!alignedPhones.isIgnored(i)) {
+                lastTime = alignedPhones.getEnd(i);
+                break;
+            }
+        }
+        this.lastTime = lastTime;
+
+        int wordCount = 0, phoneCount = 0;
+        for (int i = 0; i < alignedWords.size(); i++) {
+            if (!alignedWords.isIgnored(i)) {
+                wordCount++;
+                phoneCount += phoneIndex.getPhoneCount(i);
+            }
+        }
+        this.wordCount = wordCount;
+        words = new String[wordCount];
+        wordStarts = new long[wordCount];
+        wordEnds = new long[wordCount];
+        wordTreatments = new int[wordCount];
+        firstPhones = new int[wordCount + 1];
+        phones = new String[phoneCount];
+        phoneStarts = new long[phoneCount];
+        phoneEnds = new long[phoneCount];
+        phoneTreatments = new int[phoneCount];
+        phoneIgnored = new boolean[phoneCount];
+
+        int word = 0, phone = 0;
+        for (int i = 0; i < alignedWords.size(); i++) {
+            if (alignedWords.isIgnored(i)) {
+                continue;
+            }
+            words[word] = alignedWords.getSpelling(i);
+            wordStarts[word] = alignedWords.getStart(i);
+            wordEnds[word] = alignedWords.getEnd(i);
+            wordTreatments[word] = alignedWords.getTreatments(i);
+            firstPhones[word] = phone;
+
+            long previousEnd = wordStarts[word];
+            for (int j = phoneIndex.getPhoneStart(i); j < phoneIndex.getPhoneEnd(i); j++, phone++) {
+                phones[phone] = alignedPhones.getSpelling(j);
+                phoneTreatments[phone] = alignedPhones.getTreatments(j);
+                phoneIgnored[phone] = alignedPhones.isIgnored(j);
+                if (phoneIgnored[phone]) {
+                    phoneStarts[phone] = previousEnd;
+                    phoneEnds[phone] = previousEnd;
+                } else {
+                    phoneStarts[phone] = alignedPhones.getStart(j);
+                    phoneEnds[phone] = alignedPhones.getEnd(j);
+                    previousEnd = phoneEnds[phone];
+                }
+            }
+            word++;
+        }
+        firstPhones[wordCount] = phone;
+    }
+
+    public String getAudioPath() {
+        return audioPath;
+    }
+
+    /**
+     * @return end of the last timed phone, -1 if there is none
+     */
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    public String getWord(int word) {
+        return words[word];
+    }
+
+    public long getWordStart(int word) {
+        return wordStarts[word];
+    }
+
+    public long getWordEnd(int word) {
+        return wordEnds[word];
+    }
+
+    /**
+     * @return bitmask of {@link Treatment} ordinals
+     */
+    public int getWordTreatments(int word) {
+        return wordTreatments[word];
+    }
+
+    public int getFirstPhone(int word) {
+        return firstPhones[word];
+    }
+
+    public int getPhoneCount(int word) {
+        return firstPhones[word + 1] - firstPhones[word];
+    }
+
+    public int getPhoneCount() {
+        return phones.length;
+    }
+
+    public String getPhone(int phone) {
+        return phones[phone];
+    }
+
+    public long getPhoneStart(int phone) {
+        return phoneStarts[phone];
+    }
+
+    public long getPhoneEnd(int phone) {
+        return phoneEnds[phone];
+    }
+
+    /**
+     * @return bitmask of {@link Treatment} ordinals
+     */
+    public int getPhoneTreatments(int phone) {
+        return phoneTreatments[phone];
+    }
+
+    public boolean isPhoneIgnored(int phone) {
+        return phoneIgnored[phone];
+    }
+}
@@ -0,0 +1,36 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output format of a {@link Timeline}.
+ *
+ * Implementations are found with {@link java.util.ServiceLoader}, listed in
+ * META-INF/services, and need a public no-argument constructor. An instance writes
+ * one file at a time, {@link ExportPipeline} creates one per format and job.
+ */
+public interface TimelineExporter {
+    /**
+     * @return name of the format, as given to {@link ExportPipeline#parse(String)}
+     */
+    String getName();
+
+    /**
+     * @return extension of the file, replacing ".wav", dot included
+     */
+    String getExtension();
+
+    int getFrameRate();
+
+    void setFrameRate(int frameRate);
+
+    VisemeMap getVisemeMap();
+
+    void setVisemeMap(VisemeMap visemeMap);
+
+    /**
+     * Write the file to the channel, which is left open.
+     */
+    void write(Timeline timeline, WritableByteChannel channel) throws IOException;
+}
@@ -1,8 +1,6 @@
 package fr.brochu.puppet.lipsync;
 
 import edu.cmu.sphinx.alignment.SimpleTokenizer;
-import edu.cmu.sphinx.api.Configuration;
-import edu.cmu.sphinx.api.Context;
 import edu.cmu.sphinx.linguist.acoustic.Unit;
 import edu.cmu.sphinx.linguist.dictionary.Dictionary;
 import edu.cmu.sphinx.linguist.dictionary.Pronunciation;
@@ -14,22 +12,24 @@ import java.util.List;
 public class Transcript {
     private final String text;
     private List<TranscriptWord> words;
+    private PhoneIndex phoneIndex;
+    private CompiledDictionary compiledDictionary;
+    private G2PCache g2pCache;
     private Dictionary dictionary;
 
-    public Transcript(String transcriptText, String sphinxConfigPath, String acousticModelPath, String wordDictionaryPath, String g2pModelPath) throws IOException {
+    /**
+     * @param transcriptText raw transcript text
+     * @param compiledDictionary word dictionary, may be null
+     * @param g2pCache pronunciations of words missing from the compiled dictionary, may be null
+     * @param dictionary Sphinx word dictionary, used for words found in neither of them,
+     *                   typically the one of the word aligner (see {@link ModelRegistry})
+     */
+    public Transcript(String transcriptText, CompiledDictionary compiledDictionary, G2PCache g2pCache, Dictionary dictionary) throws IOException {
         this.text = cleanText(transcriptText);
         this.words = new ArrayList<>();
-
-        Configuration configuration = new Configuration();
-
-        configuration.setAcousticModelPath(acousticModelPath);
-        configuration.setDictionaryPath(wordDictionaryPath);
-
-        Context context = new Context(sphinxConfigPath, configuration);
-        context.setLocalProperty("dictionary->g2pModelPath", g2pModelPath);
-        context.setLocalProperty("dictionary->g2pMaxPron", "2");
-        context.setLocalProperty("lexTreeLinguist->languageModel", "dynamicTrigramModel");
-        this.dictionary = context.getInstance(Dictionary.class);
+        this.compiledDictionary = compiledDictionary;
+        this.g2pCache = g2pCache;
+        this.dictionary = dictionary;
 
         expandPhones();
     }
@@ -39,21 +39,37 @@ public class Transcript {
     }
 
     private void expandPhones() throws IOException {
-        dictionary.allocate();
+        boolean dictionaryAllocated = false;
 
         List<String> textWords = extractWords(this.text);
         for (String word : textWords) {
-            List<String> phones = new ArrayList<>();
+            List<String> phones = null;
+            if (compiledDictionary != null) {
+                phones = compiledDictionary.getPhones(word);
+            }
+            if (phones == null && g2pCache != null) {
+                phones = g2pCache.getPhones(word);
+            }
+
+            if (phones == null) {
+                if (!dictionaryAllocated) {
+                    dictionary.allocate();
+                    dictionaryAllocated = true;
+                }
 
-            Pronunciation pronunciation = dictionary.getWord(word).getPronunciations()[0];
-            for (Unit phone : pronunciation.getUnits()) {
-                phones.add(phone.getName());
+                phones = new ArrayList<>();
+                Pronunciation pronunciation = dictionary.getWord(word).getPronunciations()[0];
+                for (Unit phone : pronunciation.getUnits()) {
+                    phones.add(phone.getName());
+                }
             }
 
             this.words.add(new TranscriptWord(word, phones));
         }
 
-        dictionary.deallocate();
+        if (dictionaryAllocated) {
+            dictionary.deallocate();
+        }
     }
 
     private static List<String> extractWords(String text) {
@@ -78,42 +94,66 @@ public class Transcript {
     }
 
 
-    public void updateWordsPronunciation(List<AlignedWord> alignedWords) {
+    /**
+     * Use the pronunciation the word pass picked for each aligned word. Words whose
+     * result carries no pronunciation, such as anchors kept from a previous alignment,
+     * keep their phones.
+     */
+    public void updateWordsPronunciation(AlignmentTable alignedWords) {
+        phoneIndex = null;
         for (int i = 0; i < this.words.size(); i++) {
-            if (!alignedWords.get(i).deleted) {
+            if (!alignedWords.isDeleted(i) && alignedWords.getWordResult(i).getWord().getPronunciations().length > 0) {
                 this.words.get(i).getPhones().clear();
-                for (Unit phone : alignedWords.get(i).wordResult.getWord().getPronunciations()[0].getUnits()) {
+                for (Unit phone : alignedWords.getWordResult(i).getWord().getPronunciations()[0].getUnits()) {
                     this.words.get(i).getPhones().add(phone.getName());
                 }
             }
         }
     }
 
+    /**
+     * Replace the phones of a word, the pronunciation of a previous alignment for instance.
+     */
+    public void setWordPhones(int wordIndex, List<String> phones) {
+        words.get(wordIndex).setPhones(phones);
+        phoneIndex = null;
+    }
+
     public String toPhoneString() {
-        String phoneString = "";
+        StringBuilder phoneString = new StringBuilder();
 
         for (int i = 0; i < this.words.size(); i++) {
             TranscriptWord word = this.words.get(i);
             for (String phone : word.getPhones()) {
-                phoneString += " " + phone;
+                if (phoneString.length() > 0) {
+                    phoneString.append(' ');
+                }
+                phoneString.append(phone);
             }
         }
 
-        return phoneString.trim();
+        return phoneString.toString();
     }
 
     public String getText() {
         return text;
     }
 
-    public int[] getWordIndexes() {
-        int[] wordIndexes = new int[words.size()];
-        int phoneIndex = 0;
-        for (int i = 0; i < words.size(); i++) {
-            TranscriptWord word = words.get(i);
-            wordIndexes[i] = phoneIndex;
-            phoneIndex += word.getPhones().size();
+    /**
+     * Phones of each word in the phone sequence, computed again only after the
+     * pronunciations change through {@link #updateWordsPronunciation} or {@link #setWordPhones}.
+     */
+    public PhoneIndex getPhoneIndex() {
+        if (phoneIndex == null) {
+            phoneIndex = new PhoneIndex(words);
         }
-        return wordIndexes;
+        return phoneIndex;
+    }
+
+    /**
+     * @return index of the first phone of each word, see {@link #getPhoneIndex()}
+     */
+    public int[] getWordIndexes() {
+        return getPhoneIndex().getPhoneStarts();
     }
 }
\ No newline at end of file
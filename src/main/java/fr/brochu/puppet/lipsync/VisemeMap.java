@@ -0,0 +1,115 @@
+package fr.brochu.puppet.lipsync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Mouth shape of each phone, for an exporter.
+ *
+ * Maps are properties files, "phone=viseme" per line. The ".rest" entry is the mouth
+ * between words and ".default" the viseme of the phones the map does not list. The
+ * built-in maps are under visemes/ in the resources: "preston-blair", used by
+ * Papagayo and Moho, and "rhubarb", the shapes A to X of Rhubarb Lip Sync.
+ */
+public class VisemeMap {
+    public static final String PRESTON_BLAIR = "preston-blair";
+    public static final String RHUBARB = "rhubarb";
+
+    private static final String REST_KEY = ".rest";
+    private static final String DEFAULT_KEY = ".default";
+    private static final Map<String, VisemeMap> builtinMaps = new HashMap<>();
+
+    private final String name;
+    private final Map<String, String> visemes;
+    private final String rest;
+    private final String fallback;
+
+    public VisemeMap(String name, Map<String, String> visemes, String rest, String fallback) {
+        this.name = name;
+        this.visemes = Collections.unmodifiableMap(new HashMap<>(visemes));
+        this.rest = rest;
+        this.fallback = fallback;
+    }
+
+    /**
+     * @return true if the name is one of the maps of the resources, not a file path
+     */
+    public static boolean isBuiltIn(String name) {
+        return name.matches("[\\w-]+") && VisemeMap.class.getResource("visemes/" + name + ".properties") != null;
+    }
+
+    /**
+     * @param nameOrPath name of a built-in map, or path of a properties file
+     */
+    public static VisemeMap load(String nameOrPath) throws IOException {
+        synchronized (builtinMaps) {
+            VisemeMap map = builtinMaps.get(nameOrPath);
+            if (map != null) {
+                return map;
+            }
+            try (InputStream stream = VisemeMap.class.getResourceAsStream("visemes/" + nameOrPath + ".properties")) {
+                if (stream != null) {
+                    map = read(nameOrPath, stream);
+                    builtinMaps.put(nameOrPath, map);
+                    return map;
+                }
+            }
+        }
+        File file = new File(nameOrPath);
+        try (InputStream stream = new FileInputStream(file)) {
+            return read(file.getName(), stream);
+        }
+    }
+
+    public static VisemeMap read(String name, InputStream stream) throws IOException {
+        Properties properties = new Properties();
+        properties.load(stream);
+        String rest = properties.getProperty(REST_KEY);
+        String fallback = properties.getProperty(DEFAULT_KEY);
+        if (rest == null || fallback == null) {
+            throw new IOException("Viseme map " + name + " needs " + REST_KEY + " and " + DEFAULT_KEY + " entries");
+        }
+        Map<String, String> visemes = new HashMap<>();
+        for (String phone : properties.stringPropertyNames()) {
+            if (!phone.startsWith(".")) {
+                visemes.put(phone, properties.getProperty(phone).trim());
+            }
+        }
+        return new VisemeMap(name, visemes, rest.trim(), fallback.trim());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return viseme of the phone, the fallback one if the map does not list it
+     */
+    public String getViseme(String phone) {
+        String viseme = visemes.get(phone);
+        return viseme != null ? viseme : fallback;
+    }
+
+    public String getRest() {
+        return rest;
+    }
+
+    public String getFallback() {
+        return fallback;
+    }
+
+    public Map<String, String> getVisemes() {
+        return visemes;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
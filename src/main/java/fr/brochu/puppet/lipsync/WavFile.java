@@ -0,0 +1,122 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.util.TimeFrame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A 16 kHz, 16 bit, mono PCM wav file whose samples are memory-mapped.
+ *
+ * Samples are read straight from the mapping, so a time frame minutes into a long
+ * recording is reached without reading what comes before it.
+ */
+public class WavFile {
+    public static final int SAMPLE_RATE = 16000;
+
+    private final File file;
+    private final ShortBuffer samples;
+
+    private WavFile(File file, ShortBuffer samples) {
+        this.file = file;
+        this.samples = samples;
+    }
+
+    public static WavFile open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            long fileSize = channel.size();
+
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) {
+                throw new IOException(file + " is not a RIFF/WAVE file");
+            }
+
+            boolean formatChecked = false;
+            long position = 12;
+            ByteBuffer chunk = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            while (position + 8 <= fileSize) {
+                chunk.clear().limit(8);
+                readFully(channel, chunk, position);
+                int chunkId = chunk.getInt(0);
+                long chunkSize = chunk.getInt(4) & 0xFFFFFFFFL;
+
+                if (chunkId == 0x20746d66) { // "fmt "
+                    chunk.clear().limit(16);
+                    readFully(channel, chunk, position + 8);
+                    checkFormat(file, chunk.getShort(0), chunk.getShort(2), chunk.getInt(4), chunk.getShort(14));
+                    formatChecked = true;
+                } else if (chunkId == 0x61746164) { // "data"
+                    if (!formatChecked) {
+                        throw new IOException(file + ": data chunk found before fmt chunk");
+                    }
+                    long dataOffset = position + 8;
+                    // Streamed wav files may leave the data size unset
+                    long dataSize = Math.min(chunkSize, fileSize - dataOffset) & ~1L;
+                    MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, dataSize);
+                    return new WavFile(file, data.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer());
+                }
+
+                position += 8 + chunkSize + (chunkSize & 1);
+            }
+            throw new IOException(file + " has no data chunk");
+        }
+    }
+
+    private static void checkFormat(File file, short audioFormat, short channels, int sampleRate, short bitsPerSample) throws IOException {
+        if (audioFormat != 1 || channels != 1 || sampleRate != SAMPLE_RATE || bitsPerSample != 16) {
+            throw new IOException(String.format("%s: expected 16 bit PCM mono %d Hz, got format %d, %d channel(s), %d Hz, %d bit",
+                    file.getName(), SAMPLE_RATE, audioFormat, channels, sampleRate, bitsPerSample));
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of wav header");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * View of the samples within the time frame. The view shares the mapping, nothing is copied.
+     * Its position is the index of its first sample in the file.
+     */
+    public ShortBuffer getSamples(TimeFrame timeFrame) {
+        ShortBuffer view = samples.duplicate();
+        view.limit((int) Math.min(samples.limit(), toSample(timeFrame.getEnd())));
+        view.position((int) Math.min(view.limit(), toSample(timeFrame.getStart())));
+        return view;
+    }
+
+    public int getSampleCount() {
+        return samples.limit();
+    }
+
+    /**
+     * @return duration in milliseconds
+     */
+    public long getDuration() {
+        return getSampleCount() * 1000L / SAMPLE_RATE;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private static long toSample(long time) {
+        if (time >= Long.MAX_VALUE / SAMPLE_RATE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, time * SAMPLE_RATE / 1000);
+    }
+}
@@ -0,0 +1,120 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.util.TimeFrame;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AlignmentTableTest {
+    @Test
+    public void keepsFlagsApart() {
+        AlignmentTable table = new AlignmentTable(1);
+        int deleted = table.add("aa", null, true, false);
+        int inserted = table.add("bb", null, false, true);
+
+        assertTrue(table.isDeleted(deleted));
+        assertFalse(table.isInserted(deleted));
+        assertFalse(table.isDeleted(inserted));
+        assertTrue(table.isInserted(inserted));
+
+        table.setIgnored(deleted, true);
+        assertTrue(table.isIgnored(deleted));
+        assertTrue(table.isDeleted(deleted));
+        assertFalse(table.isIgnored(inserted));
+        table.setIgnored(deleted, false);
+        assertFalse(table.isIgnored(deleted));
+        assertTrue(table.isDeleted(deleted));
+    }
+
+    @Test
+    public void viewsUpdateTheirRow() {
+        AlignmentTable table = new AlignmentTable();
+        table.add("aa", null, false, false);
+        AlignedWord word = table.get(table.add("bb", null, true, false));
+        word.setDeleted(false);
+        word.setInserted(true);
+        word.setIgnored(true);
+        word.setTimeFrame(new TimeFrame(30, 80));
+        word.addTreatment(Treatment.MOVE_START);
+
+        assertEquals("bb", word.getSpelling());
+        assertFalse(table.isDeleted(1));
+        assertTrue(table.isInserted(1));
+        assertTrue(table.isIgnored(1));
+        assertEquals(30, table.getStart(1));
+        assertEquals(80, word.getBestTimeFrame().getEnd());
+        assertEquals(Collections.singletonList(Treatment.MOVE_START), word.getTreatments());
+        assertFalse(table.isInserted(0));
+    }
+
+    @Test
+    public void setsTimeFrame() {
+        AlignmentTable table = new AlignmentTable();
+        int row = table.add("aa", null, true, false);
+        assertFalse(table.hasTimeFrame(row));
+        assertNull(table.getTimeFrame(row));
+
+        table.setTimeFrame(row, 120, 190);
+        assertTrue(table.hasTimeFrame(row));
+        assertTrue(table.isDeleted(row));
+        assertEquals(120, table.getStart(row));
+        assertEquals(190, table.getEnd(row));
+        assertEquals(120, table.getTimeFrame(row).getStart());
+        assertEquals(190, table.getTimeFrame(row).getEnd());
+    }
+
+    @Test
+    public void combinesTreatments() {
+        AlignmentTable table = new AlignmentTable();
+        int row = table.add("aa", null, false, false);
+        int other = table.add("bb", null, false, false);
+        assertEquals(0, table.getTreatments(row));
+
+        table.addTreatment(row, Treatment.SHRINK_TO_END);
+        table.addTreatment(row, Treatment.INWORD_NORMAL_GAP);
+        table.addTreatment(row, Treatment.SHRINK_TO_END);
+        assertEquals(1 << Treatment.INWORD_NORMAL_GAP.ordinal() | 1 << Treatment.SHRINK_TO_END.ordinal(), table.getTreatments(row));
+        assertEquals(Arrays.asList(Treatment.INWORD_NORMAL_GAP, Treatment.SHRINK_TO_END), AlignmentTable.toTreatments(table.getTreatments(row)));
+        assertEquals(0, table.getTreatments(other));
+        assertEquals(Collections.<Treatment>emptyList(), AlignmentTable.toTreatments(0));
+    }
+
+    @Test
+    public void copiesRows() {
+        AlignmentTable table = new AlignmentTable();
+        int row = table.add("aa", null, true, true);
+        table.setIgnored(row, true);
+        table.setTimeFrame(row, 10, 20);
+        table.addTreatment(row, Treatment.MISSING_WORD);
+
+        AlignmentTable copy = new AlignmentTable();
+        copy.add("bb", null, false, false);
+        int copied = copy.add(table, row);
+        assertEquals("aa", copy.getSpelling(copied));
+        assertTrue(copy.isDeleted(copied));
+        assertTrue(copy.isInserted(copied));
+        assertTrue(copy.isIgnored(copied));
+        assertTrue(copy.hasTimeFrame(copied));
+        assertEquals(10, copy.getStart(copied));
+        assertEquals(20, copy.getEnd(copied));
+        assertEquals(Collections.singletonList(Treatment.MISSING_WORD), AlignmentTable.toTreatments(copy.getTreatments(copied)));
+    }
+
+    @Test
+    public void internsSpellings() {
+        AlignmentTable table = new AlignmentTable(1);
+        for (int i = 0; i < 100; i++) {
+            table.add(i % 2 == 0 ? "aa" : "bb", null, false, false);
+        }
+        assertEquals(100, table.size());
+        assertEquals(2, table.getSpellingCount());
+        assertEquals(table.getSpellingId(0), table.getSpellingId(98));
+        assertEquals("bb", table.getSpellingById(table.getSpellingId(99)));
+    }
+}
@@ -0,0 +1,166 @@
+package fr.brochu.puppet.lipsync;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryTimelineTest {
+    private static final long PHONE_LENGTH = 70;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Timeline timeline;
+    private BinaryTimeline binary;
+
+    /**
+     * Five words: the second after a pause, the fourth ignored, an ignored phone in the first and the last.
+     */
+    static Timeline createTimeline() {
+        String[][] words = {
+                {"bonjour", "bb", "on", "jj", "ou", "rr"},
+                {"à", "aa"},
+                {"tous", "tt", "ou", "ss"},
+                {"vous", "vv", "ou"},
+                {"été", "ee", "tt", "ee"},
+        };
+        AlignmentTable alignedWords = new AlignmentTable();
+        AlignmentTable alignedPhones = new AlignmentTable();
+        List<TranscriptWord> transcriptWords = new ArrayList<>();
+        long time = 120;
+        for (int i = 0; i < words.length; i++) {
+            if (i == 1) {
+                time += 250;
+            }
+            List<String> phones = new ArrayList<>(Arrays.asList(words[i]).subList(1, words[i].length));
+            transcriptWords.add(new TranscriptWord(words[i][0], phones));
+            int word = alignedWords.add(words[i][0], null, false, false);
+            long wordStart = time;
+            for (int j = 0; j < phones.size(); j++) {
+                int phone = alignedPhones.add(phones.get(j), null, false, false);
+                alignedPhones.setTimeFrame(phone, time, time + PHONE_LENGTH);
+                time += PHONE_LENGTH;
+            }
+            alignedWords.setTimeFrame(word, wordStart, time);
+        }
+        alignedWords.setIgnored(3, true);
+        alignedPhones.setIgnored(2, true);
+        alignedPhones.setIgnored(alignedPhones.size() - 2, true);
+        alignedWords.addTreatment(0, Treatment.MOVE_START);
+        alignedPhones.addTreatment(1, Treatment.INWORD_BIG_GAP);
+        return new Timeline(alignedWords, alignedPhones, new PhoneIndex(transcriptWords), "clip.wav");
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        timeline = createTimeline();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BinaryTimelineExporter().write(timeline, Channels.newChannel(out));
+        binary = new BinaryTimeline(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    @Test
+    public void readsHeaderAndRecords() {
+        assertEquals(100, binary.getFrameRate());
+        assertEquals("clip.wav", binary.getAudioPath());
+        assertEquals(VisemeMap.PRESTON_BLAIR, binary.getVisemeMapName());
+        assertEquals("rest", binary.getRestViseme());
+        assertEquals(timeline.getWordCount(), binary.getWordCount());
+        assertEquals(timeline.getPhoneCount(), binary.getPhoneCount());
+
+        for (int word = 0; word < timeline.getWordCount(); word++) {
+            assertEquals(timeline.getWord(word), binary.getWord(word));
+            assertEquals(timeline.getFirstPhone(word), binary.getFirstPhone(word));
+            assertEquals(timeline.getPhoneCount(word), binary.getPhoneCount(word));
+            assertEquals(timeline.getWordTreatments(word), binary.getWordTreatments(word));
+        }
+        for (int phone = 0; phone < timeline.getPhoneCount(); phone++) {
+            assertEquals(timeline.getPhone(phone), binary.getPhone(phone));
+            assertEquals(timeline.isPhoneIgnored(phone), binary.isPhoneIgnored(phone));
+            assertEquals(timeline.getPhoneTreatments(phone), binary.getPhoneTreatments(phone));
+        }
+        assertTrue(binary.isPhoneIgnored(2));
+        assertFalse(binary.isPhoneIgnored(3));
+    }
+
+    @Test
+    public void matchesPapagayoTimings() {
+        String[] lines = new PapagayoExporter().toString(timeline).split("\n");
+        int word = -1, phone = 0;
+        for (String line : lines) {
+            String[] fields = line.trim().split(" ");
+            if (line.startsWith("\t\t\t\t")) {
+                assertEquals(Integer.parseInt(fields[0]), binary.getPhoneStart(phone));
+                assertEquals(fields[1], binary.getViseme(phone));
+                phone++;
+            } else if (line.startsWith("\t\t\t")) {
+                word++;
+                assertEquals(fields[0], binary.getWord(word));
+                assertEquals(Integer.parseInt(fields[1]), binary.getWordStart(word));
+                assertEquals(Integer.parseInt(fields[2]), binary.getWordEnd(word));
+            }
+        }
+        assertEquals(binary.getWordCount() - 1, word);
+        assertEquals(binary.getPhoneCount(), phone);
+    }
+
+    @Test
+    public void visemeAtMatchesMohoCues() {
+        MohoExporter moho = new MohoExporter();
+        moho.setFrameRate(binary.getFrameRate());
+        String[] lines = moho.toString(timeline).split("\n");
+        assertEquals("MohoSwitch1", lines[0]);
+
+        int cue = 1;
+        String viseme = null;
+        for (int frame = 0; frame <= binary.getEndFrame() + 10; frame++) {
+            // Moho counts frames from 1
+            while (cue < lines.length && Integer.parseInt(lines[cue].split(" ")[0]) - 1 <= frame) {
+                viseme = lines[cue].split(" ")[1];
+                cue++;
+            }
+            // Middle of the frame, times at frame boundaries may round down
+            assertEquals("frame " + frame, viseme, binary.getVisemeAt(frame * 10 + 5));
+        }
+        assertEquals(lines.length, cue);
+    }
+
+    @Test
+    public void restBetweenWords() {
+        assertEquals("rest", binary.getVisemeAt(0));
+        assertEquals(-1, binary.getPhoneAt(binary.getWordEnd(0)));
+        assertEquals("rest", binary.getVisemeAt(binary.getWordEnd(0) * 10 + 5));
+        assertEquals("AI", binary.getVisemeAt(binary.getWordStart(1) * 10 + 5));
+        assertEquals(-1, binary.findWord(0));
+        assertEquals(binary.getPhoneCount(), binary.findPhoneFrom(binary.getEndFrame() + 1));
+    }
+
+    @Test
+    public void opensMappedFile() throws IOException {
+        File file = folder.newFile("clip.timeline");
+        ExportPipeline.write(new BinaryTimelineExporter(), timeline, file);
+        BinaryTimeline mapped = BinaryTimeline.open(file);
+        assertEquals(binary.getWordCount(), mapped.getWordCount());
+        assertEquals(binary.getEndFrame(), mapped.getEndFrame());
+        assertEquals(binary.getVisemeAt(500), mapped.getVisemeAt(500));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new BinaryTimeline(ByteBuffer.wrap(new byte[BinaryTimeline.HEADER_SIZE]));
+    }
+}
@@ -0,0 +1,98 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.frontend.DataEndSignal;
+import edu.cmu.sphinx.frontend.DataStartSignal;
+import edu.cmu.sphinx.frontend.DoubleData;
+import edu.cmu.sphinx.frontend.FrontEnd;
+import edu.cmu.sphinx.frontend.endpoint.SpeechEndSignal;
+import edu.cmu.sphinx.frontend.endpoint.SpeechStartSignal;
+import edu.cmu.sphinx.util.TimeFrame;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureCacheTest {
+    private static DoubleData frame(long time, double value) {
+        return new DoubleData(new double[]{value}, WavFile.SAMPLE_RATE, time * WavFile.SAMPLE_RATE / 1000);
+    }
+
+    /**
+     * @return cache of frames every 10 ms from start to end, valued by run
+     */
+    private static FeatureCache read(long start, long end, long endSignal, double run, Data... signals) {
+        List<Data> data = new ArrayList<>();
+        data.add(new DataStartSignal(WavFile.SAMPLE_RATE));
+        data.addAll(Arrays.asList(signals));
+        for (long time = start; time < end; time += 10) {
+            data.add(frame(time, run));
+        }
+        data.add(new DataEndSignal(endSignal));
+        final Iterator<Data> iterator = data.iterator();
+        return FeatureCache.read(new FrontEnd() {
+            @Override
+            public Data getData() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+        });
+    }
+
+    private static List<Double> values(List<Data> slice) {
+        List<Double> values = new ArrayList<>();
+        for (Data d : slice) {
+            if (d instanceof DoubleData) {
+                values.add(((DoubleData) d).getValues()[0]);
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void keepsAbsoluteDuration() {
+        // An end signal giving the length of a stream that starts at 5 s
+        FeatureCache cache = read(5000, 5500, 500, 1);
+        assertEquals(50, cache.getFrameCount());
+        assertEquals(5490, cache.getDuration());
+        assertEquals(10, values(cache.slice(new TimeFrame(5400, 5600))).size());
+    }
+
+    @Test
+    public void joinsTailAtCut() {
+        FeatureCache cache = read(1000, 2000, 2000, 1);
+        FeatureCache tail = read(1500, 3000, 3000, 2);
+        FeatureCache joined = cache.join(tail, 1200, 1800);
+        assertEquals(180 - 120 + 300 - 180, joined.getFrameCount());
+        assertEquals(3000, joined.getDuration());
+
+        List<Double> values = values(joined.slice(new TimeFrame(1790, 1810)));
+        assertEquals(Arrays.asList(1.0, 2.0), values);
+        assertEquals(60, values(joined.slice(new TimeFrame(0, 1800))).size());
+    }
+
+    @Test
+    public void pairsSpeechSignalsAtCut() {
+        FeatureCache cache = read(1000, 2000, 2000, 1, new SpeechStartSignal(1000));
+        FeatureCache tail = read(1500, 3000, 3000, 2);
+        List<Data> slice = cache.join(tail, 1000, 1800).slice(new TimeFrame(0, Long.MAX_VALUE));
+
+        // The tail has no speech, so the speech of the cache ends at the cut
+        int starts = 0, ends = 0;
+        for (int i = 0; i < slice.size(); i++) {
+            if (slice.get(i) instanceof SpeechStartSignal) {
+                starts++;
+            } else if (slice.get(i) instanceof SpeechEndSignal) {
+                ends++;
+                assertEquals(1790, ((DoubleData) slice.get(i - 1)).getCollectTime());
+            }
+        }
+        assertEquals(1, starts);
+        assertEquals(1, ends);
+        assertTrue(slice.get(slice.size() - 1) instanceof DataEndSignal);
+    }
+}
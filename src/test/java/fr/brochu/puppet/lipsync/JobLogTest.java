@@ -0,0 +1,62 @@
+package fr.brochu.puppet.lipsync;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JobLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesLinesToFile() throws IOException {
+        File file = folder.newFile("job.log");
+        JobLog log = new JobLog("job", JobLog.Level.INFO, null);
+        log.setFile(file);
+        log.debug("hidden %d", 1);
+        log.info("aligned %d words", 3);
+        log.warn("missing word");
+        log.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).endsWith(" INFO aligned 3 words"));
+        assertTrue(lines.get(1).endsWith(" WARN missing word"));
+    }
+
+    @Test
+    public void takesJulRecords() throws IOException {
+        File file = folder.newFile("job.log");
+        JobLog log = new JobLog("job", JobLog.Level.INFO, null);
+        log.setFile(file);
+        Logger logger = Logger.getLogger("JobLogTest");
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.ALL);
+        logger.addHandler(log.getHandler());
+        try {
+            logger.log(Level.INFO, "Words missing from dictionary: {0}", "[chat]");
+            // Below the level of the job log
+            logger.fine("hidden");
+            logger.warning("careful");
+        } finally {
+            logger.removeHandler(log.getHandler());
+            log.close();
+        }
+
+        List<String> lines = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).endsWith(" INFO JobLogTest: Words missing from dictionary: [chat]"));
+        assertTrue(lines.get(1).endsWith(" WARN JobLogTest: careful"));
+    }
+}
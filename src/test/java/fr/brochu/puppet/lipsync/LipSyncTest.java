@@ -0,0 +1,65 @@
+package fr.brochu.puppet.lipsync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class LipSyncTest {
+    private static int[] match(String previous, String current) {
+        return LipSync.matchWords(words(previous), words(current));
+    }
+
+    private static List<String> words(String text) {
+        return text.isEmpty() ? new ArrayList<String>() : Arrays.asList(text.split(" "));
+    }
+
+    @Test
+    public void matchesUnchangedWords() {
+        assertArrayEquals(new int[]{0, 1, 2}, match("le chat dort", "le chat dort"));
+    }
+
+    @Test
+    public void matchesAroundInsertion() {
+        assertArrayEquals(new int[]{0, -1, 1, 2}, match("le chat dort", "le gros chat dort"));
+        assertArrayEquals(new int[]{-1, 0, 1, 2}, match("le chat dort", "oui le chat dort"));
+        assertArrayEquals(new int[]{0, 1, 2, -1}, match("le chat dort", "le chat dort bien"));
+    }
+
+    @Test
+    public void matchesAroundDeletion() {
+        assertArrayEquals(new int[]{0, 2, 3}, match("le gros chat dort", "le chat dort"));
+        assertArrayEquals(new int[]{1, 2}, match("oui le chat", "le chat"));
+    }
+
+    @Test
+    public void matchesAroundReplacement() {
+        assertArrayEquals(new int[]{0, -1, 2, 3, -1, 5}, match("le chat dort sur le lit", "le chien dort sur un lit"));
+    }
+
+    @Test
+    public void matchesRepeatedWords() {
+        assertArrayEquals(new int[]{0, 1, -1, 2, 3}, match("la la la la", "la la oui la la"));
+    }
+
+    @Test
+    public void matchesEmptyTranscripts() {
+        assertArrayEquals(new int[0], match("le chat", ""));
+        assertArrayEquals(new int[]{-1, -1}, match("", "le chat"));
+    }
+
+    @Test
+    public void givesUpOnLargeChanges() {
+        List<String> previous = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        for (int i = 0; i < 2001; i++) {
+            previous.add("a" + i);
+            current.add("b" + i);
+        }
+        assertNull(LipSync.matchWords(previous, current));
+    }
+}
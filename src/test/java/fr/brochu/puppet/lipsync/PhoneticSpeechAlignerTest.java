@@ -0,0 +1,45 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.util.TimeFrame;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PhoneticSpeechAlignerTest {
+    private static void assertRegion(long start, long end, TimeFrame region) {
+        assertEquals(start, region.getStart());
+        assertEquals(end, region.getEnd());
+    }
+
+    @Test
+    public void mergesCloseSpeechRegions() {
+        long gap = PhoneticSpeechAligner.MIN_SKIPPED_SILENCE;
+        List<TimeFrame> regions = Arrays.asList(
+                new TimeFrame(0, 1000),
+                new TimeFrame(1000 + gap - 1, 3000),
+                new TimeFrame(3000 + gap, 5000),
+                new TimeFrame(5200, 6000));
+        List<TimeFrame> merged = PhoneticSpeechAligner.mergeSpeechRegions(regions, TimeFrame.INFINITE);
+        assertEquals(2, merged.size());
+        assertRegion(0, 3000, merged.get(0));
+        assertRegion(3000 + gap, 6000, merged.get(1));
+    }
+
+    @Test
+    public void clipsSpeechRegionsToFrame() {
+        List<TimeFrame> regions = Arrays.asList(
+                new TimeFrame(0, 1000),
+                new TimeFrame(5000, 6000),
+                new TimeFrame(9000, 10000));
+        List<TimeFrame> merged = PhoneticSpeechAligner.mergeSpeechRegions(regions, new TimeFrame(500, 5500));
+        assertEquals(2, merged.size());
+        assertRegion(500, 1000, merged.get(0));
+        assertRegion(5000, 5500, merged.get(1));
+
+        assertTrue(PhoneticSpeechAligner.mergeSpeechRegions(regions, new TimeFrame(2000, 4000)).isEmpty());
+    }
+}
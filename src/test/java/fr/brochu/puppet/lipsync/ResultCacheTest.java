@@ -0,0 +1,155 @@
+package fr.brochu.puppet.lipsync;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResultCacheTest {
+    private static final String KEY = "0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ResultCache cache;
+    private Transcript transcript;
+    private AlignmentTable words;
+    private AlignmentTable phones;
+
+    @Before
+    public void setUp() throws IOException {
+        cache = new ResultCache(folder.newFolder("results"), 1024 * 1024);
+        transcript = TranscriptTest.createTranscript(folder.getRoot());
+
+        // le chat dort: "chat" was missed by the decoder and placed by the fixes
+        words = new AlignmentTable();
+        words.setTimeFrame(words.add("le", null, false, false), 100, 240);
+        int chat = words.add("chat", null, true, false);
+        words.setTimeFrame(chat, 240, 400);
+        words.addTreatment(chat, Treatment.MISSING_WORD);
+        words.setTimeFrame(words.add("dort", null, false, false), 400, 650);
+
+        phones = new AlignmentTable();
+        String[] spellings = {"ll", "eu", "ch", "aa", "dd", "oo", "rr"};
+        for (int i = 0; i < spellings.length; i++) {
+            int phone = phones.add(spellings[i], null, false, false);
+            phones.setTimeFrame(phone, 100 + i * 70, 170 + i * 70);
+        }
+        phones.setIgnored(6, true);
+        phones.addTreatment(4, Treatment.SHRINK_TO_START);
+        phones.addTreatment(4, Treatment.INWORD_SMALL_GAP);
+    }
+
+    private static void assertTablesEqual(AlignmentTable expected, AlignmentTable actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getSpelling(i), actual.getSpelling(i));
+            assertEquals(expected.isDeleted(i), actual.isDeleted(i));
+            assertEquals(expected.isInserted(i), actual.isInserted(i));
+            assertEquals(expected.isIgnored(i), actual.isIgnored(i));
+            assertEquals(expected.hasTimeFrame(i), actual.hasTimeFrame(i));
+            assertEquals(expected.getStart(i), actual.getStart(i));
+            assertEquals(expected.getEnd(i), actual.getEnd(i));
+            assertEquals(expected.getTreatments(i), actual.getTreatments(i));
+        }
+    }
+
+    @Test
+    public void readsWhatWasPut() throws IOException {
+        cache.put(KEY, transcript, words, phones);
+        ResultCache.Entry entry = cache.read(KEY);
+        assertNotNull(entry);
+        assertTablesEqual(words, entry.words);
+        assertTablesEqual(phones, entry.phones);
+        assertEquals(Arrays.asList(
+                Arrays.asList("ll", "eu"), Arrays.asList("ch", "aa"), Arrays.asList("dd", "oo", "rr")), entry.pronunciations);
+    }
+
+    @Test
+    public void givesPronunciationsToTranscript() throws IOException {
+        cache.put(KEY, transcript, words, phones);
+        Transcript other = TranscriptTest.createTranscript(folder.getRoot());
+        other.setWordPhones(1, Collections.singletonList("ch"));
+
+        assertNotNull(cache.get(KEY, other));
+        assertEquals("ll eu ch aa dd oo rr", other.toPhoneString());
+    }
+
+    @Test
+    public void missesUnknownKeys() throws IOException {
+        assertNull(cache.read(KEY));
+        cache.put(KEY, transcript, words, phones);
+        assertNull(cache.read("fedcba9876543210"));
+    }
+
+    @Test
+    public void followsReferences() throws IOException {
+        String previousKey = "fedcba9876543210";
+        cache.put(previousKey, transcript, words, phones);
+        cache.put(KEY, transcript, words, phones);
+        cache.putReference(previousKey, KEY);
+        // The reference replaces the entry stored under its key
+        assertFalse(new File(folder.getRoot(), "results/" + previousKey + ".bin").exists());
+
+        ResultCache.Entry entry = cache.read(previousKey);
+        assertNotNull(entry);
+        assertTablesEqual(words, entry.words);
+        assertTablesEqual(phones, entry.phones);
+
+        File reference = new File(folder.getRoot(), "results/" + previousKey + ".ref");
+        assertTrue(new File(folder.getRoot(), "results/" + KEY + ".bin").delete());
+        assertNull(cache.read(previousKey));
+        assertFalse(reference.exists());
+    }
+
+    @Test
+    public void deletesCorruptEntries() throws IOException {
+        cache.put(KEY, transcript, words, phones);
+        File file = new File(folder.getRoot(), "results/" + KEY + ".bin");
+        assertTrue(file.isFile());
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x4c535243);
+            out.writeInt(1);
+            out.writeInt(1000);
+        }
+
+        try {
+            cache.read(KEY);
+            fail("Corrupt entry read");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse(file.exists());
+        assertNull(cache.read(KEY));
+    }
+
+    @Test
+    public void keysDependOnEveryPart() throws IOException {
+        byte[] audioHash = new byte[32];
+        List<String> parts = Arrays.asList("model", "joint=false");
+        String key = ResultCache.computeKey(audioHash, "le chat dort", parts);
+        assertEquals(key, ResultCache.computeKey(audioHash, "le chat dort", parts));
+        assertNotEquals(key, ResultCache.computeKey(audioHash, "le chat dort bien", parts));
+        assertNotEquals(key, ResultCache.computeKey(audioHash, "le chat dort", Arrays.asList("model", "joint=true")));
+        // Parts do not run into each other
+        assertNotEquals(key, ResultCache.computeKey(audioHash, "le chat dort", Arrays.asList("modeljoint=false")));
+        audioHash[0] = 1;
+        assertNotEquals(key, ResultCache.computeKey(audioHash, "le chat dort", parts));
+    }
+}
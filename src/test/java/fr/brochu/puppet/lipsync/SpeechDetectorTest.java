@@ -0,0 +1,91 @@
+package fr.brochu.puppet.lipsync;
+
+import edu.cmu.sphinx.util.TimeFrame;
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpeechDetectorTest {
+    /**
+     * @param tones start and end of each 440 Hz tone, in milliseconds
+     */
+    private static ShortBuffer createSamples(long duration, long... tones) {
+        short[] samples = new short[(int) (duration * WavFile.SAMPLE_RATE / 1000)];
+        for (int i = 0; i < tones.length; i += 2) {
+            int start = (int) (tones[i] * WavFile.SAMPLE_RATE / 1000);
+            int end = (int) (tones[i + 1] * WavFile.SAMPLE_RATE / 1000);
+            for (int j = start; j < end; j++) {
+                samples[j] = (short) (8000 * Math.sin(2 * Math.PI * 440 * j / WavFile.SAMPLE_RATE));
+            }
+        }
+        return ShortBuffer.wrap(samples);
+    }
+
+    private static void assertRegion(long start, long end, TimeFrame region) {
+        assertEquals(start, region.getStart());
+        assertEquals(end, region.getEnd());
+    }
+
+    @Test
+    public void silenceIsOneRegion() {
+        // Without a gap between noise floor and speech level, everything may be speech
+        List<TimeFrame> regions = SpeechDetector.detect(createSamples(2000));
+        assertEquals(1, regions.size());
+        assertRegion(0, 2000, regions.get(0));
+    }
+
+    @Test
+    public void emptyBuffer() {
+        assertTrue(SpeechDetector.detect(createSamples(0)).isEmpty());
+    }
+
+    @Test
+    public void padsTone() {
+        List<TimeFrame> regions = SpeechDetector.detect(createSamples(3000, 1000, 2000));
+        assertEquals(1, regions.size());
+        assertRegion(1000 - SpeechDetector.PADDING, 2000 + SpeechDetector.PADDING, regions.get(0));
+    }
+
+    @Test
+    public void clampsPaddingToBuffer() {
+        List<TimeFrame> regions = SpeechDetector.detect(createSamples(3000, 0, 500, 2900, 3000));
+        assertEquals(2, regions.size());
+        assertRegion(0, 500 + SpeechDetector.PADDING, regions.get(0));
+        assertRegion(2900 - SpeechDetector.PADDING, 3000, regions.get(1));
+    }
+
+    @Test
+    public void mergesShortPauses() {
+        List<TimeFrame> regions = SpeechDetector.detect(createSamples(4000, 1000, 1500, 1700, 2200));
+        assertEquals(1, regions.size());
+        assertRegion(1000 - SpeechDetector.PADDING, 2200 + SpeechDetector.PADDING, regions.get(0));
+    }
+
+    @Test
+    public void splitsLongPauses() {
+        List<TimeFrame> regions = SpeechDetector.detect(createSamples(5000, 1000, 1500, 2500, 3000));
+        assertEquals(2, regions.size());
+        assertRegion(1000 - SpeechDetector.PADDING, 1500 + SpeechDetector.PADDING, regions.get(0));
+        assertRegion(2500 - SpeechDetector.PADDING, 3000 + SpeechDetector.PADDING, regions.get(1));
+
+        List<TimeFrame> silences = SpeechDetector.getSilences(regions, 5000);
+        assertEquals(3, silences.size());
+        assertRegion(0, 1000 - SpeechDetector.PADDING, silences.get(0));
+        assertRegion(1500 + SpeechDetector.PADDING, 2500 - SpeechDetector.PADDING, silences.get(1));
+        assertRegion(3000 + SpeechDetector.PADDING, 5000, silences.get(2));
+        assertEquals(5000 - SpeechDetector.getLength(regions), SpeechDetector.getLength(silences));
+    }
+
+    @Test
+    public void timesRelativeToPosition() {
+        ShortBuffer samples = createSamples(3000, 2000, 2500);
+        samples.position(WavFile.SAMPLE_RATE);
+        List<TimeFrame> regions = SpeechDetector.detect(samples);
+        assertEquals(1, regions.size());
+        assertRegion(1000 - SpeechDetector.PADDING, 1500 + SpeechDetector.PADDING, regions.get(0));
+    }
+}
@@ -0,0 +1,67 @@
+package fr.brochu.puppet.lipsync;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TranscriptTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @return transcript of "le chat dort", pronounced from a small dictionary compiled in the folder
+     */
+    static Transcript createTranscript(File folder) throws IOException {
+        File dictionary = new File(folder, "test.dict");
+        Files.write(dictionary.toPath(), Arrays.asList("chat ch aa", "dort dd oo rr", "le ll eu"), Charset.forName("UTF-8"));
+        CompiledDictionary compiledDictionary = CompiledDictionary.open(dictionary.getPath(), folder);
+        return new Transcript("le chat dort", compiledDictionary, null, null);
+    }
+
+    @Test
+    public void indexesPhones() throws IOException {
+        Transcript transcript = createTranscript(folder.getRoot());
+        assertEquals("ll eu ch aa dd oo rr", transcript.toPhoneString());
+
+        PhoneIndex index = transcript.getPhoneIndex();
+        assertEquals(3, index.getWordCount());
+        assertEquals(7, index.getPhoneCount());
+        assertEquals(2, index.getPhoneStart(1));
+        assertEquals(4, index.getPhoneEnd(1));
+        assertEquals(3, index.getPhoneCount(2));
+        assertEquals(0, index.getWord(1));
+        assertEquals(2, index.getWord(6));
+        assertArrayEquals(new int[]{0, 2, 4}, transcript.getWordIndexes());
+    }
+
+    @Test
+    public void keepsIndexUntilPhonesChange() throws IOException {
+        Transcript transcript = createTranscript(folder.getRoot());
+        PhoneIndex index = transcript.getPhoneIndex();
+        assertSame(index, transcript.getPhoneIndex());
+
+        transcript.setWordPhones(0, Arrays.asList("ll", "ee", "ee"));
+        PhoneIndex changed = transcript.getPhoneIndex();
+        assertNotSame(index, changed);
+        assertSame(changed, transcript.getPhoneIndex());
+        assertEquals(8, changed.getPhoneCount());
+        assertEquals(3, changed.getPhoneCount(0));
+        assertArrayEquals(new int[]{0, 3, 5}, transcript.getWordIndexes());
+        assertEquals("ll ee ee ch aa dd oo rr", transcript.toPhoneString());
+
+        // The previous index is immutable
+        assertEquals(7, index.getPhoneCount());
+        assertEquals(2, index.getPhoneStart(1));
+    }
+}